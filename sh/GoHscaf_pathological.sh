@@ -26,7 +26,10 @@ java -classpath $CLASSPATH edu.unm.health.biocomp.hscaf.hier_scaffolds \
 	-inc_chain \
 	-scaflist_append2title \
 	-nodb \
-	-maxrings 5 \
+	-maxrings 0 \
+	-ringsys_min 6 \
+	-maxtime 60 \
+	-out_truncated ${PREFIX}_hscaf_truncated.smi \
 	-vv
 #
 #	-dbdir scratch -destroyexistingdb \
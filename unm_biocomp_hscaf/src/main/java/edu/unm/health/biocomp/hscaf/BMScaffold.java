@@ -22,13 +22,10 @@ public class BMScaffold extends Molecule implements Comparable<Object>
   */
   public static final String CANSMIFMT="cxsmiles:u-L-l-e-d-D-p-R-f-w-H+a_gen+0"; //fmt for getCansmi()
   public static final String CANSMIFMT_STEREO="cxsmiles:u-L-l-e-d-D-p-R-f-w-H+a_gen"; //fmt for getCansmi()
-  private static String smifmt="cxsmiles:u-L-l-e-d-D-p-R-f-w-a"; //fmt for getSmi()
-  private static String cxsmifmt="cxsmiles:+L+l+e+d+D+p+R+f+w"; //fmt for getJsmi()
   private String cansmi; //cansmiles for equality comparison
   private String smi; //Kekule smiles (good for export)
   private Long id; //unique ID for dataset scope
-  private boolean keep_nitro_attachments;
-  private boolean stereo;
+  private HScafConfig config; //flags and formats
   /////////////////////////////////////////////////////////////////////////////
   private BMScaffold() {} //disallow default constructor
   /////////////////////////////////////////////////////////////////////////////
@@ -39,16 +36,10 @@ public class BMScaffold extends Molecule implements Comparable<Object>
   public BMScaffold(Molecule mol,boolean stereo,boolean keep_nitro_attachments)
     throws MolFormatException
   {
-    if (!stereo)
-    {
-      this.smifmt+="+0"; //non-stereo
-      this.cxsmifmt+="+0"; //non-stereo
-    }
     this.id=0L;
     this.cansmi=null; // Lazily evaluated
     this.smi=null; // Lazily evaluated
-    this.keep_nitro_attachments=keep_nitro_attachments;
-    this.stereo=stereo;
+    this.config=HScafConfig.of(stereo,keep_nitro_attachments);
     int [][] sssr = mol.getSSSR();
     boolean ok=(sssr.length>0);
 
@@ -93,6 +84,7 @@ public class BMScaffold extends Molecule implements Comparable<Object>
     this.cansmi=scaf.cansmi;
     this.smi=scaf.smi;
     this.id=scaf.id;
+    this.config=scaf.config;
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	For sorting by size.
@@ -135,7 +127,7 @@ public class BMScaffold extends Molecule implements Comparable<Object>
   {
     if (this.cansmi==null)
     {
-      try { this.cansmi=MolExporter.exportToFormat(this,(this.stereo?this.CANSMIFMT_STEREO:this.CANSMIFMT)); }
+      try { this.cansmi=MolExporter.exportToFormat(this,this.config.getCansmiFormat()); }
       catch (MolExportException e) { System.err.println(e.getMessage()); this.cansmi=""; }
       catch (IOException e) { System.err.println(e.getMessage()); this.cansmi=""; }
     }
@@ -151,7 +143,7 @@ public class BMScaffold extends Molecule implements Comparable<Object>
     if (this.smi==null)
     {
       this.decompress();
-      try { this.smi=MolExporter.exportToFormat(this,this.smifmt); }
+      try { this.smi=MolExporter.exportToFormat(this,this.config.getSmiFormat()); }
       catch (MolExportException e) { System.err.println(e.getMessage()); this.smi=""; }
       catch (IOException e) { System.err.println(e.getMessage()); this.smi=""; }
     }
@@ -168,7 +160,7 @@ public class BMScaffold extends Molecule implements Comparable<Object>
     Molecule scafmol=this.cloneMolecule();
     hscaf_utils.replaceJHydrogensWithJPseudoatoms(scafmol);
     String jsmi=null;
-    try { jsmi=MolExporter.exportToFormat(scafmol,cxsmifmt); }
+    try { jsmi=MolExporter.exportToFormat(scafmol,this.config.getCxsmiFormat()); }
     catch (MolExportException e) { jsmi=""; }
     catch (IOException e) { jsmi=""; }
     return jsmi;
@@ -196,12 +188,12 @@ public class BMScaffold extends Molecule implements Comparable<Object>
   ///////////////////////////////////////////////////////////////////////////
   public Boolean isStereo()
   {
-    return this.stereo;
+    return this.config.isStereo();
   }
   ///////////////////////////////////////////////////////////////////////////
   public Boolean isKeep_nitro_attachments()
   {
-    return this.keep_nitro_attachments;
+    return this.config.isKeep_nitro_attachments();
   }
   ///////////////////////////////////////////////////////////////////////////
 }
@@ -0,0 +1,354 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import chemaxon.struc.*;
+
+/**	Native canonical graph key for scaffold identity, in place of JChem
+	canonical SMILES, which is costly and now produced only for unique
+	scaffolds, for output.
+	<br>
+	Algorithm: terminal hydrogens are folded into hydrogen counts (as in
+	cansmi, format option -H), so junction hydrogens do not affect
+	identity.  Heavy atoms are colored by invariants (element, charge,
+	isotope, radical, hydrogen count), and colors iteratively refined by
+	neighbor colors and bond types (Morgan).  Remaining ties are broken
+	by individualization and refinement, taking the smallest encoding
+	over all branches, giving a canonical labeling.  Leaves with equal
+	encodings give automorphisms, and branches equivalent under known
+	automorphisms fixing the individualized atoms are pruned (as in
+	nauty), so symmetric ring systems need few leaves.  The labeled
+	graph encoding is hashed (MD5) to 128 bits.  Bond types include
+	aromatic, so molecules should be aromatized as for cansmi (see
+	Scaffold.getKey()).
+	<br>
+	Stereo is not represented, and graphs with too many atoms tied after
+	refinement are not searched; for these of() returns null, and
+	callers should fall back to cansmi.  The limit is decided from the
+	refined coloring before searching, which does not depend on atom
+	order, so each scaffold gets the same kind of key however it was
+	reached.  (A limit on leaves searched would not do: with pruning,
+	the number of leaves depends on atom order.)  Below the limit the
+	search is complete; with automorphism pruning, molecular graphs
+	need few leaves (see AppTest.testSymmetricKeys()).
+	<br>
+	@see edu.unm.health.biocomp.hscaf.Scaffold#getKey()
+	@author Jeremy J Yang
+*/
+public class CanonicalKey
+{
+  /** max atoms in non-singleton cells of refined coloring, to search */
+  private static final int MAX_TIED=64;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private int n;
+  private int[][] inv;
+  private int[][] nbrs;
+  private int[][] btypes;
+  private int n_leaves;
+  private int[] best;
+  /** labeling of best, and first leaf, and encoding of first leaf */
+  private int[] best_label;
+  private int[] first_label;
+  private int[] first;
+  /** automorphisms found, as atom permutations */
+  private ArrayList<int[]> autos;
+  /** individualized atoms, by search depth */
+  private int[] path;
+
+  /////////////////////////////////////////////////////////////////////////////
+  private CanonicalKey() {} //static methods only
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Returns canonical key (32 hex digits) for molecule, or null if
+	too many atoms tied after refinement.
+  */
+  public static String of(Molecule mol)
+  {
+    CanonicalKey ck = new CanonicalKey();
+    ck.init(mol);
+    int[] code=ck.canonicalCode();
+    if (code==null) return null;
+    return md5hex(code);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private void init(Molecule mol)
+  {
+    int n_all=mol.getAtomCount();
+    boolean[] folded = new boolean[n_all];
+    int[] n_h = new int[n_all];
+    int[] heavy = new int[n_all];
+    for (int i=0;i<n_all;++i)
+    {
+      MolAtom atom=mol.getAtom(i);
+      if (atom.getAtno()==1 && atom.getMassno()==0 && atom.getCharge()==0 && atom.getBondCount()==1
+	&& atom.getBond(0).getOtherAtom(atom).getAtno()!=1)
+      {
+        folded[i]=true;
+        ++n_h[mol.indexOf(atom.getBond(0).getOtherAtom(atom))];
+      }
+    }
+    this.n=0;
+    for (int i=0;i<n_all;++i) heavy[i]=(folded[i]?-1:this.n++);
+    this.inv = new int[n][];
+    int[] degree = new int[n];
+    for (int i=0;i<n_all;++i)
+    {
+      if (folded[i]) continue;
+      MolAtom atom=mol.getAtom(i);
+      inv[heavy[i]] = new int[]{ atom.getAtno(), atom.getCharge(), atom.getMassno(), atom.getRadical(),
+		atom.getImplicitHcount()+n_h[i] };
+    }
+    int n_bonds=mol.getBondCount();
+    int[] ba1 = new int[n_bonds];
+    int[] ba2 = new int[n_bonds];
+    for (int j=0;j<n_bonds;++j)
+    {
+      MolBond bond=mol.getBond(j);
+      ba1[j]=heavy[mol.indexOf(bond.getAtom1())];
+      ba2[j]=heavy[mol.indexOf(bond.getAtom2())];
+      if (ba1[j]<0 || ba2[j]<0) continue;
+      ++degree[ba1[j]];
+      ++degree[ba2[j]];
+    }
+    this.nbrs = new int[n][];
+    this.btypes = new int[n][];
+    for (int i=0;i<n;++i) { nbrs[i] = new int[degree[i]]; btypes[i] = new int[degree[i]]; degree[i]=0; }
+    for (int j=0;j<n_bonds;++j)
+    {
+      int a1=ba1[j];
+      int a2=ba2[j];
+      if (a1<0 || a2<0) continue;
+      int t=mol.getBond(j).getType();
+      nbrs[a1][degree[a1]]=a2; btypes[a1][degree[a1]++]=t;
+      nbrs[a2][degree[a2]]=a1; btypes[a2][degree[a2]++]=t;
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Returns smallest encoding over canonical search, or null if
+	too many atoms tied after refinement (an isomorphism invariant).
+  */
+  private int[] canonicalCode()
+  {
+    int[] color = new int[n];
+    int[][] sigs = new int[n][];
+    for (int i=0;i<n;++i) sigs[i]=inv[i];
+    rank(sigs,color);
+    refine(color);
+    if (countTied(color)>MAX_TIED) return null;
+    this.n_leaves=0;
+    this.best=null;
+    this.first=null;
+    this.autos = new ArrayList<int[]>();
+    this.path = new int[n];
+    search(color,0);
+    return this.best;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Number of atoms in cells with 2+ members.
+  */
+  private int countTied(int[] color)
+  {
+    int[] cellsize = new int[n];
+    for (int i=0;i<n;++i) ++cellsize[color[i]];
+    int n_tied=0;
+    for (int i=0;i<n;++i) if (cellsize[color[i]]>1) ++n_tied;
+    return n_tied;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Depth-first individualization/refinement.  Atoms of the target
+	cell in the same orbit, under
+	automorphisms found so far which fix the atoms individualized
+	above (path), have equivalent subtrees, so only one is searched.
+  */
+  private void search(int[] color,int depth)
+  {
+    // Target cell: smallest color with 2+ members.
+    int[] cellsize = new int[n];
+    for (int i=0;i<n;++i) ++cellsize[color[i]];
+    int target=-1;
+    for (int c=0;c<n;++c) if (cellsize[c]>1) { target=c; break; }
+    if (target<0)
+    {
+      ++n_leaves;
+      int[] code=encode(color);
+      if (first==null) { first=code; first_label=color.clone(); }
+      else if (compare(code,first)==0) addAutomorphism(first_label,color);
+      int cmp=((best==null)?-1:compare(code,best));
+      if (cmp<0) { best=code; best_label=color.clone(); }
+      else if (cmp==0) addAutomorphism(best_label,color);
+      return;
+    }
+    ArrayList<Integer> done = new ArrayList<Integer>();
+    int n_autos=-1;
+    int[] orbit=null;
+    for (int v=0;v<n;++v)
+    {
+      if (color[v]!=target) continue;
+      if (autos.size()!=n_autos) { n_autos=autos.size(); orbit=orbits(depth); }
+      boolean equiv=false;
+      for (int w: done) if (find(orbit,w)==find(orbit,v)) { equiv=true; break; }
+      if (equiv) continue;
+      int[] color2=color.clone();
+      for (int i=0;i<n;++i)
+        if (color2[i]==target && i!=v) color2[i]=target+1;
+      refine(color2);
+      path[depth]=v;
+      search(color2,depth+1);
+      done.add(v);
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Records automorphism mapping each atom labeled in label2 to the
+	atom with the same label in label1, whose encodings are equal.
+  */
+  private void addAutomorphism(int[] label1,int[] label2)
+  {
+    int[] atom_at = new int[n];
+    for (int i=0;i<n;++i) atom_at[label1[i]]=i;
+    int[] perm = new int[n];
+    boolean identity=true;
+    for (int i=0;i<n;++i)
+    {
+      perm[i]=atom_at[label2[i]];
+      if (perm[i]!=i) identity=false;
+    }
+    if (!identity) autos.add(perm);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Orbits (union-find parents) under automorphisms found which fix
+	path[0..depth).
+  */
+  private int[] orbits(int depth)
+  {
+    int[] parent = new int[n];
+    for (int i=0;i<n;++i) parent[i]=i;
+    for (int[] perm: autos)
+    {
+      boolean fixes=true;
+      for (int d=0;d<depth;++d) if (perm[path[d]]!=path[d]) { fixes=false; break; }
+      if (!fixes) continue;
+      for (int i=0;i<n;++i)
+      {
+        int r1=find(parent,i);
+        int r2=find(parent,perm[i]);
+        if (r1!=r2) parent[r2]=r1;
+      }
+    }
+    return parent;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static int find(int[] parent,int i)
+  {
+    while (parent[i]!=i) { parent[i]=parent[parent[i]]; i=parent[i]; }
+    return i;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Refines coloring by neighbor colors and bond types until stable.
+	Colors are ranks: first position of cell in sorted order.
+  */
+  private void refine(int[] color)
+  {
+    int n_cells=countCells(color);
+    int[][] sigs = new int[n][];
+    while (true)
+    {
+      for (int i=0;i<n;++i)
+      {
+        int d=nbrs[i].length;
+        int[] pairs = new int[d];
+        for (int k=0;k<d;++k) pairs[k]=color[nbrs[i][k]]*8+btypes[i][k];
+        Arrays.sort(pairs);
+        int[] sig = new int[d+1];
+        sig[0]=color[i];
+        System.arraycopy(pairs,0,sig,1,d);
+        sigs[i]=sig;
+      }
+      rank(sigs,color);
+      int n_cells2=countCells(color);
+      if (n_cells2==n_cells) break;
+      n_cells=n_cells2;
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static void rank(final int[][] sigs,int[] color)
+  {
+    int n=sigs.length;
+    Integer[] order = new Integer[n];
+    for (int i=0;i<n;++i) order[i]=i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a,Integer b) { return CanonicalKey.compare(sigs[a],sigs[b]); }
+    });
+    for (int p=0;p<n;++p)
+    {
+      if (p>0 && compare(sigs[order[p]],sigs[order[p-1]])==0) color[order[p]]=color[order[p-1]];
+      else color[order[p]]=p;
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private int countCells(int[] color)
+  {
+    boolean[] seen = new boolean[n];
+    int n_cells=0;
+    for (int i=0;i<n;++i) if (!seen[color[i]]) { seen[color[i]]=true; ++n_cells; }
+    return n_cells;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Encodes graph in label order: atom invariants, then bonds to
+	lower labels, as (label, type) pairs.
+  */
+  private int[] encode(int[] label)
+  {
+    int[] atom_at = new int[n];
+    for (int i=0;i<n;++i) atom_at[label[i]]=i;
+    int len=1;
+    for (int l=0;l<n;++l) len+=inv[atom_at[l]].length+1+2*nbrs[atom_at[l]].length;
+    int[] code = new int[len];
+    int p=0;
+    code[p++]=n;
+    for (int l=0;l<n;++l)
+    {
+      int i=atom_at[l];
+      for (int x: inv[i]) code[p++]=x;
+      int d=nbrs[i].length;
+      int[] pairs = new int[d];
+      int m=0;
+      for (int k=0;k<d;++k)
+        if (label[nbrs[i][k]]<l) pairs[m++]=label[nbrs[i][k]]*8+btypes[i][k];
+      Arrays.sort(pairs,0,m);
+      code[p++]=m;
+      for (int k=0;k<m;++k) code[p++]=pairs[k];
+    }
+    return Arrays.copyOf(code,p);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static int compare(int[] a,int[] b)
+  {
+    for (int i=0;i<a.length && i<b.length;++i)
+      if (a[i]!=b[i]) return (a[i]<b[i]?-1:1);
+    return a.length-b.length;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static String md5hex(int[] code)
+  {
+    byte[] bytes = new byte[4*code.length];
+    for (int i=0;i<code.length;++i)
+    {
+      bytes[4*i]=(byte)(code[i]>>>24);
+      bytes[4*i+1]=(byte)(code[i]>>>16);
+      bytes[4*i+2]=(byte)(code[i]>>>8);
+      bytes[4*i+3]=(byte)code[i];
+    }
+    byte[] digest;
+    try { digest=MessageDigest.getInstance("MD5").digest(bytes); }
+    catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e.getMessage()); } //MD5 always available.
+    char[] hex = new char[2*digest.length];
+    for (int i=0;i<digest.length;++i)
+    {
+      hex[2*i]=HEX[(digest[i]>>4)&0xf];
+      hex[2*i+1]=HEX[digest[i]&0xf];
+    }
+    return new String(hex);
+  }
+}
@@ -0,0 +1,184 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.io.*;
+import java.util.*;
+
+import chemaxon.formats.*;
+import chemaxon.struc.*;
+import chemaxon.sss.search.SearchException;
+import chemaxon.marvin.io.MolExportException;
+
+/**	Classifies the fragments of a molecule left by removing its junction
+	bonds (tagged by hscaf_utils.tagJunctions()) as scaffold, linker or
+	side-chain, natively, by ring membership and junction counts: a
+	fragment with a ring atom is scaffold; otherwise, with 2+ junctions,
+	linker; otherwise side-chain.  Since junction bonds are acyclic, ring
+	atoms of fragments are those of the molecule.  Replaces rmJBonds()
+	and a MolSearch (ring atom, and 2+ junction pseudo-atoms) per
+	fragment.  The molecule is not modified.
+	<br>
+	Only linker and side-chain fragments are built as Molecules, each as
+	by rmJBonds() and convertToFrags(): fragment atoms and bonds in
+	original order, plus a junction pseudo-atom (alias "J") for each
+	junction bond, bonded as the junction bond.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.ScaffoldTree
+	@see edu.unm.health.biocomp.hscaf.Linker
+	@see edu.unm.health.biocomp.hscaf.Sidechain
+	@author Jeremy J Yang
+*/
+public class FragmentClassifier
+{
+  public static final int SCAFFOLD=0;
+  public static final int LINKER=1;
+  public static final int SIDECHAIN=2;
+
+  private Molecule mol;
+  private int n_atoms;
+  private int n_bonds;
+  private int[] bond_a1;
+  private int[] bond_a2;
+  private boolean[] jbond;
+  /** fragment of each atom, fragments ordered by lowest atom index */
+  private int[] frag;
+  private int n_frags;
+  private int[] fragtype;
+  private int[] n_junc;
+
+  /////////////////////////////////////////////////////////////////////////////
+  private FragmentClassifier() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Classifies fragments of molecule, with junctions tagged.
+	@param ringctx ring perception for mol, or null
+  */
+  public FragmentClassifier(Molecule mol,RingContext ringctx)
+  {
+    this.mol=mol;
+    this.n_atoms=mol.getAtomCount();
+    this.n_bonds=mol.getBondCount();
+    if (ringctx==null || !ringctx.isFor(mol)) ringctx = new RingContext(mol);
+    this.bond_a1 = new int[n_bonds];
+    this.bond_a2 = new int[n_bonds];
+    this.jbond = new boolean[n_bonds];
+    // Union-find over non-junction bonds.
+    int[] parent = new int[n_atoms];
+    for (int i=0;i<n_atoms;++i) parent[i]=i;
+    for (int j=0;j<n_bonds;++j)
+    {
+      MolBond bond=mol.getBond(j);
+      bond_a1[j]=mol.indexOf(bond.getAtom1());
+      bond_a2[j]=mol.indexOf(bond.getAtom2());
+      jbond[j]=(bond.getSetSeq()>0);
+      if (jbond[j]) continue;
+      int r1=find(parent,bond_a1[j]);
+      int r2=find(parent,bond_a2[j]);
+      if (r1==r2) continue;
+      if (r1<r2) parent[r2]=r1; else parent[r1]=r2; //root is lowest index
+    }
+    this.frag = new int[n_atoms];
+    int[] root2frag = new int[n_atoms];
+    Arrays.fill(root2frag,-1);
+    this.n_frags=0;
+    for (int i=0;i<n_atoms;++i)
+    {
+      int r=find(parent,i);
+      if (root2frag[r]<0) root2frag[r]=n_frags++;
+      frag[i]=root2frag[r];
+    }
+    boolean[] hasring = new boolean[n_frags];
+    for (int i=0;i<n_atoms;++i)
+      if (ringctx.isRingAtom(i)) hasring[frag[i]]=true;
+    this.n_junc = new int[n_frags];
+    for (int j=0;j<n_bonds;++j)
+    {
+      if (!jbond[j]) continue;
+      ++n_junc[frag[bond_a1[j]]];
+      ++n_junc[frag[bond_a2[j]]];
+    }
+    this.fragtype = new int[n_frags];
+    for (int k=0;k<n_frags;++k)
+      fragtype[k]=(hasring[k]?SCAFFOLD:((n_junc[k]>=2)?LINKER:SIDECHAIN));
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static int find(int[] parent,int i)
+  {
+    while (parent[i]!=i) { parent[i]=parent[parent[i]]; i=parent[i]; }
+    return i;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  public int getFragmentCount() { return this.n_frags; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	SCAFFOLD, LINKER or SIDECHAIN.
+  */
+  public int getType(int k) { return this.fragtype[k]; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Number of junction bonds of fragment.
+  */
+  public int getJunctionCount(int k) { return this.n_junc[k]; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	New Molecule of fragment, with junction pseudo-atoms.
+  */
+  public Molecule getFragment(int k)
+  {
+    Molecule fragmol = new Molecule();
+    fragmol.setDim(mol.getDim());
+    MolAtom[] atoms = new MolAtom[n_atoms];
+    for (int i=0;i<n_atoms;++i)
+    {
+      if (frag[i]!=k) continue;
+      atoms[i]=mol.getAtom(i).cloneAtom();
+      fragmol.add(atoms[i]);
+    }
+    for (int j=0;j<n_bonds;++j)
+    {
+      if (jbond[j] || atoms[bond_a1[j]]==null) continue;
+      fragmol.add(mol.getBond(j).cloneBond(atoms[bond_a1[j]],atoms[bond_a2[j]]));
+    }
+    for (int j=0;j<n_bonds;++j)
+    {
+      if (!jbond[j]) continue;
+      MolAtom a_in=((atoms[bond_a1[j]]!=null)?atoms[bond_a1[j]]:atoms[bond_a2[j]]);
+      if (a_in==null) continue;
+      MolBond bond=mol.getBond(j);
+      MolAtom ja = new MolAtom(MolAtom.PSEUDO);
+      ja.setAliasstr("J");
+      fragmol.add(ja);
+      MolBond b_new = new MolBond(ja,a_in,bond.getType());
+      b_new.setSetSeq(bond.getSetSeq());
+      fragmol.add(b_new);
+    }
+    return fragmol;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Linkers, side-chains removed, deduplicated by canonical smiles.
+  */
+  public ArrayList<Linker> getLinkers()
+    throws SearchException,MolFormatException,MolExportException,IOException
+  {
+    ArrayList<Linker> links = new ArrayList<Linker>();
+    HashSet<String> usmis = new HashSet<String>();
+    for (int k=0;k<n_frags;++k)
+    {
+      if (fragtype[k]!=LINKER) continue;
+      Linker newlink = new Linker(this.getFragment(k));
+      if (usmis.add(newlink.getCansmi())) links.add(newlink);
+    }
+    return links;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Side-chains, deduplicated by canonical smiles.
+  */
+  public ArrayList<Sidechain> getSidechains()
+    throws SearchException,MolFormatException,MolExportException,IOException
+  {
+    ArrayList<Sidechain> chains = new ArrayList<Sidechain>();
+    HashSet<String> usmis = new HashSet<String>();
+    for (int k=0;k<n_frags;++k)
+    {
+      if (fragtype[k]!=SIDECHAIN) continue;
+      Sidechain newchain = new Sidechain(this.getFragment(k));
+      if (usmis.add(newchain.getCansmi())) chains.add(newchain);
+    }
+    return chains;
+  }
+}
@@ -0,0 +1,79 @@
+package edu.unm.health.biocomp.hscaf;
+
+/**	Immutable HierS perception configuration: stereo and
+	keep_nitro_attachments flags, and the JChem export formats which
+	depend on them, computed once.  Formerly formats were static fields
+	of Scaffold, BMScaffold and ScaffoldTree, appended with "+0" by each
+	non-stereo construction, so they grew without bound, and stereo and
+	non-stereo objects could not coexist in one JVM (e.g. servlet).
+	One shared instance per flag combination (see of()), so held by
+	reference in every Scaffold at no cost, and safe to share among
+	threads.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.Scaffold
+	@see edu.unm.health.biocomp.hscaf.ScaffoldTree
+	@author Jeremy J Yang
+*/
+public final class HScafConfig
+{
+  /** canonical smiles, non-stereo (Scaffold.CANSMIFMT) */
+  private static final String CANSMIFMT="cxsmiles:u-L-l-e-d-D-p-R-f-w-H+a_gen+0";
+  /** canonical smiles, stereo (Scaffold.CANSMIFMT_STEREO) */
+  private static final String CANSMIFMT_STEREO="cxsmiles:u-L-l-e-d-D-p-R-f-w-H+a_gen";
+  /** Kekule smiles, for getSmi() */
+  private static final String SMIFMT="cxsmiles:u-L-l-e-d-D-p-R-f-w-a";
+  /** cxsmiles with junction pseudo-atoms, for getJsmi() */
+  private static final String CXSMIFMT="cxsmiles:+L+l+e+d+D+p+R+f+w";
+
+  private static final HScafConfig[] INSTANCES = {
+	new HScafConfig(false,false),
+	new HScafConfig(false,true),
+	new HScafConfig(true,false),
+	new HScafConfig(true,true) };
+
+  /** Default: non-stereo, no nitrogen attachments. */
+  public static final HScafConfig DEFAULT=INSTANCES[0];
+
+  private final boolean stereo;
+  private final boolean keep_nitro_attachments;
+  private final String cansmifmt;
+  private final String smifmt;
+  private final String cxsmifmt;
+
+  /////////////////////////////////////////////////////////////////////////////
+  private HScafConfig(boolean stereo,boolean keep_nitro_attachments)
+  {
+    this.stereo=stereo;
+    this.keep_nitro_attachments=keep_nitro_attachments;
+    this.cansmifmt=(stereo?CANSMIFMT_STEREO:CANSMIFMT);
+    this.smifmt=SMIFMT+(stereo?"":"+0");
+    this.cxsmifmt=CXSMIFMT+(stereo?"":"+0");
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Configuration for flags (shared instance).
+  */
+  public static HScafConfig of(boolean stereo,boolean keep_nitro_attachments)
+  {
+    return INSTANCES[(stereo?2:0)+(keep_nitro_attachments?1:0)];
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  public boolean isStereo() { return this.stereo; }
+  public boolean isKeep_nitro_attachments() { return this.keep_nitro_attachments; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Format for canonical smiles (equality, identifier).
+  */
+  public String getCansmiFormat() { return this.cansmifmt; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Format for Kekule smiles (export).
+  */
+  public String getSmiFormat() { return this.smifmt; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Format for cxsmiles with junction pseudo-atoms.
+  */
+  public String getCxsmiFormat() { return this.cxsmifmt; }
+  /////////////////////////////////////////////////////////////////////////////
+  public String toString()
+  {
+    return ("stereo="+this.stereo+",keep_nitro_attachments="+this.keep_nitro_attachments);
+  }
+}
@@ -0,0 +1,269 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+
+import chemaxon.struc.*;
+
+/**	Compact graph of a scaffold for junction bond cutting, used by
+	hscaf_utils.findChildScaffolds().  Adjacency is held in int arrays,
+	built once per scaffold, and the two parts resulting from each cut
+	are found as BitSet atom masks, without cloning the molecule.
+	Parts with no ring (bonds &lt; atoms) cannot be scaffolds and are
+	discarded at this level.  Only surviving parts become Molecules,
+	built by copying their atoms and bonds in original index order (so
+	atom parities remain valid), plus one junction hydrogen at the cut,
+	exactly as produced by cloning, cutting and convertToFrags().
+	<br>
+	Since junction bonds are acyclic, each cut yields two distinct masks,
+	and parts are returned in the same order as convertToFrags(), that is,
+	by lowest atom index.
+	<br>
+	Given the root scaffold atom index of each atom (parts keep atom
+	order, so indexes carry down the hierarchy), each part has a key:
+	its non-hydrogen atoms, as root atom indexes.  Every part in the
+	tree is the root subgraph on its key atoms, plus a junction hydrogen
+	for each root bond leaving it (and root junction hydrogens), since
+	side chain removal finds nothing more to remove after a cut.  So
+	parts with the same key, reached by different cut orders, are the
+	same scaffold, which can be recognized before it is built.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.hscaf_utils
+	@author Jeremy J Yang
+*/
+public class JunctionGraph
+{
+  private Molecule mol;
+  private int n_atoms;
+  private int n_bonds;
+  private int[] atno;
+  private int[] bond_a1;
+  private int[] bond_a2;
+  /** neighbor atoms, and connecting bonds, for each atom */
+  private int[][] nbrs;
+  private int[][] nbr_bonds;
+  /** scratch for BFS */
+  private int[] queue;
+  /** root scaffold atom index of each atom, or null if unknown */
+  private int[] rootidx;
+  /////////////////////////////////////////////////////////////////////////////
+  private JunctionGraph() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Builds adjacency for molecule, which is not modified.
+  */
+  public JunctionGraph(Molecule mol)
+  {
+    this(mol,null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, for part keys.
+	@param rootidx root scaffold atom index of each atom, or null
+  */
+  public JunctionGraph(Molecule mol,int[] rootidx)
+  {
+    this.mol=mol;
+    this.rootidx=rootidx;
+    this.n_atoms=mol.getAtomCount();
+    this.n_bonds=mol.getBondCount();
+    this.atno = new int[n_atoms];
+    for (int i=0;i<n_atoms;++i) atno[i]=mol.getAtom(i).getAtno();
+    this.bond_a1 = new int[n_bonds];
+    this.bond_a2 = new int[n_bonds];
+    int[] degree = new int[n_atoms];
+    for (int j=0;j<n_bonds;++j)
+    {
+      MolBond bond=mol.getBond(j);
+      bond_a1[j]=mol.indexOf(bond.getAtom1());
+      bond_a2[j]=mol.indexOf(bond.getAtom2());
+      ++degree[bond_a1[j]];
+      ++degree[bond_a2[j]];
+    }
+    this.nbrs = new int[n_atoms][];
+    this.nbr_bonds = new int[n_atoms][];
+    for (int i=0;i<n_atoms;++i)
+    {
+      nbrs[i] = new int[degree[i]];
+      nbr_bonds[i] = new int[degree[i]];
+      degree[i]=0;
+    }
+    for (int j=0;j<n_bonds;++j)
+    {
+      int a1=bond_a1[j];
+      int a2=bond_a2[j];
+      nbrs[a1][degree[a1]]=a2; nbr_bonds[a1][degree[a1]++]=j;
+      nbrs[a2][degree[a2]]=a1; nbr_bonds[a2][degree[a2]++]=j;
+    }
+    this.queue = new int[n_atoms];
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Returns indexes of junction bonds which may be cut, i.e.
+	tagged (setSetSeq() &gt; 0) and not to junction hydrogens.
+  */
+  public int[] getCuttableJunctionBonds()
+  {
+    int n=0;
+    int[] bidxs = new int[n_bonds];
+    for (int j=0;j<n_bonds;++j)
+    {
+      if (mol.getBond(j).getSetSeq()<=0) continue;
+      if (atno[bond_a1[j]]==1 || atno[bond_a2[j]]==1) continue; //junction-atoms
+      bidxs[n++]=j;
+    }
+    return Arrays.copyOf(bidxs,n);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Cuts junction bond, returning the resulting parts which contain a
+	ring, as new Molecules, each with a junction hydrogen at the cut.
+	@param bidx index of junction bond
+	@return 0-2 parts, ordered by lowest atom index
+  */
+  public ArrayList<Molecule> cut(int bidx)
+  {
+    ArrayList<Molecule> parts = new ArrayList<Molecule>(2);
+    for (Part part: this.cutParts(bidx)) parts.add(part.getMolecule());
+    return parts;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As cut(), but parts are keyed and built on demand, so a part
+	already known by key need not be built.
+	@param bidx index of junction bond
+	@return 0-2 parts, ordered by lowest atom index
+  */
+  public ArrayList<Part> cutParts(int bidx)
+  {
+    ArrayList<Part> parts = new ArrayList<Part>(2);
+    BitSet mask1=component(bond_a1[bidx],bidx);
+    BitSet mask2 = new BitSet(n_atoms);
+    mask2.set(0,n_atoms);
+    mask2.andNot(mask1);
+    int a1=bond_a1[bidx];
+    int a2=bond_a2[bidx];
+    if (mask2.nextSetBit(0)<mask1.nextSetBit(0))
+    {
+      BitSet tmp=mask1; mask1=mask2; mask2=tmp;
+      int atmp=a1; a1=a2; a2=atmp;
+    }
+    if (hasRing(mask1,bidx)) parts.add(new Part(mask1,a1,bidx));
+    if (hasRing(mask2,bidx)) parts.add(new Part(mask2,a2,bidx));
+    return parts;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Root atom indexes for root scaffold (identity).
+  */
+  public static int[] rootIndexes(Molecule rootmol)
+  {
+    int[] idx = new int[rootmol.getAtomCount()];
+    for (int i=0;i<idx.length;++i) idx[i]=i;
+    return idx;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	One part of a cut, built as Molecule on demand.
+  */
+  public class Part
+  {
+    private BitSet mask;
+    private int aidx_cut;
+    private int bidx;
+    private Part(BitSet mask,int aidx_cut,int bidx)
+    {
+      this.mask=mask;
+      this.aidx_cut=aidx_cut;
+      this.bidx=bidx;
+    }
+    /**	Non-hydrogen atoms as root atom indexes; null if root indexes
+	unknown.  Parts with equal keys are the same scaffold.
+    */
+    public BitSet getKey()
+    {
+      if (rootidx==null) return null;
+      BitSet key = new BitSet();
+      for (int i=mask.nextSetBit(0);i>=0;i=mask.nextSetBit(i+1))
+        if (atno[i]!=1) key.set(rootidx[i]);
+      return key;
+    }
+    /**	Root atom index of each atom of getMolecule(), -1 for the new
+	junction hydrogen; null if root indexes unknown.
+    */
+    public int[] getRootIndexes()
+    {
+      if (rootidx==null) return null;
+      int[] idx = new int[mask.cardinality()+1];
+      int k=0;
+      for (int i=mask.nextSetBit(0);i>=0;i=mask.nextSetBit(i+1)) idx[k++]=rootidx[i];
+      idx[k]=-1;
+      return idx;
+    }
+    public Molecule getMolecule()
+    {
+      return extract(mask,aidx_cut,bidx);
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Atoms connected to atom, not via bond bidx (BFS).
+  */
+  private BitSet component(int aidx,int bidx)
+  {
+    BitSet mask = new BitSet(n_atoms);
+    int head=0;
+    int tail=0;
+    queue[tail++]=aidx;
+    mask.set(aidx);
+    while (head<tail)
+    {
+      int i=queue[head++];
+      for (int k=0;k<nbrs[i].length;++k)
+      {
+        if (nbr_bonds[i][k]==bidx) continue;
+        int nbr=nbrs[i][k];
+        if (mask.get(nbr)) continue;
+        mask.set(nbr);
+        queue[tail++]=nbr;
+      }
+    }
+    return mask;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	True if connected part has a ring, i.e. bonds &ge; atoms.
+  */
+  private boolean hasRing(BitSet mask,int bidx)
+  {
+    int n_a=0;
+    int n_b2=0; //each bond counted twice
+    for (int i=mask.nextSetBit(0);i>=0;i=mask.nextSetBit(i+1))
+    {
+      ++n_a;
+      for (int k=0;k<nbrs[i].length;++k)
+        if (nbr_bonds[i][k]!=bidx && mask.get(nbrs[i][k])) ++n_b2;
+    }
+    return (n_b2/2>=n_a);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	New Molecule of masked atoms and bonds between them, in original
+	order, plus junction hydrogen at cut atom, bonded as the cut bond.
+  */
+  private Molecule extract(BitSet mask,int aidx_cut,int bidx)
+  {
+    Molecule part = new Molecule();
+    part.setDim(mol.getDim());
+    MolAtom[] atoms = new MolAtom[n_atoms];
+    for (int i=mask.nextSetBit(0);i>=0;i=mask.nextSetBit(i+1))
+    {
+      atoms[i]=mol.getAtom(i).cloneAtom();
+      part.add(atoms[i]);
+    }
+    for (int j=0;j<n_bonds;++j)
+    {
+      if (j==bidx || atoms[bond_a1[j]]==null || atoms[bond_a2[j]]==null) continue;
+      MolBond bond=mol.getBond(j);
+      MolBond bond_new=bond.cloneBond(atoms[bond_a1[j]],atoms[bond_a2[j]]);
+      bond_new.setSetSeq(bond.getSetSeq());
+      part.add(bond_new);
+    }
+    MolBond jbond=mol.getBond(bidx);
+    MolAtom h_new = new MolAtom(1);
+    part.add(h_new);
+    MolBond b_new = new MolBond(h_new,atoms[aidx_cut],jbond.getType());
+    part.add(b_new);
+    b_new.setSetSeq(jbond.getSetSeq());
+    return part;
+  }
+}
@@ -81,38 +81,22 @@ public class Linker extends Molecule
   }
   ///////////////////////////////////////////////////////////////////////////
   /**   Removes side-chains from linker, retains only shortest path and atoms multiply
-        bonded to shortest path. Must avoid matching pseudo-atoms: "[*] |$p_J$|".
-        (But cxsmarts cannot represent the negation of a pseudo-atom!?)
-        Kludge: First attach "protecting ring" say *1**1 at each pseudoatom
-        to prevent deletion.  Then run rmSideChains().  Then delete protecting ring.
+        bonded to shortest path.  Junction pseudo-atoms are pinned, so not
+        removed, and treated as if protected by a ring (formerly done by
+        attaching a "protecting ring" *1**1 at each, for the SMARTS).
+	@return degree, number of junctions
   */
   private static int pruneLinker(Molecule mol)
-    throws SearchException,MolFormatException,MolExportException
   {
     int degree=0;
-    for (MolAtom atom: mol.getAtomArray())
+    boolean[] pinned = new boolean[mol.getAtomCount()];
+    for (int i=0;i<pinned.length;++i)
     {
-      if (atom.getAtno()==MolAtom.PSEUDO)
-      {
-        MolAtom pa1 = new MolAtom(MolAtom.PSEUDO);
-        MolAtom pa2 = new MolAtom(MolAtom.PSEUDO);
-        mol.add(pa1);
-        mol.add(pa2);
-        mol.add(new MolBond(pa1,atom));
-        mol.add(new MolBond(pa2,atom));
-        mol.add(new MolBond(pa1,pa2));
-      }
+      if (mol.getAtom(i).getAtno()!=MolAtom.PSEUDO) continue;
+      pinned[i]=true;
       ++degree;
     }
-    int n_del=hscaf_utils.rmSideChains(mol,false);
-    ArrayList<MolAtom> atoms = new ArrayList<MolAtom>();
-    for (MolAtom atom: mol.getAtomArray())
-    {
-      if (atom.getAtno()==MolAtom.PSEUDO && atom.getBondCount()==2)
-        atoms.add(atom);
-    }
-    for (MolAtom atom: atoms)
-      mol.removeAtom(atom,MoleculeGraph.RMCLEANUP_EDGES);
+    SideChainPruner.pruneAcyclic(mol,pinned);
     return degree;
   }
   ///////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,126 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+
+import chemaxon.struc.*;
+
+/**	Ring perception for one molecule, computed once and shared by the
+	pre-filters (ring system count), junction tagging and Scaffold
+	construction, in place of repeated getSSSR() calls and the cloning
+	ring system count.  SSSR atoms and bonds, ring membership bitsets,
+	ring systems (components of ring atoms by ring bonds), and junction
+	candidates (acyclic bonds at or next to a ring atom).
+	<br>
+	Valid for the molecule, or a copy with the same atom and bond
+	order (e.g. by cloneMolecule()), while atoms and bonds are not added or
+	removed.  Setting bond tags, aromatizing and dearomatizing do not
+	change ring membership.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.hier_scaffolds_utils#RawRingsystemCount(Molecule)
+	@see edu.unm.health.biocomp.hscaf.SideChainPruner
+	@author Jeremy J Yang
+*/
+public class RingContext
+{
+  private int n_atoms;
+  private int n_bonds;
+  private int[][] sssr;
+  private BitSet ringatoms;
+  private BitSet ringbonds;
+  /** ring system of each atom, -1 if not ring atom */
+  private int[] ringsys;
+  private int n_ringsys;
+  private int n_junc_cands;
+
+  /////////////////////////////////////////////////////////////////////////////
+  private RingContext() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Perceives rings of molecule, which is not modified.
+  */
+  public RingContext(Molecule mol)
+  {
+    this.n_atoms=mol.getAtomCount();
+    this.n_bonds=mol.getBondCount();
+    this.sssr=mol.getSSSR();
+    this.ringatoms = new BitSet(n_atoms);
+    for (int[] ring: sssr)
+      for (int i: ring) ringatoms.set(i);
+    this.ringbonds = new BitSet(n_bonds);
+    for (int[] rbonds: mol.getSSSRBonds())
+      for (int j: rbonds) ringbonds.set(j);
+    // Ring systems: union-find over ring bonds.
+    int[] parent = new int[n_atoms];
+    for (int i=0;i<n_atoms;++i) parent[i]=i;
+    int[] bond_a1 = new int[n_bonds];
+    int[] bond_a2 = new int[n_bonds];
+    for (int j=0;j<n_bonds;++j)
+    {
+      MolBond bond=mol.getBond(j);
+      bond_a1[j]=mol.indexOf(bond.getAtom1());
+      bond_a2[j]=mol.indexOf(bond.getAtom2());
+      if (!ringbonds.get(j)) continue;
+      int r1=find(parent,bond_a1[j]);
+      int r2=find(parent,bond_a2[j]);
+      if (r1!=r2) parent[r2]=r1;
+    }
+    this.ringsys = new int[n_atoms];
+    Arrays.fill(ringsys,-1);
+    int[] root2sys = new int[n_atoms];
+    Arrays.fill(root2sys,-1);
+    this.n_ringsys=0;
+    for (int i=ringatoms.nextSetBit(0);i>=0;i=ringatoms.nextSetBit(i+1))
+    {
+      int r=find(parent,i);
+      if (root2sys[r]<0) root2sys[r]=n_ringsys++;
+      ringsys[i]=root2sys[r];
+    }
+    // Junction candidates: acyclic bonds with an end at or next to a ring atom.
+    boolean[] nearring = new boolean[n_atoms];
+    for (int j=0;j<n_bonds;++j)
+    {
+      if (ringatoms.get(bond_a1[j])) nearring[bond_a2[j]]=true;
+      if (ringatoms.get(bond_a2[j])) nearring[bond_a1[j]]=true;
+    }
+    this.n_junc_cands=0;
+    for (int j=0;j<n_bonds;++j)
+    {
+      if (ringbonds.get(j)) continue;
+      if (nearring[bond_a1[j]] || nearring[bond_a2[j]]) ++n_junc_cands;
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static int find(int[] parent,int i)
+  {
+    while (parent[i]!=i) { parent[i]=parent[parent[i]]; i=parent[i]; }
+    return i;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	True if context applies to molecule (same atom and bond counts;
+	caller ensures same order).
+  */
+  public boolean isFor(Molecule mol)
+  {
+    return (mol.getAtomCount()==this.n_atoms && mol.getBondCount()==this.n_bonds);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	SSSR as atom indexes, as MoleculeGraph.getSSSR(); not to be modified.
+  */
+  public int[][] getSSSR() { return this.sssr; }
+  public int getRingCount() { return this.sssr.length; }
+  public boolean isRingAtom(int i) { return this.ringatoms.get(i); }
+  public boolean isRingBond(int j) { return this.ringbonds.get(j); }
+  public int getRingAtomCount() { return this.ringatoms.cardinality(); }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Count of ring systems, as hier_scaffolds_utils.RawRingsystemCount().
+  */
+  public int getRingsystemCount() { return this.n_ringsys; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Ring system of atom, -1 if not ring atom.
+  */
+  public int getRingsystem(int i) { return this.ringsys[i]; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Count of acyclic bonds at or next to a ring atom; every junction
+	is among these, so none means no junctions.
+  */
+  public int getJunctionCandidateCount() { return this.n_junc_cands; }
+}
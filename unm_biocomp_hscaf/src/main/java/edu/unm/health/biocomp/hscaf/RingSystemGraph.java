@@ -0,0 +1,262 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+
+import chemaxon.formats.*;
+import chemaxon.struc.*;
+
+/**	Reduced graph of a root scaffold for HierS enumeration of molecules
+	with many ring systems ("pathological" molecules), for which the
+	bond-cutting recursion explodes, since the same sub-scaffold is
+	reached via many cut orders.
+	<br>
+	Removing all cuttable junction bonds from the root scaffold leaves
+	components: ring systems (units, which cannot be split) and linkers.
+	Since junction bonds are acyclic, components and junction bonds form
+	a tree.  Each scaffold in the hierarchy corresponds to a connected
+	subset of units, plus the linkers between them.  Child scaffolds of
+	a scaffold are found by cutting each junction bond within its
+	component subtree, and keeping sides with one or more units.  As with
+	JunctionGraph.cutParts(), linker components on each side are kept,
+	since the junction hydrogen at the cut keeps the linker end atom from
+	being a side chain.  Sides are deduplicated by component bitmask, so
+	each unique subset becomes a Scaffold only once per tree, regardless
+	of how many cut orders reach it.
+	<br>
+	Parts are built from root scaffold atoms and bonds in original index
+	order, with a junction hydrogen at each cut, and returned in the
+	same order as by JunctionGraph.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.JunctionGraph
+	@see edu.unm.health.biocomp.hscaf.hscaf_utils
+	@see edu.unm.health.biocomp.hscaf.hier_scaffolds_utils#RawRingsystemCount(Molecule)
+	@author Jeremy J Yang
+*/
+public class RingSystemGraph
+{
+  private Molecule mol;
+  /** parts are cut from root, so carry its aromaticity */
+  private Scaffold rootscaf;
+  private int n_atoms;
+  private int n_bonds;
+  private int[] bond_a1;
+  private int[] bond_a2;
+  /** cuttable junction bond indexes, ascending */
+  private int[] jbonds;
+  /** component of each atom */
+  private int[] comp;
+  private int n_comps;
+  /** true if component has ring (unit) */
+  private boolean[] comp_unit;
+  private int n_units;
+  /** lowest atom index in component */
+  private int[] comp_minatom;
+  /** component subset of each Scaffold found by this graph */
+  private IdentityHashMap<Scaffold,BitSet> compsets;
+  /** Scaffold for each component subset */
+  private HashMap<BitSet,Scaffold> sidesets;
+  private int n_dedup=0;
+  /////////////////////////////////////////////////////////////////////////////
+  private RingSystemGraph() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Builds reduced graph for root scaffold, with junctions tagged,
+	which is not modified.
+  */
+  public RingSystemGraph(Scaffold rootscaf)
+  {
+    this.mol=rootscaf;
+    this.rootscaf=rootscaf;
+    this.n_atoms=mol.getAtomCount();
+    this.n_bonds=mol.getBondCount();
+    this.bond_a1 = new int[n_bonds];
+    this.bond_a2 = new int[n_bonds];
+    int[] jb = new int[n_bonds];
+    int n_jb=0;
+    // Union-find over non-junction bonds.
+    int[] parent = new int[n_atoms];
+    for (int i=0;i<n_atoms;++i) parent[i]=i;
+    int[] n_ringbonds = new int[n_atoms]; //bonds-atoms+1 per comp, from union-find
+    for (int j=0;j<n_bonds;++j)
+    {
+      MolBond bond=mol.getBond(j);
+      int a1=mol.indexOf(bond.getAtom1());
+      int a2=mol.indexOf(bond.getAtom2());
+      bond_a1[j]=a1;
+      bond_a2[j]=a2;
+      if (bond.getSetSeq()>0 && mol.getAtom(a1).getAtno()!=1 && mol.getAtom(a2).getAtno()!=1)
+      {
+        jb[n_jb++]=j;
+        continue;
+      }
+      int r1=find(parent,a1);
+      int r2=find(parent,a2);
+      if (r1==r2) ++n_ringbonds[r1]; //closes a ring
+      else
+      {
+        parent[r2]=r1;
+        n_ringbonds[r1]+=n_ringbonds[r2];
+      }
+    }
+    this.jbonds=Arrays.copyOf(jb,n_jb);
+    this.comp = new int[n_atoms];
+    int[] root2comp = new int[n_atoms];
+    Arrays.fill(root2comp,-1);
+    this.n_comps=0;
+    for (int i=0;i<n_atoms;++i)
+    {
+      int r=find(parent,i);
+      if (root2comp[r]<0) root2comp[r]=n_comps++;
+      comp[i]=root2comp[r];
+    }
+    this.comp_unit = new boolean[n_comps];
+    this.comp_minatom = new int[n_comps];
+    Arrays.fill(comp_minatom,-1);
+    this.n_units=0;
+    for (int i=0;i<n_atoms;++i)
+    {
+      int c=comp[i];
+      if (comp_minatom[c]<0)
+      {
+        comp_minatom[c]=i;
+        comp_unit[c]=(n_ringbonds[find(parent,i)]>0);
+        if (comp_unit[c]) ++n_units;
+      }
+    }
+    this.compsets = new IdentityHashMap<Scaffold,BitSet>();
+    this.sidesets = new HashMap<BitSet,Scaffold>();
+    BitSet all = new BitSet(n_comps);
+    all.set(0,n_comps);
+    compsets.put(rootscaf,all);
+    sidesets.put(all,rootscaf);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static int find(int[] parent,int i)
+  {
+    while (parent[i]!=i) { parent[i]=parent[parent[i]]; i=parent[i]; }
+    return i;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Number of units (ring systems inseparable by junction cuts).
+  */
+  public int getUnitCount() { return this.n_units; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Number of cut sides found again via component bitmask, i.e. not
+	rebuilt as Scaffolds.
+  */
+  public int getDedupCount() { return this.n_dedup; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Child scaffold candidates of scaffold, which must be the root or a
+	candidate previously returned by this method.  Candidates for
+	component subsets already seen are the same instances as before.
+	Each candidate has the same atoms, bonds and junction hydrogens as
+	the corresponding part from JunctionGraph.cutParts(), though not in
+	the same atom order.
+	@return candidates, by junction bond, then by lowest atom index
+  */
+  public ArrayList<Scaffold> cut(Scaffold scaf)
+    throws MolFormatException
+  {
+    ArrayList<Scaffold> cscafs = new ArrayList<Scaffold>();
+    BitSet cs=compsets.get(scaf);
+    if (cs==null) return cscafs; //not from this graph
+    for (int j: jbonds)
+    {
+      int c1=comp[bond_a1[j]];
+      int c2=comp[bond_a2[j]];
+      if (c1==c2 || !cs.get(c1) || !cs.get(c2)) continue;
+      BitSet side1=side(cs,c1,j);
+      BitSet side2=(BitSet)cs.clone();
+      side2.andNot(side1);
+      if (comp_minatom[side2.nextSetBit(0)]<comp_minatom[side1.nextSetBit(0)])
+      {
+        BitSet tmp=side1; side1=side2; side2=tmp;
+      }
+      for (BitSet side: new BitSet[]{side1,side2})
+      {
+        if (units(side).isEmpty()) continue; //no rings
+        Scaffold cscaf=sidesets.get(side);
+        if (cscaf!=null)
+        {
+          ++n_dedup;
+        }
+        else
+        {
+          cscaf=Scaffold.fromPart(extract(side),rootscaf); //aromaticity carried, flags as root
+          sidesets.put(side,cscaf);
+          compsets.put(cscaf,side);
+        }
+        cscafs.add(cscaf);
+      }
+    }
+    return cscafs;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Components in cs connected to c, not via junction bond jx.
+  */
+  private BitSet side(BitSet cs,int c,int jx)
+  {
+    BitSet side = new BitSet(n_comps);
+    side.set(c);
+    boolean grown=true;
+    while (grown)
+    {
+      grown=false;
+      for (int j: jbonds)
+      {
+        if (j==jx) continue;
+        int c1=comp[bond_a1[j]];
+        int c2=comp[bond_a2[j]];
+        if (!cs.get(c1) || !cs.get(c2)) continue;
+        if (side.get(c1)!=side.get(c2)) { side.set(c1); side.set(c2); grown=true; }
+      }
+    }
+    return side;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private BitSet units(BitSet cs)
+  {
+    BitSet us = new BitSet(n_comps);
+    for (int c=cs.nextSetBit(0);c>=0;c=cs.nextSetBit(c+1))
+      if (comp_unit[c]) us.set(c);
+    return us;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	New Molecule of atoms in components, bonds between them, in
+	original order, plus junction hydrogens at junction bonds to atoms
+	outside, bonded as the junction bond.
+  */
+  private Molecule extract(BitSet cs)
+  {
+    Molecule part = new Molecule();
+    part.setDim(mol.getDim());
+    MolAtom[] atoms = new MolAtom[n_atoms];
+    for (int i=0;i<n_atoms;++i)
+    {
+      if (!cs.get(comp[i])) continue;
+      atoms[i]=mol.getAtom(i).cloneAtom();
+      part.add(atoms[i]);
+    }
+    for (int j=0;j<n_bonds;++j)
+    {
+      if (atoms[bond_a1[j]]==null || atoms[bond_a2[j]]==null) continue;
+      MolBond bond=mol.getBond(j);
+      MolBond bond_new=bond.cloneBond(atoms[bond_a1[j]],atoms[bond_a2[j]]);
+      bond_new.setSetSeq(bond.getSetSeq());
+      part.add(bond_new);
+    }
+    for (int j: jbonds)
+    {
+      MolAtom a_in;
+      if (atoms[bond_a1[j]]!=null && atoms[bond_a2[j]]==null) a_in=atoms[bond_a1[j]];
+      else if (atoms[bond_a1[j]]==null && atoms[bond_a2[j]]!=null) a_in=atoms[bond_a2[j]];
+      else continue;
+      MolBond jbond=mol.getBond(j);
+      MolAtom h_new = new MolAtom(1);
+      part.add(h_new);
+      MolBond b_new = new MolBond(h_new,a_in,jbond.getType());
+      part.add(b_new);
+      b_new.setSetSeq(jbond.getSetSeq());
+    }
+    return part;
+  }
+}
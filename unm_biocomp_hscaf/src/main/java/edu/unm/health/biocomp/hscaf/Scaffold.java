@@ -39,24 +39,27 @@ public class Scaffold extends Molecule implements Comparable<Object>
       E.g. cansmi=MolExporter.exportToFormat(mol,Scaffold.CANSMIFMT_STEREO)
   */
   public static final String CANSMIFMT_STEREO="cxsmiles:u-L-l-e-d-D-p-R-f-w-H+a_gen";
-  /** JChem format used for getSmi() */
-  private static String smifmt="cxsmiles:u-L-l-e-d-D-p-R-f-w-a";
-  /** JChem format used for getJsmi() */
-  private static String cxsmifmt="cxsmiles:+L+l+e+d+D+p+R+f+w";
+  /** canonical keys of benzene, aromatic and Kekule, for isLegal() */
+  private static final String BENZENE_KEY=benzeneKey("c1ccccc1");
+  private static final String BENZENE_KEKULE_KEY=benzeneKey("C1=CC=CC=C1");
   /** parent scaffold in hierarchy for molecule[s] */
   private Scaffold parentscaf;
   /** child scaffold[s] in hierarchy for molecule[s] */
   private ArrayList<Scaffold> childscafs;
-  /** canonical smiles used for equality comparison */
+  /** canonical smiles, for output */
   private String cansmi;
+  /** canonical key used for equality comparison */
+  private String key;
   /** Kekule smiles (good for export) */
   private String smi;
   /** unique ID for dataset scope */
   private Long id;
-  /** flag applies to scaf and all children */
-  private boolean keep_nitro_attachments;
-  /** flag applies to scaf and all children */
-  private boolean stereo;
+  /** stereo and keep_nitro_attachments flags, and export formats; applies to scaf and all children */
+  private HScafConfig config=HScafConfig.DEFAULT;
+  /** aromaticity perceived (AROM_GENERAL) by constructor, or carried from such a parent */
+  private boolean aromatic=false;
+  /** root scaffold atom index of each atom, during perception, for part keys */
+  private int[] rootidx=null;
   /////////////////////////////////////////////////////////////////////////////
   private Scaffold() {} //disallow default constructor
   /////////////////////////////////////////////////////////////////////////////
@@ -67,20 +70,32 @@ public class Scaffold extends Molecule implements Comparable<Object>
   public Scaffold(Molecule mol,boolean stereo,boolean keep_nitro_attachments)
     throws MolFormatException
   {
-    if (!stereo)
-    {
-      this.smifmt+="+0"; //non-stereo
-      this.cxsmifmt+="+0"; //non-stereo
-    }
+    this(mol,stereo,keep_nitro_attachments,null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with ring perception for molecule already done (null
+	to perceive), shared with side chain removal.
+  */
+  public Scaffold(Molecule mol,boolean stereo,boolean keep_nitro_attachments,RingContext ringctx)
+    throws MolFormatException
+  {
+    this(mol,HScafConfig.of(stereo,keep_nitro_attachments),ringctx);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with configuration (flags and formats).
+  */
+  public Scaffold(Molecule mol,HScafConfig config,RingContext ringctx)
+    throws MolFormatException
+  {
     this.parentscaf=null;
     this.id=0L;
     this.childscafs=null;
     this.cansmi=null; // Lazily evaluated
+    this.key=null; // Lazily evaluated
     this.smi=null; // Lazily evaluated
-    this.keep_nitro_attachments=keep_nitro_attachments;
-    this.stereo=stereo;
-    int [][] sssr = mol.getSSSR();
-    boolean ok=(sssr.length>0);
+    this.config=config;
+    if (ringctx==null || !ringctx.isFor(mol)) ringctx = new RingContext(mol);
+    boolean ok=(ringctx.getRingCount()>0);
 
     if (ok)
     {
@@ -91,8 +106,9 @@ public class Scaffold extends Molecule implements Comparable<Object>
     }
     if (ok)
     {
-      hscaf_utils.rmSideChains(this,keep_nitro_attachments);
+      hscaf_utils.rmSideChains(this,config.isKeep_nitro_attachments(),ringctx); //same atom order as mol
       this.aromatize(MoleculeGraph.AROM_GENERAL);
+      this.aromatic=true;
     }
 //
 // Kludge: To avoid problem due to bug, where mol is not dearomatize-able, allow
@@ -105,12 +121,90 @@ public class Scaffold extends Molecule implements Comparable<Object>
     //System.err.println("DEBUG: getCansmi(): "+this.getCansmi());
   }
   /////////////////////////////////////////////////////////////////////////////
+  /**	Child scaffold from part cut from parent scaffold at an acyclic
+	junction bond (e.g. by JunctionGraph.cut()), with flags as parent.
+	Cutting acyclic single bonds leaves ring systems, and the electrons
+	their atoms contribute, unchanged, so the parent's AROM_GENERAL
+	aromatic bonds are those of the part, as cansmi (a_gen) would
+	perceive them.  They are carried into the part, and side chains
+	removed, without dearomatize() and aromatize(), and the key is
+	computed on the part as is (see getKey()).  If any cut bond was not
+	single (a junction hydrogen bonded as the cut bond, e.g. a ring atom
+	double bonded to a linker), which may change aromaticity of its ring,
+	or parent aromaticity was not perceived (e.g. dearomatize() failed,
+	or parent from smiles), the part is constructed as usual.
+  */
+  static Scaffold fromPart(Molecule part,Scaffold parentscaf)
+    throws MolFormatException
+  {
+    if (!parentscaf.aromatic || !singleCuts(part))
+      return new Scaffold(part,parentscaf.config,null);
+    Scaffold scaf = new Scaffold();
+    scaf.id=0L;
+    scaf.config=parentscaf.config;
+    RingContext ringctx = new RingContext(part);
+    if (ringctx.getRingCount()>0)
+    {
+      part.clonecopy(scaf);
+      hscaf_utils.rmSideChains(scaf,scaf.config.isKeep_nitro_attachments(),ringctx); //acyclic bonds only
+      scaf.aromatic=true;
+    }
+    return scaf;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	True if all junction hydrogens of part are singly bonded, i.e. all
+	cut bonds were single.
+  */
+  private static boolean singleCuts(Molecule part)
+  {
+    for (int i=0;i<part.getAtomCount();++i)
+    {
+      MolAtom atom=part.getAtom(i);
+      if (atom.getAtno()==1 && atom.getBondCount()==1 && atom.getBond(0).getType()!=1) return false;
+    }
+    return true;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, for part of a JunctionGraph cut, with root atom indexes
+	for cuts of the child.  The parent has no side chains, and the
+	junction hydrogen keeps the atom at the cut, so side chain removal
+	removes no part atoms, and the child's atoms are the part's, in
+	the same order.
+  */
+  static Scaffold fromPart(JunctionGraph.Part part,Scaffold parentscaf)
+    throws MolFormatException
+  {
+    Molecule partmol=part.getMolecule();
+    int n_atoms=partmol.getAtomCount();
+    Scaffold scaf=fromPart(partmol,parentscaf);
+    if (scaf.getAtomCount()!=n_atoms) //root indexes would be wrong; children cut without part keys
+    {
+      System.err.println("ERROR (Scaffold.fromPart): part of "+n_atoms+" atoms pruned to "+scaf.getAtomCount()+".  Should not happen!");
+      return scaf;
+    }
+    scaf.rootidx=part.getRootIndexes();
+    return scaf;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Root scaffold atom indexes, if known (see JunctionGraph).
+  */
+  int[] getRootIndexes() { return this.rootidx; }
+  void setRootIndexes(int[] rootidx) { this.rootidx=rootidx; }
+  /////////////////////////////////////////////////////////////////////////////
   /**   Initialized molecule from smiles and call usual constructor.
   */
   public Scaffold(String smiles,Boolean stereo,Boolean keep_nitro_attachments)
     throws MolFormatException
   {
-    this(new Molecule(),stereo,keep_nitro_attachments);
+    this(smiles,HScafConfig.of(stereo,keep_nitro_attachments));
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**   As above, with configuration (flags and formats).
+  */
+  public Scaffold(String smiles,HScafConfig config)
+    throws MolFormatException
+  {
+    this(new Molecule(),config,null);
     try { MolImporter.importMol(smiles.getBytes(),"smiles:",null,this); }
     catch (MolFormatException e) { } // should not happen!
   }
@@ -121,10 +215,28 @@ public class Scaffold extends Molecule implements Comparable<Object>
   {
     scaf.clonecopy(this);
     this.cansmi=scaf.cansmi;
+    this.key=scaf.key;
     this.smi=scaf.smi;
     this.childscafs=null;
     this.parentscaf=null;
     this.id=scaf.id;
+    this.config=scaf.config;
+    this.aromatic=scaf.aromatic;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Compressed scaffold, as materialized from a ScaffoldNode, or a lazy
+	proxy for a stored scaffold (ScaffoldStore, ScaffoldDB
+	populateScaffoldTree()); molecule reconstructed from cansmi on demand
+	(decompress()).  Key may be null, then computed on demand.
+  */
+  static Scaffold compressed(long id,String cansmi,String key,HScafConfig config)
+  {
+    Scaffold scaf = new Scaffold();
+    scaf.id=id;
+    scaf.cansmi=cansmi;
+    scaf.key=key;
+    scaf.config=config;
+    return scaf;
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	For sorting by size.
@@ -143,19 +255,27 @@ public class Scaffold extends Molecule implements Comparable<Object>
   /////////////////////////////////////////////////////////////////////////////
   public boolean equals(Scaffold scaf2)
   {
-    return (this.getCansmi().equals(scaf2.getCansmi()));
+    return (this.getKey().equals(scaf2.getKey()));
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Reject (1) benzene, and (2) empty scaffolds .
-	Note that benzene is identified by canonical smiles, unfortunately 
-	hard-coded.
+	Note that benzene is identified by canonical key (or canonical
+	smiles, for stereo), unfortunately hard-coded.
   */
   public boolean isLegal()
   {
     if (this.isEmpty()) this.decompress(); // isEmpty() from Molecule
     if (this.getAtomCount()==0) return false;
-    if (this.getCansmi().equals("c1ccccc1")) return false; //benzene disallowed
-    if (this.getCansmi().equals("C1=CC=CC=C1")) return false; //benzene disallowed
+    return isLegalKey(this.getKey());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Legality by key alone, for nonempty scaffold (e.g. cut part with
+	rings), without reading the molecule.
+  */
+  static boolean isLegalKey(String k)
+  {
+    if (k.equals(BENZENE_KEY) || k.equals(BENZENE_KEKULE_KEY)) return false; //benzene disallowed
+    if (k.equals("S:c1ccccc1") || k.equals("S:C1=CC=CC=C1")) return false; //benzene disallowed
     return true;
   }
   /////////////////////////////////////////////////////////////////////////////
@@ -175,6 +295,16 @@ public class Scaffold extends Molecule implements Comparable<Object>
     return true;
   }
   /////////////////////////////////////////////////////////////////////////////
+  /**	Adds child scaffold known legal and unique, as from a ScaffoldStore
+	or ScaffoldDB, or as checked by the caller, with no check, so not
+	decompressed, nor read (it may be shared with other threads).
+  */
+  void addStoredChild(Scaffold scaf2)
+  {
+    if (this.childscafs==null) this.childscafs = new ArrayList<Scaffold>();
+    this.childscafs.add(scaf2);
+  }
+  /////////////////////////////////////////////////////////////////////////////
   public void setParentScaffold(Scaffold scaf2) { this.parentscaf=scaf2; }
   public Scaffold getParentScaffold() { return this.parentscaf; }
   ///////////////////////////////////////////////////////////////////////////
@@ -205,13 +335,46 @@ public class Scaffold extends Molecule implements Comparable<Object>
   {
     if (this.cansmi==null)
     {
-      try { this.cansmi=MolExporter.exportToFormat(this,(this.stereo?this.CANSMIFMT_STEREO:this.CANSMIFMT)); }
+      try { this.cansmi=MolExporter.exportToFormat(this,this.config.getCansmiFormat()); }
       catch (MolExportException e) { System.err.println(e.getMessage()); this.cansmi=""; }
       catch (IOException e) { System.err.println(e.getMessage()); this.cansmi=""; }
     }
     return this.cansmi;
   }
   /////////////////////////////////////////////////////////////////////////////
+  /**	Get canonical key for this scaffold, used for equality comparison
+	and as identifier in ScaffoldSet and ScaffoldStore.  Key is
+	computed natively by CanonicalKey, much faster than cansmi.  For
+	stereo scaffolds, and graphs with too many atoms tied for
+	CanonicalKey (decided independent of atom order, so the same for
+	every instance of a scaffold), key is "S:" plus cansmi.  Lazy
+	evaluation.
+	<br>
+	Key is computed on the same aromatized form as cansmi (format
+	option a_gen), so that scaffolds with the same cansmi have the same
+	key.  Aromaticity perceived by the constructor (AROM_GENERAL), or
+	carried from such a parent (see fromPart()), is that form, so the
+	key is computed on this scaffold.  Only if not perceived (from
+	smiles, or dearomatize() failed) is a copy aromatized for the key.
+  */
+  public String getKey()
+  {
+    if (this.key==null)
+    {
+      this.decompress();
+      Molecule keymol=this;
+      if (!this.config.isStereo() && !this.aromatic)
+      {
+        keymol = new Molecule();
+        this.clonecopy(keymol);
+        keymol.aromatize(MoleculeGraph.AROM_GENERAL); //as cansmi
+      }
+      String k=(this.config.isStereo()?null:CanonicalKey.of(keymol));
+      this.key=((k!=null)?k:("S:"+this.getCansmi()));
+    }
+    return this.key;
+  }
+  /////////////////////////////////////////////////////////////////////////////
   /**	Get Kekule SMILES for this scaffold.  Recommended for export
 	as resulting SMILES will be more universally compatible with
 	other software. Lazy evaluation.
@@ -221,7 +384,7 @@ public class Scaffold extends Molecule implements Comparable<Object>
     if (this.smi==null)
     {
       this.decompress();
-      try { this.smi=MolExporter.exportToFormat(this,this.smifmt); }
+      try { this.smi=MolExporter.exportToFormat(this,this.config.getSmiFormat()); }
       catch (MolExportException e) { System.err.println(e.getMessage()); this.smi=""; }
       catch (IOException e) { System.err.println(e.getMessage()); this.smi=""; }
     }
@@ -238,13 +401,13 @@ public class Scaffold extends Molecule implements Comparable<Object>
     Molecule scafmol=this.cloneMolecule();
     hscaf_utils.replaceJHydrogensWithJPseudoatoms(scafmol);
     String jsmi=null;
-    try { jsmi=MolExporter.exportToFormat(scafmol,cxsmifmt); }
+    try { jsmi=MolExporter.exportToFormat(scafmol,this.config.getCxsmiFormat()); }
     catch (MolExportException e) { jsmi=""; }
     catch (IOException e) { jsmi=""; }
     return jsmi;
   }
   ///////////////////////////////////////////////////////////////////////////
-  /**	This recursive algorithm finds all child scafs.  For each junction bond,
+  /**	This algorithm finds all child scafs, depth-first.  For each junction bond,
 	copy scaffold and cut bond, resulting in two parts which may be valid
 	scaffolds (sidechains have been deleted, but one part may comprise
 	invalid scaffold benzene). Special case is junction bonds to hydrogens,
@@ -252,60 +415,86 @@ public class Scaffold extends Molecule implements Comparable<Object>
 	for each child scafs.  For simple 2-way linkers it is redundant to cut both
 	junctions of a linker, but for (3+)-way linkers this allows enumeration of all
 	combinations.  For each scaffold found, if unique (via canonical smiles),
-	add new child and specify its parentage. If no junction bonds exist,
-	findChildScaffolds() returns null, recursion terminates, and the current
-	scaffold is a leaf.
+	add new child and specify its parentage, then find its child scafs
+	before continuing. If no junction bonds exist, the current scaffold
+	is a leaf.
 	<br>
 	This method does the heavy-lifting.
+	Scaffolds already found anywhere in this tree are recognized via a
+	hash index (key to Scaffold), and parts already built via a hash
+	index of part keys (root atom sets, see JunctionGraph), so the
+	same part reached by another cut order is not built again.
+	Iterative, with an explicit stack of scaffolds being cut, in the
+	same order as recursion.
   */
   public int findChildScaffolds()
     throws SearchException,MolFormatException
   {
+    HashMap<String,Scaffold> scafidx = new HashMap<String,Scaffold>();
+    scafidx.put(this.getKey(),this);
+    IdentityHashMap<Scaffold,Integer> counts = new IdentityHashMap<Scaffold,Integer>();
+    HashMap<BitSet,Scaffold> partidx = new HashMap<BitSet,Scaffold>();
+    this.rootidx=JunctionGraph.rootIndexes(this);
     int n_cscafs=0;
-    for (MolBond bond: this.getBondArray())
+    ArrayDeque<CutFrame> stack = new ArrayDeque<CutFrame>();
+    stack.push(new CutFrame(this));
+    while (!stack.isEmpty())
     {
-      if (bond.getSetSeq()>0)
+      CutFrame frame=stack.peek();
+      Scaffold scaf=frame.scaf;
+      if (frame.parts==null || frame.ip>=frame.parts.size())
       {
-        int bidx=this.indexOf(bond); //Note: bond idxs must be same in mol clone.
-        Molecule scafmol = this.cloneMolecule();
-        MolBond jbond=scafmol.getBond(bidx);
-        MolAtom a1=jbond.getAtom1();
-        MolAtom a2=jbond.getAtom2();
-        if (a1.getAtno()==1 || a2.getAtno()==1) continue; //junction-atoms
-        MolAtom h_new1 = new MolAtom(1);
-        MolAtom h_new2 = new MolAtom(1);
-        scafmol.add(h_new1);
-        scafmol.add(h_new2);
-        MolBond b_new1 = new MolBond(h_new1,a1,jbond.getType());
-        MolBond b_new2 = new MolBond(h_new2,a2,jbond.getType());
-        scafmol.add(b_new1);
-        scafmol.add(b_new2);
-        b_new1.setSetSeq(jbond.getSetSeq());
-        b_new2.setSetSeq(jbond.getSetSeq());
-        scafmol.removeBond(jbond);
-        for (Molecule partmol: scafmol.convertToFrags()) //should be 2
-        {
-          Scaffold cscaf = new Scaffold(partmol,this.keep_nitro_attachments,this.stereo);
-          // Check: has scaf been seen already in this tree?  If yes save time.
-          Scaffold foundscaf = this.getRootScaffold().findChildScaffold(cscaf);
-          if (foundscaf!=null)
-          {
-            this.addChild(foundscaf);
-            ++n_cscafs;
-            n_cscafs+=foundscaf.getAllChildCount();
-          }
-          else if (this.addChild(cscaf))
-          {
-            ++n_cscafs;
-            cscaf.setParentScaffold(this);
-            n_cscafs+=cscaf.findChildScaffolds(); //size=0 if leaf
-          }
-        }
+        if (frame.ib>=frame.bidxs.length) { stack.pop(); continue; }
+        frame.parts=frame.jgraph.cutParts(frame.bidxs[frame.ib++]); //parts with rings; 2 or fewer
+        frame.ip=0;
+        continue;
+      }
+      JunctionGraph.Part part=frame.parts.get(frame.ip++);
+      BitSet pkey=part.getKey();
+      Scaffold cscaf=((pkey!=null)?partidx.get(pkey):null); //same part via another cut order
+      hscaf_utils.countCutPart(cscaf!=null);
+      if (cscaf==null)
+      {
+        cscaf=Scaffold.fromPart(part,scaf); //aromaticity carried
+        if (pkey!=null) partidx.put(pkey,cscaf);
+      }
+      // Check: has scaf been seen already in this tree?  If yes save time.
+      Scaffold foundscaf = scafidx.get(cscaf.getKey());
+      if (foundscaf!=null)
+      {
+        scaf.addChild(foundscaf);
+        ++n_cscafs;
+        n_cscafs+=foundscaf.getAllChildCount(counts);
+      }
+      else if (scaf.addChild(cscaf))
+      {
+        scafidx.put(cscaf.getKey(),cscaf);
+        ++n_cscafs;
+        cscaf.setParentScaffold(scaf);
+        stack.push(new CutFrame(cscaf)); //descend
       }
     }
     return n_cscafs;
   }
   ///////////////////////////////////////////////////////////////////////////
+  /**	Scaffold being cut, and position, for findChildScaffolds().
+  */
+  private static class CutFrame
+  {
+    Scaffold scaf;
+    JunctionGraph jgraph;
+    int[] bidxs;
+    int ib=0;
+    ArrayList<JunctionGraph.Part> parts=null;
+    int ip=0;
+    CutFrame(Scaffold scaf)
+    {
+      this.scaf=scaf;
+      this.jgraph = new JunctionGraph(scaf,scaf.rootidx);
+      this.bidxs=this.jgraph.getCuttableJunctionBonds();
+    }
+  }
+  ///////////////////////////////////////////////////////////////////////////
   public ArrayList<Scaffold> getChildScaffolds()
   {
     if (this.childscafs==null) this.childscafs = new ArrayList<Scaffold>();
@@ -320,28 +509,44 @@ public class Scaffold extends Molecule implements Comparable<Object>
     return childids;
   }
   ///////////////////////////////////////////////////////////////////////////
-  /*	May result in java.lang.StackOverflowError */
+  /*	Formerly recursive, and could result in java.lang.StackOverflowError */
   /*	CC(C)Oc1:c:c:c(:c:c:1F)\N=c\2/:[nH]:c(=O):n(CC(C)(C)C(=O)O):c(=O):n:2Cc3:c:c:c(C):c(F):c:3	*/
   /*	Explicit aromatic bonds (colons) confuse JChem.  Works without colons.	*/
+  /**	Count of all descendants, counting shared descendants once per
+	path, as by recursion.  Each scaffold is visited once.
+  */
   public int getAllChildCount()
   {
     if (this.childscafs==null) return 0;
-    int n_cscaf=this.childscafs.size();
-    for (Scaffold cscaf: this.childscafs)
-      n_cscaf+=cscaf.getAllChildCount();
-    return n_cscaf;
+    return ScaffoldTraversal.ofScaffolds().visit(this,ALL_CHILD_COUNT);
   }
   ///////////////////////////////////////////////////////////////////////////
-  public ArrayList<Scaffold> getAllChildScaffolds()
+  /**	As getAllChildCount(), with counts memoized by instance, for
+	repeated counts of complete sub-hierarchies, as during perception.
+	Counts in map must be for sub-hierarchies since unchanged.
+  */
+  public int getAllChildCount(IdentityHashMap<Scaffold,Integer> counts)
   {
-    ArrayList<Scaffold> scafs = new ArrayList<Scaffold>();
-    if (this.childscafs==null) return scafs;
-    scafs.addAll(this.childscafs);
-    for (Scaffold cscaf: this.childscafs)
+    if (this.childscafs==null) return 0;
+    return ScaffoldTraversal.ofScaffolds().visit(this,ALL_CHILD_COUNT,counts);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  private static final ScaffoldTraversal.Visitor<Scaffold,Integer> ALL_CHILD_COUNT = new ScaffoldTraversal.Visitor<Scaffold,Integer>() {
+    public Integer visit(Scaffold scaf,List<Integer> ccounts)
     {
-      scafs.addAll(cscaf.getAllChildScaffolds());
+      int n_cscaf=0;
+      for (int ccount: ccounts) n_cscaf+=(1+ccount);
+      return n_cscaf;
     }
-    return scafs;
+  };
+  ///////////////////////////////////////////////////////////////////////////
+  /**	All descendants, each instance once, in order of first occurrence:
+	children, then descendants of each child.
+  */
+  public ArrayList<Scaffold> getAllChildScaffolds()
+  {
+    if (this.childscafs==null) return new ArrayList<Scaffold>();
+    return ScaffoldTraversal.ofScaffolds().descendants(this);
   }
   ///////////////////////////////////////////////////////////////////////////
   /**	Search for child scaffold equal to the specified scaffold; if not
@@ -360,36 +565,43 @@ public class Scaffold extends Molecule implements Comparable<Object>
   /**   Generates string representing the hierarchical scaffold sub tree
 	rooted by this scaffold.
         e.g. "1(2,3)" or "1(2(3,4,5),6(4,7))"
+	Shared sub trees are repeated, but generated once.
   */
   public String subTreeAsString()
   {
-    if (this==null) return "";
-    String str=""+this.getID();
-    if (this.getChildCount()>0)
-    {
-      str+="(";
-      int i=0;
-      for (Scaffold cscaf: this.getChildScaffolds())
-        str+=(((i++>0)?",":"")+cscaf.subTreeAsString());
-      str+=")";
-    }
-    return str;
+    return ScaffoldTraversal.ofScaffolds().visit(this, new ScaffoldTraversal.Visitor<Scaffold,String>() {
+      public String visit(Scaffold scaf,List<String> cstrs)
+      {
+        StringBuilder sb = new StringBuilder(""+scaf.getID());
+        if (cstrs.size()>0)
+        {
+          sb.append("(");
+          int i=0;
+          for (String cstr: cstrs)
+            sb.append(((i++>0)?",":"")+cstr);
+          sb.append(")");
+        }
+        return sb.toString();
+      }
+    });
   }
   ///////////////////////////////////////////////////////////////////////////
   /**	For storage; delete molecule object and retain canonical SMILES.
   	Canonical SMILES used since it is an identifier.
   */
-  public void compress()
+  public synchronized void compress()
   {
     //System.err.println("DEBUG: Scaffold.compress: [id="+this.id+"]");
     this.smi=null;
+    if (this.key==null) this.key=this.getKey();
     if (this.cansmi==null) this.cansmi=this.getCansmi();
-    if (!this.cansmi.isEmpty() && !this.isEmpty()) this.clear();
+    if (!this.cansmi.isEmpty() && !this.isEmpty()) { this.clear(); this.aromatic=false; this.rootidx=null; }
   }
   ///////////////////////////////////////////////////////////////////////////
   /**	Reconstruct molecule object from stored canonical SMILES.
+	Synchronized, since scaffolds in a ScaffoldSet may be shared by threads.
   */
-  public void decompress()
+  public synchronized void decompress()
   {
     if (!this.isEmpty()) return; // already decompressed
     if (this.cansmi==null)
@@ -400,14 +612,27 @@ public class Scaffold extends Molecule implements Comparable<Object>
     catch (MolFormatException e) { } // should not happen!
   }
   ///////////////////////////////////////////////////////////////////////////
+  private static String benzeneKey(String smi)
+  {
+    try { return CanonicalKey.of(MolImporter.importMol(smi,"smiles:")); }
+    catch (MolFormatException e) { return null; } // should not happen!
+  }
+  ///////////////////////////////////////////////////////////////////////////
   public Boolean isStereo()
   {
-    return this.stereo;
+    return this.config.isStereo();
   }
   ///////////////////////////////////////////////////////////////////////////
   public Boolean isKeep_nitro_attachments()
   {
-    return this.keep_nitro_attachments;
+    return this.config.isKeep_nitro_attachments();
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	Configuration (flags and formats), shared by scaffold and children.
+  */
+  public HScafConfig getConfig()
+  {
+    return this.config;
   }
   ///////////////////////////////////////////////////////////////////////////
 }
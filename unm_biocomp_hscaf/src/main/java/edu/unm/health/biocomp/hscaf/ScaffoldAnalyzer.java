@@ -0,0 +1,271 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+import chemaxon.struc.*;
+
+/**	Batch HierS perception: analyzes a sequence of molecules, returning
+	a stream of results in input order, each with scaffold IDs, tree
+	string, linkers and side-chains.  Replaces the per-caller loop over
+	new ScaffoldTree(mol, ...), with setup done once per batch or
+	worker: SMARTS queries are compiled once and matchers held per
+	worker thread (see ScaffoldQueries), ring perception is shared by
+	the largest-fragment check and perception, and optionally (see
+	setKeepInputMolecule()) input molecules are used as working
+	molecules, not copied twice and kept in ScaffoldTree.inmol.
+	<br>
+	With one of {@link ScaffoldSet}, {@link ScaffoldStore} or
+	{@link ScaffoldDB}, scaffold IDs are assigned in input order.  With
+	threads (setThreads()), trees are perceived by worker threads with
+	no lookup, and merged in input order as the stream is consumed (see
+	ScaffoldTree.mergeScaffolds()), so results are identical to the
+	single-threaded run, as with hier_scaffolds -threads.
+	<br>
+	Multi-fragment molecules are analyzed by largest fragment.  Failures
+	are reported per result (getException()), and do not end the stream.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.ScaffoldTree
+	@see edu.unm.health.biocomp.hscaf.hier_scaffolds
+	@author Jeremy J Yang
+*/
+public class ScaffoldAnalyzer
+{
+  private HScafConfig config;
+  private ScaffoldSet scafset;
+  private ScaffoldStore scafstore;
+  private ScaffoldDB scafdb;
+  private boolean find_linkers=true;
+  private boolean keep_inmol=true;
+  private int maxtime=0;
+  private int nthreads=1;
+
+  /////////////////////////////////////////////////////////////////////////////
+  private ScaffoldAnalyzer() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Analyzer with no lookup; scaffold IDs not assigned.
+  */
+  public ScaffoldAnalyzer(HScafConfig config)
+  {
+    this(config,null,null,null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Analyzer with one lookup (others null), which assigns scaffold IDs.
+  */
+  public ScaffoldAnalyzer(HScafConfig config,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb)
+  {
+    this.config=config;
+    this.scafset=scafset;
+    this.scafstore=scafstore;
+    this.scafdb=scafdb;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Find linkers (default true).
+  */
+  public void setFindLinkers(boolean find_linkers) { this.find_linkers=find_linkers; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Keep a copy of each input molecule in ScaffoldTree.inmol (default
+	true).  If false, input molecules are used as working molecules
+	(junction bonds tagged), and should not be used by the caller
+	afterwards; this saves two copies of each molecule.
+  */
+  public void setKeepInputMolecule(boolean keep_inmol) { this.keep_inmol=keep_inmol; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Max compute time per molecule, in seconds, 0 for none (default).
+  */
+  public void setMaxtime(int maxtime) { this.maxtime=maxtime; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Perception threads (default 1); results identical.
+  */
+  public void setThreads(int nthreads) { this.nthreads=Math.max(1,nthreads); }
+  /////////////////////////////////////////////////////////////////////////////
+  public HScafConfig getConfig() { return this.config; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Analyzes molecules, lazily, as the returned stream is consumed.
+	With threads, close the stream (or consume it entirely) to stop
+	the workers.
+  */
+  public Stream<Result> analyze(Iterable<Molecule> mols)
+  {
+    return analyze(mols.iterator());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  public Stream<Result> analyze(Stream<Molecule> mols)
+  {
+    return analyze(mols.iterator()).onClose(mols::close);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private Stream<Result> analyze(Iterator<Molecule> molit)
+  {
+    final Iterator<Result> resit=((nthreads>1)?new ThreadedIterator(molit):new SerialIterator(molit));
+    Stream<Result> results=StreamSupport.stream(Spliterators.spliteratorUnknownSize(resit,Spliterator.ORDERED|Spliterator.NONNULL),false);
+    if (resit instanceof ThreadedIterator)
+      results=results.onClose(((ThreadedIterator)resit)::shutdown);
+    return results;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Perceives one molecule, with lookups if lookup true.
+  */
+  private Result perceive(int n_mol,Molecule mol,boolean lookup)
+  {
+    Result result = new Result(n_mol,mol.getName());
+    try {
+      if (mol.getFragCount(MoleculeGraph.FRAG_BASIC)>1)
+        mol=hier_scaffolds_utils.LargestPart(mol);
+      RingContext ringctx = new RingContext(mol);
+      if (lookup)
+        result.scaftree = new ScaffoldTree(mol,config,scafset,scafstore,scafdb,find_linkers,false,maxtime,ringctx,null,keep_inmol);
+      else
+        result.scaftree = new ScaffoldTree(mol,config,null,null,null,find_linkers,false,maxtime,ringctx,null,keep_inmol);
+    }
+    catch (Exception e) { result.ex=e; }
+    return result;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Merges perceived tree with lookup, assigning scaffold IDs.
+  */
+  private Result merge(Result result)
+  {
+    if (result.scaftree==null) return result;
+    try { result.scaftree.mergeScaffolds(scafset,scafstore,scafdb); }
+    catch (Exception e) { result.ex=e; }
+    return result;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private class SerialIterator implements Iterator<Result>
+  {
+    private Iterator<Molecule> molit;
+    private int n_mol=0;
+    SerialIterator(Iterator<Molecule> molit) { this.molit=molit; }
+    public boolean hasNext() { return molit.hasNext(); }
+    public Result next() { return perceive(++n_mol,molit.next(),true); }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Submits molecules to workers, up to 4 per thread ahead of the
+	consumer, and returns results in input order, merged.
+  */
+  private class ThreadedIterator implements Iterator<Result>
+  {
+    private Iterator<Molecule> molit;
+    private int n_mol=0;
+    private ExecutorService pool;
+    private ArrayDeque<Future<Result>> queue = new ArrayDeque<Future<Result>>();
+    ThreadedIterator(Iterator<Molecule> molit)
+    {
+      this.molit=molit;
+      this.pool=Executors.newFixedThreadPool(nthreads,new ThreadFactory() {
+        public Thread newThread(Runnable r)
+        {
+          Thread thread = new Thread(r,"hscaf-analyzer");
+          thread.setDaemon(true); //stream may be abandoned unclosed
+          return thread;
+        }
+      });
+    }
+    private void fill()
+    {
+      while (queue.size()<4*nthreads && molit.hasNext())
+      {
+        final int n=++n_mol;
+        final Molecule mol=molit.next();
+        queue.add(pool.submit(new Callable<Result>() {
+          public Result call() { return perceive(n,mol,false); } //No lookup.
+        }));
+      }
+      if (queue.isEmpty()) shutdown();
+    }
+    public boolean hasNext()
+    {
+      fill();
+      return !queue.isEmpty();
+    }
+    public Result next()
+    {
+      fill();
+      if (queue.isEmpty()) throw new NoSuchElementException();
+      try { return merge(queue.poll().get()); }
+      catch (InterruptedException e) { throw new CancellationException(e.getMessage()); }
+      catch (ExecutionException e) { throw new RuntimeException(e.getCause()); } //Should not happen; perceive() catches.
+    }
+    void shutdown() { pool.shutdownNow(); }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Result of perception of one molecule.
+  */
+  public static class Result
+  {
+    private int n_mol;
+    private String molname;
+    private ScaffoldTree scaftree=null;
+    private Exception ex=null;
+    /////////////////////////////////////////////////////////////////////////
+    private Result(int n_mol,String molname)
+    {
+      this.n_mol=n_mol;
+      this.molname=molname;
+    }
+    /////////////////////////////////////////////////////////////////////////
+    /**	Index of molecule in input, from 1.
+    */
+    public int getIndex() { return this.n_mol; }
+    public String getName() { return this.molname; }
+    /////////////////////////////////////////////////////////////////////////
+    /**	Tree, or null if perception failed.
+    */
+    public ScaffoldTree getScaffoldTree() { return this.scaftree; }
+    /////////////////////////////////////////////////////////////////////////
+    /**	Exception, if perception failed, else null.
+    */
+    public Exception getException() { return this.ex; }
+    /////////////////////////////////////////////////////////////////////////
+    /**	True if tree perceived, with scaffolds, and not truncated.
+    */
+    public boolean isOk()
+    {
+      return (this.ex==null && this.scaftree!=null && this.scaftree.getRootScaffold()!=null && !this.scaftree.isTruncated());
+    }
+    /////////////////////////////////////////////////////////////////////////
+    public boolean isTruncated()
+    {
+      return (this.scaftree!=null && this.scaftree.isTruncated());
+    }
+    /////////////////////////////////////////////////////////////////////////
+    /**	Scaffold IDs, sorted (all 0 if no lookup).
+    */
+    public List<Long> getScaffoldIDs()
+    {
+      ArrayList<Long> scaflist = new ArrayList<Long>();
+      if (this.scaftree==null) return scaflist;
+      for (Scaffold scaf: this.scaftree.getScaffolds()) scaflist.add(scaf.getID());
+      Collections.sort(scaflist);
+      return scaflist;
+    }
+    /////////////////////////////////////////////////////////////////////////
+    /**	Scaffold IDs as in hier_scaffolds output, e.g. "S:1,2,3".
+    */
+    public String getScaffoldIDsString()
+    {
+      StringBuilder sb = new StringBuilder("S:");
+      for (long id: this.getScaffoldIDs()) sb.append((sb.length()>2?",":"")+id);
+      return sb.toString();
+    }
+    /////////////////////////////////////////////////////////////////////////
+    /**	Scaffold tree string, as ScaffoldTree.toString().
+    */
+    public String getTreeString()
+    {
+      return ((this.scaftree!=null)?this.scaftree.toString():"");
+    }
+    /////////////////////////////////////////////////////////////////////////
+    public List<Linker> getLinkers()
+    {
+      return ((this.scaftree!=null)?this.scaftree.getLinkers():new ArrayList<Linker>());
+    }
+    /////////////////////////////////////////////////////////////////////////
+    public List<Sidechain> getSidechains()
+    {
+      return ((this.scaftree!=null)?this.scaftree.getSidechains():new ArrayList<Sidechain>());
+    }
+  }
+}
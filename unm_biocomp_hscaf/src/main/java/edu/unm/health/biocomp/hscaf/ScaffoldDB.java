@@ -458,38 +458,50 @@ public class ScaffoldDB
 	be known.
 
 	For known scaffold, obtain ID from store, and find child scaffolds
-	in store to populate ScaffoldTree.
+	in store to populate ScaffoldTree.  Descendants are lazy proxies
+	(Scaffold.compressed()) holding only ID, cansmi and children;
+	molecules (and keys) are built from cansmi only if needed
+	(decompress()).  Each descendant is fetched once, and shared by its
+	parents, as a DAG.  Returns number of descendants, counting shared
+	descendants once per path, as formerly.
   */
   public int populateScaffoldTree(Scaffold scaf)
 	throws SQLException
   {
-    int n_scaf=0;
     //System.err.println("DEBUG: (populateScaffoldTree); scaf.getID() = "+scaf.getID());
     if (!this.containsScaffoldByID(scaf.getID()))
     {
       //System.err.println("DEBUG: (populateScaffoldTree) aaack! ID not found...");
       return 0; //Should not happen.
     }
-    ScaffoldDBRecord scafrec = this.getScaffoldByID(scaf.getID());
-    HashSet<Long> chids = scafrec.getChildIDs();
-    //System.err.println("DEBUG: (populateScaffoldTree) chids.size() = "+chids.size());
-    for (Iterator<Long> itr=chids.iterator(); itr.hasNext(); )
+    HScafConfig config=this.getConfig();
+    HashMap<Long,Scaffold> proxies = new HashMap<Long,Scaffold>();
+    ArrayDeque<Scaffold> queue = new ArrayDeque<Scaffold>();
+    ArrayDeque<ScaffoldDBRecord> scafrecs = new ArrayDeque<ScaffoldDBRecord>();
+    queue.add(scaf);
+    scafrecs.add(this.getScaffoldByID(scaf.getID()));
+    while (!queue.isEmpty())
     {
-      long chid=itr.next();
-      //if (chid==0) System.err.println("DEBUG: (populateScaffoldTree) ERROR; chid = "+chid);
-      ScaffoldDBRecord cscafrec = this.getScaffoldByID(chid);
-      String cansmi = cscafrec.getCansmi();
-      //System.err.println("DEBUG: (populateScaffoldTree) chid = "+chid+" ; smi = "+cansmi);
-      Scaffold cscaf = null;
-      try { cscaf = new Scaffold(cansmi,this.isStereo(),this.isKeep_nitro_attachments()); }
-      catch (MolFormatException e) { System.err.println("DEBUG: aaack! (populateScaffoldTree)"); } //Should not happen.
-      cscaf.setID(chid);
-      scaf.addChild(cscaf);
-      ++n_scaf;
-      n_scaf+=populateScaffoldTree(cscaf);      //recurse
+      Scaffold pscaf=queue.poll();
+      ScaffoldDBRecord pscafrec=scafrecs.poll();
+      //System.err.println("DEBUG: (populateScaffoldTree) chids.size() = "+pscafrec.getChildIDs().size());
+      for (long chid: pscafrec.getChildIDs())
+      {
+        Scaffold cscaf=proxies.get(chid);
+        if (cscaf==null)
+        {
+          ScaffoldDBRecord cscafrec = this.getScaffoldByID(chid);
+          if (cscafrec==null) continue; //Should not happen.
+          cscaf=Scaffold.compressed(chid,cscafrec.getCansmi(),null,config);
+          proxies.put(chid,cscaf);
+          queue.add(cscaf);
+          scafrecs.add(cscafrec);
+        }
+        pscaf.addStoredChild(cscaf);
+      }
     }
-    //System.err.println("DEBUG: (populateScaffoldTree) leaving... ; n_scaf = "+n_scaf);
-    return n_scaf;
+    //System.err.println("DEBUG: (populateScaffoldTree) leaving... ; n_scaf = "+proxies.size());
+    return scaf.getAllChildCount();
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Generates string representing the hierarchical scaffold sub tree
@@ -535,6 +547,13 @@ public class ScaffoldDB
     return this.keep_nitro_attachments;
   }
   /////////////////////////////////////////////////////////////////////////////
+  /**	Configuration (flags and formats) for scaffolds in this ScaffoldDB.
+  */
+  public HScafConfig getConfig()
+  {
+    return HScafConfig.of(this.stereo,this.keep_nitro_attachments);
+  }
+  /////////////////////////////////////////////////////////////////////////////
   /**	Dump all scaffolds in this ScaffoldDB to file; format is 
 	legal smiles file and normal hier_scaffolds output:
 	(SMILES ID SCAFTREE).  
@@ -0,0 +1,110 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+import java.nio.charset.StandardCharsets;
+
+/**	Compact representation of a scaffold in a ScaffoldSet: ID, canonical
+	SMILES (UTF-8 bytes), canonical key (16 bytes) and child IDs as
+	primitive ints.  Unlike a Scaffold, which is a Molecule, a node holds
+	no molecule object, parent or child references, boxed IDs or cached
+	SMILES.  Scaffold objects are materialized from nodes on demand.
+	<br>
+	Keys which are not CanonicalKey hashes (stereo, or too many atoms
+	tied for CanonicalKey) are "S:"+cansmi, and not stored.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.ScaffoldSet
+	@see edu.unm.health.biocomp.hscaf.CanonicalKey
+	@author Jeremy J Yang
+*/
+public class ScaffoldNode
+{
+  private static final int[] NO_CHILDREN = new int[0];
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private int id;
+  private byte[] cansmi;
+  /** CanonicalKey hash, or null if key is "S:"+cansmi */
+  private byte[] key;
+  private int[] childids;
+
+  /////////////////////////////////////////////////////////////////////////////
+  private ScaffoldNode() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Node for scaffold with ID, and child scaffolds with IDs.
+  */
+  public ScaffoldNode(Scaffold scaf)
+  {
+    this.id=(int)((long)scaf.getID());
+    String smi=scaf.getCansmi();
+    this.cansmi=smi.getBytes(StandardCharsets.UTF_8);
+    this.key=packKey(scaf.getKey(),smi);
+    int n=scaf.getChildCount();
+    this.childids=((n>0)?new int[n]:NO_CHILDREN);
+    for (int i=0;i<n;++i)
+      this.childids[i]=(int)((long)scaf.getChildScaffolds().get(i).getID());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  public int getID() { return this.id; }
+  /////////////////////////////////////////////////////////////////////////////
+  public String getCansmi()
+  {
+    return new String(this.cansmi,StandardCharsets.UTF_8);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  public String getKey()
+  {
+    if (this.key==null) return "S:"+this.getCansmi();
+    char[] hex = new char[2*this.key.length];
+    for (int i=0;i<this.key.length;++i)
+    {
+      hex[2*i]=HEX[(this.key[i]>>4)&0xf];
+      hex[2*i+1]=HEX[this.key[i]&0xf];
+    }
+    return new String(hex);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Packed key bytes, null if key is "S:"+cansmi; not to be modified.
+  */
+  byte[] getKeyBytes() { return this.key; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Cansmi UTF-8 bytes, not to be modified.
+  */
+  byte[] getCansmiBytes() { return this.cansmi; }
+  /////////////////////////////////////////////////////////////////////////////
+  public int getChildCount() { return this.childids.length; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Child IDs, not to be modified.
+  */
+  public int[] getChildIDs() { return this.childids; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Approximate heap bytes of this node (64-bit JVM, compressed oops).
+  */
+  public int sizeOf()
+  {
+    int n=16+4+3*4; //header, id, refs
+    n+=16+align(this.cansmi.length);
+    if (this.key!=null) n+=16+align(this.key.length);
+    if (this.childids.length>0) n+=16+align(4*this.childids.length);
+    return n;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static int align(int n) { return (n+7)&~7; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Packs 32-hex-digit key to 16 bytes; null if key is "S:"+cansmi.
+  */
+  private static byte[] packKey(String key,String cansmi)
+  {
+    if (key.length()!=32 || key.equals("S:"+cansmi)) return null;
+    return packKey(key);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Packs 32-hex-digit CanonicalKey to 16 bytes.
+  */
+  static byte[] packKey(String key)
+  {
+    byte[] bytes = new byte[16];
+    for (int i=0;i<16;++i)
+      bytes[i]=(byte)((Character.digit(key.charAt(2*i),16)<<4)|Character.digit(key.charAt(2*i+1),16));
+    return bytes;
+  }
+}
@@ -0,0 +1,129 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+
+import chemaxon.formats.*;
+import chemaxon.struc.*;
+import chemaxon.sss.search.*;
+
+/**	Registry of the SMARTS queries used by HierS perception, for
+	junction tagging, side chain removal and linker/side chain
+	classification.  Each query is parsed once, and each thread gets its
+	own MolSearch matchers (MolSearch is not thread-safe), created on
+	first use and reused thereafter, so the hot path never re-parses a
+	pattern.  Matchers are not reentrant: callers set the target and
+	finish searching before any other use in the same thread.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.hscaf_utils
+	@see edu.unm.health.biocomp.hscaf.ScaffoldTree
+	@author Jeremy J Yang
+*/
+public class ScaffoldQueries
+{
+  /** Junction queries (first two atoms in smarts are junction). */
+  private static final String[] JUNC_SMARTS = {
+	"[!R](-!@[!R]=,#[R])=,#[R]",	//scaf-scaf
+	"[!R](-!@[*])=,#[R]",		//scaf-nonscaf
+	"[R]-!@[R]",			//scaf-scaf
+	"[R]-!@[!R]=,#[R]",		//scaf-scaf
+	"[!R]-!@[R]" };			//scaf-nonscaf
+  private static final String[] JUNC_SMARTS_N = {
+	"[!R](-!@[!R]=,#[R])=,#[R]",	//scaf-scaf
+	"[!R](-!@[*])=,#[R]",		//scaf-nonscaf
+	"[R&!#7]~!@[R&!#7]",		//scaf-scaf
+	"[R&!#7]~!@[!R]=,#[R]",		//scaf-scaf
+	"[R&!#7]-!@[!R;!$([R&#7])]",	//scaf-nonscaf
+	"[!R]~!@[!R]-!@[R&#7]" };	//scaf-nonscaf
+  /** Terminal atom queries for side chain removal (first atom removed). */
+  private static final String[] SIDECHAIN_SMARTS = {
+	"[D1&!#1]-[!#1]",
+	"[D1&!#1]~[D2;!R;$(*-*)]",
+	"[D1&!#1]~[D2;!R]~[D2;!R;$(*-*)]",
+	"[D1&!#1]~[D3;!R](~[D1])-[*]" };
+  private static final String[] SIDECHAIN_SMARTS_N = {
+	"[D1&!#1]-[!#1;!$([#7&R])]",
+	"[D1&!#1]~[D2;!R;$(*-[!$([#7&R])])]",
+	"[D1&!#1]~[D2;!R]~[D2;!R;$(*-[!$([#7&R])])]",
+	"[D1&!#1]~[D3;!R](~[D1])-[!$([R&#7])]" };
+
+  private static final Molecule[] JUNC_QUERIES = importQueries(JUNC_SMARTS,"smarts:");
+  private static final Molecule[] JUNC_QUERIES_N = importQueries(JUNC_SMARTS_N,"smarts:");
+  private static final Molecule[] SIDECHAIN_QUERIES = importQueries(SIDECHAIN_SMARTS,"smarts:");
+  private static final Molecule[] SIDECHAIN_QUERIES_N = importQueries(SIDECHAIN_SMARTS_N,"smarts:");
+  /** Scaffold query (ring atom). */
+  private static final Molecule SCAF_QUERY = importQueries(new String[]{"[R]"},"smarts:")[0];
+  /** Linker query (2+ Js). */
+  private static final Molecule LINK_QUERY = importQueries(new String[]{"[*].[*] |$J_p;J_p$|"},"cxsmarts:")[0];
+
+  private static final ThreadLocal<MolSearch[]> juncSearches = newSearches(JUNC_QUERIES);
+  private static final ThreadLocal<MolSearch[]> juncSearchesN = newSearches(JUNC_QUERIES_N);
+  private static final ThreadLocal<MolSearch[]> sidechainSearches = newSearches(SIDECHAIN_QUERIES);
+  private static final ThreadLocal<MolSearch[]> sidechainSearchesN = newSearches(SIDECHAIN_QUERIES_N);
+  private static final ThreadLocal<MolSearch[]> scafSearch = newSearches(new Molecule[]{SCAF_QUERY});
+  private static final ThreadLocal<MolSearch[]> linkSearch = newSearches(new Molecule[]{LINK_QUERY});
+
+  /////////////////////////////////////////////////////////////////////////////
+  private ScaffoldQueries() {} //static methods only
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Junction matchers, for hscaf_utils.tagJunctions().
+	@param keep_nitro_attachments true for N-attachments scaf definition
+  */
+  public static MolSearch[] getJunctionSearches(boolean keep_nitro_attachments)
+  {
+    return (keep_nitro_attachments ? juncSearchesN : juncSearches).get();
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Terminal atom matchers, for hscaf_utils.rmSideChains().
+	@param keep_nitro_attachments true for N-attachments scaf definition
+  */
+  public static MolSearch[] getSidechainSearches(boolean keep_nitro_attachments)
+  {
+    return (keep_nitro_attachments ? sidechainSearchesN : sidechainSearches).get();
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Scaffold (ring atom) matcher, for linker/side chain classification.
+  */
+  public static MolSearch getScafSearch()
+  {
+    return scafSearch.get()[0];
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Linker (2+ junction pseudoatoms) matcher, for linker/side chain
+	classification.
+  */
+  public static MolSearch getLinkSearch()
+  {
+    return linkSearch.get()[0];
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static Molecule[] importQueries(String[] smartses,String fmt)
+  {
+    Molecule[] qmols = new Molecule[smartses.length];
+    for (int i=0;i<smartses.length;++i)
+    {
+      try { qmols[i]=MolImporter.importMol(smartses[i],fmt); }
+      catch (MolFormatException e) {
+        throw new IllegalStateException("Bad query: "+smartses[i]+": "+e.getMessage());
+      }
+    }
+    return qmols;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Each thread's matchers get their own copies of the parsed queries.
+  */
+  private static ThreadLocal<MolSearch[]> newSearches(final Molecule[] qmols)
+  {
+    return new ThreadLocal<MolSearch[]>() {
+      protected MolSearch[] initialValue()
+      {
+        MolSearch[] searches = new MolSearch[qmols.length];
+        for (int i=0;i<qmols.length;++i)
+        {
+          searches[i] = new MolSearch();
+          synchronized (qmols[i]) { searches[i].setQuery(qmols[i].cloneMolecule()); }
+        }
+        return searches;
+      }
+    };
+  }
+}
@@ -2,6 +2,10 @@ package edu.unm.health.biocomp.hscaf;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.nio.charset.StandardCharsets;
 
 import chemaxon.formats.*;
 import chemaxon.struc.*;
@@ -15,9 +19,22 @@ import chemaxon.marvin.io.MolExportException;
 	<LI> Optimize generation of scaffolds by avoiding repitition of prior analyses.
 	</OL>
 	IDs are consecutive and start at 1.
-	Child scaffolds are not separate instances but rather among the set and may be shared.
-	Developer note: scafhash and idhash contain references to the same Scaffold objects, 
-	thereby conserving memory.
+	Scaffolds are stored compactly as ScaffoldNodes (cansmi bytes, key
+	bytes, child IDs as ints), not as Scaffold (Molecule) objects, and
+	indexed by ID in an array, by key in a hash.  The hash is keyed by
+	the node's own packed key bytes (cansmi bytes for "S:" keys), not
+	by key Strings.  Scaffolds returned by
+	lookups are materialized from nodes, compressed, with sub-hierarchy,
+	as by ScaffoldStore.  Thus scaffolds are not shared between trees.
+	<br>
+	Thread-safe: lookups by key or ID take no locks; new IDs are
+	allocated atomically; each mergeScaffoldTree() call inserts its subtree
+	as one step, holding the lock stripes for the subtree's keys, so
+	concurrent merges of disjoint subtrees proceed in parallel.  Thus one
+	warm set may be shared between threads, e.g. servlet requests.
+	<br>
+	Scaffolds are hashed by canonical key (Scaffold.getKey()), and
+	canonical SMILES generated only for scaffolds added, for output.
 	<br>
 	Note that the ScaffoldStore class is an alternative utilizing BerkeleyDB for
 	improved performance and memory management for large datasets.
@@ -32,16 +49,55 @@ import chemaxon.marvin.io.MolExportException;
 public class ScaffoldSet
 {
   private String name;
-  private HashMap<String,Scaffold> scafhash;
-  private HashMap<Long,Scaffold> idhash;
+  private ConcurrentHashMap<NodeKey,ScaffoldNode> scafhash;
+  /** nodes by ID, in chunks allocated as needed */
+  private AtomicReferenceArray<AtomicReferenceArray<ScaffoldNode>> idchunks;
+  private AtomicLong lastid;
+  private ReentrantLock[] locks;
+  /** flags of scaffolds in set, from first added */
+  private volatile HScafConfig config=HScafConfig.DEFAULT;
+  private static final int N_LOCKS=64;
+  private static final int CHUNK_BITS=16;
+  static final int CHUNK_SIZE=(1<<CHUNK_BITS);
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Hash key of a node: packed canonical key bytes, or cansmi bytes if
+	key is "S:"+cansmi, shared with the node.
+  */
+  private static final class NodeKey
+  {
+    private final byte[] bytes;
+    private final boolean smi;
+    NodeKey(byte[] bytes,boolean smi)
+    {
+      this.bytes=bytes;
+      this.smi=smi;
+    }
+    public int hashCode() { return Arrays.hashCode(this.bytes)^(this.smi?1:0); }
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof NodeKey)) return false;
+      NodeKey k=(NodeKey)o;
+      return (this.smi==k.smi && Arrays.equals(this.bytes,k.bytes));
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static NodeKey nodeKey(String key)
+  {
+    if (key.startsWith("S:")) return new NodeKey(key.substring(2).getBytes(StandardCharsets.UTF_8),true);
+    return new NodeKey(ScaffoldNode.packKey(key),false);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static NodeKey nodeKey(ScaffoldNode node)
+  {
+    byte[] bytes=node.getKeyBytes();
+    return ((bytes!=null)?new NodeKey(bytes,false):new NodeKey(node.getCansmiBytes(),true));
+  }
   /////////////////////////////////////////////////////////////////////////////
   /**	Default constructor.
   */
   public ScaffoldSet()
   {
-    this.name="";
-    this.scafhash = new HashMap<String,Scaffold>();
-    this.idhash = new HashMap<Long,Scaffold>();
+    this("");
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Constructor with name.
@@ -49,168 +105,224 @@ public class ScaffoldSet
   public ScaffoldSet(String name)
   {
     this.name=name;
-    this.scafhash = new HashMap<String,Scaffold>();
-    this.idhash = new HashMap<Long,Scaffold>();
+    this.scafhash = new ConcurrentHashMap<NodeKey,ScaffoldNode>();
+    this.idchunks = new AtomicReferenceArray<AtomicReferenceArray<ScaffoldNode>>((Integer.MAX_VALUE>>CHUNK_BITS)+1);
+    this.lastid = new AtomicLong(0L);
+    this.locks = new ReentrantLock[N_LOCKS];
+    for (int i=0;i<N_LOCKS;++i) this.locks[i] = new ReentrantLock();
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Return number of Scaffolds in ScaffoldSet.
   */
   public long getCount() { return this.scafhash.size(); }
   /////////////////////////////////////////////////////////////////////////////
-  /**	True if Scaffold present with same cansmi.
+  /**	True if Scaffold present with same key.
   */
   public boolean containsScaffold(Scaffold scaf)
   {
-    return (this.scafhash.containsKey(scaf.getCansmi()));
+    return (this.scafhash.containsKey(nodeKey(scaf.getKey())));
   }
   /////////////////////////////////////////////////////////////////////////////
-  /**	Returns ID of Scaffold with same cansmi if present, null otherwise.
+  /**	Returns ID of Scaffold with same key if present, null otherwise.
   */
   public Long getScaffoldID(Scaffold scaf)
   {
-    return this.scafhash.get(scaf.getCansmi()).getID(); //null if missing
+    ScaffoldNode node=this.scafhash.get(nodeKey(scaf.getKey()));
+    return ((node!=null)?Long.valueOf(node.getID()):null);
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Merges a complete [sub]ScaffoldTree defined by the Scaffold argument with the
 	ScaffoldSet.  New scaffolds are assigned new IDs, which is the main purpose of
 	this method. Existing scaffolds are recognized as such, should have IDs,
 	since found during hscaf_utils.findChildScaffolds.
-	Initially called with new root scaffold, then
-	recursively. For each call,
-	process all immediate child scaffolds, then recurse.
-	Child scaffolds present in set are same instances, not only equal.
+	IDs are assigned in depth-first pre-order, as formerly by recursion
+	and as by ScaffoldStore.mergeScaffoldTree(): each child, then its
+	descendants, before the next child.
 	Returns number of new scaffolds merged.
+	<br>
+	The whole subtree is merged as one step: the lock stripes for all
+	its keys are acquired in ascending order (hence no deadlock),
+	and held until done.
   */
   public int mergeScaffoldTree(Scaffold scaf)
   {
-//    //System.err.println("DEBUG: (mergeScaffoldTree) scaf: "+scaf.getCansmi());
-//    int n_new=0;
-//    long id=0L;
-//    if (this.containsScaffold(scaf)) 
-//    {
-//      id=this.getScaffoldID(scaf);
-//      System.err.println("DEBUG: (mergeScaffoldTree) scaf ID="+id+" contained in set.");
-//      Scaffold foundscaf=this.getScaffoldByID(id);
-//      scaf.setID(id); // should already be set?  But no...
-//      for (Scaffold cscaf: foundscaf.getChildScaffolds())
-//      {
-//        System.err.println("DEBUG: (mergeScaffoldTree) addChild(cscaf) cID="+cscaf.getID());
-//        scaf.addChild(cscaf);
-//      }
-//    }
-//    else
-//    {
-//      id=this.getCount()+1;  //new ID [1...)
-//      System.err.println("DEBUG: (mergeScaffoldTree) new scaf ID="+id+" cansmi: "+scaf.getCansmi());
-//      scaf.setID(id);
-//      this.addScaffold(scaf);
-//      ++n_new;
-//      for (Scaffold cscaf: scaf.getChildScaffolds())
-//      {
-//        n_new+=mergeScaffoldTree(cscaf); //recurse
-//      }
-//    }
-//    return n_new;
-
-
-// EXPERIMENT...
-
-
-    //System.err.println("DEBUG: (mergeScaffoldTree) scaf: "+scaf.getCansmi());
-    int n_new=0;
-    long id=0L;
-    if (this.containsScaffold(scaf)) 
-    {
-      id=this.getScaffoldID(scaf);
-      //System.err.println("DEBUG: (mergeScaffoldTree) scaf ID="+id+" contained in set.");
-      Scaffold foundscaf=this.getScaffoldByID(id);
-      //if (foundscaf==null) System.err.println("DEBUG: (mergeScaffoldTree) foundscaf==null.");
-      for (Scaffold cscaf: foundscaf.getChildScaffolds())
-      {
-        //System.err.println("DEBUG: (mergeScaffoldTree) addChild(cscaf) cID="+cscaf.getID());
-        scaf.addChild(cscaf);
-      }
-      scaf.setID(id);
+    ArrayList<Scaffold> scafs = ScaffoldTraversal.ofScaffolds().preorder(scaf);
+    BitSet stripes = new BitSet(N_LOCKS);
+    for (Scaffold s: scafs)
+      stripes.set(lockIndex(s.getKey()));
+    for (int i=stripes.nextSetBit(0);i>=0;i=stripes.nextSetBit(i+1))
+      this.locks[i].lock();
+    try {
+      return mergeSubTree(scafs);
     }
-    else
-    {
-      id=this.getCount()+1;  //new ID [1...)
-      //System.err.println("DEBUG: (mergeScaffoldTree) new scaf ID="+id+" cansmi: "+scaf.getCansmi());
-      scaf.setID(id);
-      this.addScaffold(scaf);
-      ++n_new;
+    finally {
+      for (int i=stripes.nextSetBit(0);i>=0;i=stripes.nextSetBit(i+1))
+        this.locks[i].unlock();
     }
-
-    for (Scaffold cscaf: scaf.getChildScaffolds())
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static int lockIndex(String key)
+  {
+    return (key.hashCode()&0x7fffffff)%N_LOCKS;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Part of mergeScaffoldTree(); caller holds locks.  Scaffolds are in
+	ID order.  IDs assigned first, so child IDs are known, then nodes
+	indexed by ID, then by key, so a scaffold found by key always has
+	its sub-hierarchy.
+  */
+  private int mergeSubTree(ArrayList<Scaffold> scafs)
+  {
+    HashMap<String,Long> newids = new HashMap<String,Long>();
+    ArrayList<ScaffoldNode> newnodes = new ArrayList<ScaffoldNode>();
+    for (Scaffold s: scafs)
     {
-      long cid=0L;
-      if (this.containsScaffold(cscaf)) 
-      {
-        cid=this.getScaffoldID(cscaf);
-        cscaf.setID(cid);
-      }
+      String key=s.getKey();
+      ScaffoldNode node=this.scafhash.get(nodeKey(key));
+      if (node!=null)
+        s.setID((long)node.getID());
+      else if (newids.containsKey(key)) //same scaffold, other instance in tree
+        s.setID(newids.get(key));
       else
       {
-        cid=this.getCount()+1;  //new ID [1...)
-        //System.err.println("DEBUG: (mergeScaffoldTree) new scaf cID="+cid+" cansmi: "+cscaf.getCansmi());
-        cscaf.setID(cid);
-        this.addScaffold(cscaf);
-        ++n_new;
+        s.setID(this.lastid.incrementAndGet());  //new ID [1...)
+        //System.err.println("DEBUG: (mergeScaffoldTree) new scaf ID="+s.getID()+" cansmi: "+s.getCansmi());
+        newids.put(key,s.getID());
       }
-      n_new+=mergeScaffoldTree(cscaf); //recurse
     }
-    return n_new;
+    for (Scaffold s: scafs)
+    {
+      if (newids.remove(s.getKey())==null) continue;
+      ScaffoldNode node = new ScaffoldNode(s);
+      this.indexByID(s,node);
+      newnodes.add(node);
+    }
+    for (ScaffoldNode node: newnodes)
+      this.scafhash.put(nodeKey(node),node);
+    return newnodes.size();
   }
   /////////////////////////////////////////////////////////////////////////////
-  /**	Returns Set of cansmi strings.
+  /**	Returns Set of canonical keys, new, built from nodes.
   */
   public Set<String> keySet()
   {
-    return this.scafhash.keySet();
+    HashSet<String> keys = new HashSet<String>();
+    for (ScaffoldNode node: this.scafhash.values()) keys.add(node.getKey());
+    return keys;
   }
   /////////////////////////////////////////////////////////////////////////////
-  /**	Add scaffold to ScaffoldSet, and compress.
+  /**	Add scaffold to ScaffoldSet, as ScaffoldNode.  Scaffold and child
+	scaffolds must have IDs.  Indexed by ID before key, so a scaffold
+	found by key is always found by ID.  ID allocator kept beyond any
+	ID added.
   */
   public void addScaffold(Scaffold scaf)
   {
-    String cansmi=scaf.getCansmi();
-    Long id=scaf.getID();
-    //if (cansmi==null) System.err.println("DEBUG: (addScaffold) ERROR: cansmi==null.");
-    //if (id==null) System.err.println("DEBUG: (addScaffold) ERROR: id==null.");
+    ScaffoldNode node = new ScaffoldNode(scaf);
+    this.indexByID(scaf,node);
+    this.scafhash.put(nodeKey(node),node);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private void indexByID(Scaffold scaf,ScaffoldNode node)
+  {
+    long id=node.getID();
     //if (id==0) System.err.println("DEBUG: (addScaffold) ERROR: id==0.");
-    scaf.compress();
-    this.scafhash.put(cansmi,scaf);
-    this.idhash.put(id,scaf);
+    if (this.scafhash.isEmpty())
+    {
+      this.config=scaf.getConfig();
+    }
+    this.chunk((int)id,true).set((int)id&(CHUNK_SIZE-1),node);
+    long last;
+    while ((last=this.lastid.get())<id && !this.lastid.compareAndSet(last,id)) ;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private AtomicReferenceArray<ScaffoldNode> chunk(int id,boolean create)
+  {
+    int i=(id>>>CHUNK_BITS);
+    AtomicReferenceArray<ScaffoldNode> chunk=this.idchunks.get(i);
+    if (chunk==null && create)
+    {
+      this.idchunks.compareAndSet(i,null,new AtomicReferenceArray<ScaffoldNode>(CHUNK_SIZE));
+      chunk=this.idchunks.get(i);
+    }
+    return chunk;
   }
   /////////////////////////////////////////////////////////////////////////////
+  /**	Returns ScaffoldNode with ID, null if missing.
+  */
+  public ScaffoldNode getNodeByID(long id)
+  {
+    if (id<=0L || id>Integer.MAX_VALUE) return null;
+    AtomicReferenceArray<ScaffoldNode> chunk=this.chunk((int)id,false);
+    return ((chunk!=null)?chunk.get((int)id&(CHUNK_SIZE-1)):null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Returns Scaffold with ID, with its sub-hierarchy, materialized
+	from ScaffoldNodes, null if missing.  Scaffolds are compressed;
+	shared descendants are the same instances.
+  */
   public Scaffold getScaffoldByID(long id)
   {
-    Scaffold scaf=null;
-    if (this.idhash.containsKey(id))
-      scaf=this.idhash.get(id);
-    return scaf;
+    ScaffoldNode node=this.getNodeByID(id);
+    if (node==null) return null;
+    final HashMap<Integer,Scaffold> scafs = new HashMap<Integer,Scaffold>();
+    ScaffoldTraversal<ScaffoldNode> trav = new ScaffoldTraversal<ScaffoldNode>(new ScaffoldTraversal.Children<ScaffoldNode>() {
+      public List<ScaffoldNode> get(ScaffoldNode n)
+      {
+        ArrayList<ScaffoldNode> cnodes = new ArrayList<ScaffoldNode>(n.getChildCount());
+        for (int cid: n.getChildIDs()) cnodes.add(getNodeByID(cid));
+        return cnodes;
+      }
+    },true);
+    return trav.visit(node,new ScaffoldTraversal.Visitor<ScaffoldNode,Scaffold>() {
+      public Scaffold visit(ScaffoldNode n,List<Scaffold> cscafs)
+      {
+        Scaffold scaf=Scaffold.compressed(n.getID(),n.getCansmi(),n.getKey(),config);
+        for (Scaffold cscaf: cscafs)
+        {
+          scaf.getChildScaffolds().add(cscaf);
+          if (cscaf.getParentScaffold()==null) cscaf.setParentScaffold(scaf);
+        }
+        return scaf;
+      }
+    });
   }
   /////////////////////////////////////////////////////////////////////////////
-  /**	Return Scaffold with same cansmi, if present, otherwise null.
+  /**	Return Scaffold with same key, if present, otherwise null.
+	@see #getScaffoldByID(long)
   */
   public Scaffold findScaffold(Scaffold scaf)
   {
-    return this.scafhash.get(scaf.getCansmi()); //null if missing
+    Long id=this.getScaffoldID(scaf);
+    return ((id!=null)?this.getScaffoldByID(id):null); //null if missing
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Approximate heap bytes per scaffold, of nodes and indexes.
+  */
+  public long getBytesPerScaffold()
+  {
+    long n=this.getCount();
+    if (n==0) return 0L;
+    long nbytes=0L;
+    for (ScaffoldNode node: this.scafhash.values())
+    {
+      nbytes+=node.sizeOf();
+      nbytes+=32+24; //map node, NodeKey (bytes shared with node)
+    }
+    for (int i=0;i<this.idchunks.length();++i)
+      if (this.idchunks.get(i)!=null) nbytes+=16+4*CHUNK_SIZE;
+    return nbytes/n;
   }
   /////////////////////////////////////////////////////////////////////////////
   public void DEBUG_dump()
   {
     for (long id=1L;true;++id)
     {
-      Scaffold scaf=null;
-      try {
-        scaf=this.getScaffoldByID(id);
-      }
-      catch (Exception e) { break; }
-      if (scaf==null) break;
+      ScaffoldNode node=this.getNodeByID(id);
+      if (node==null) break;
       System.err.println("Scaffold ID="+id+":");
-      System.err.println("\tCansmi: "+scaf.getCansmi());
-      System.err.println("\tChildIDs: "+scaf.getChildIDs());
+      System.err.println("\tCansmi: "+node.getCansmi());
+      System.err.println("\tChildIDs: "+Arrays.toString(node.getChildIDs()));
     }
     return;
   }
@@ -5,6 +5,7 @@ import java.util.*;
 import java.math.*;
 import java.lang.InterruptedException;
 
+import com.sleepycat.je.CheckpointConfig;
 import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
@@ -17,8 +18,6 @@ import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.StoreConfig;
 import com.sleepycat.je.DatabaseException;
 
-import chemaxon.formats.MolFormatException;
-
 /**	Initiate and provide local storage &amp; retrieval via BerkeleyDB.
 	For large jobs this avoids memory limits and improves performance by
 	storing solved scaffolds for rapid lookup and avoiding re-calculation.
@@ -27,6 +26,15 @@ import chemaxon.formats.MolFormatException;
 	for if BerkeleyDB is unavailable or for small datasets.
 	<br>
 	For largest jobs use ScaffoldDB (PostgreSQL).
+	<br>
+	In bulk mode (see constructor), the environment is non-transactional
+	and the store deferred-write, so writes are buffered in the cache and
+	written to the log only at checkpoint() (or eviction, or close), in
+	place of a synchronous commit per put.  A crash then loses at most
+	the scaffolds merged since the last checkpoint, and the job is
+	resumed from the input position recorded by it
+	(getCheckpointPosition()).  A bulk store must be reopened in bulk
+	mode.
 	@author Jeremy J Yang
  */
 public class ScaffoldStore
@@ -37,30 +45,157 @@ public class ScaffoldStore
   private EntityStore scafEntityStore;
   private Boolean stereo;
   private Boolean keep_nitro_attachments;
+  private boolean bulk;
+  /** last scaffold ID assigned; IDs are dense, 1..lastid */
+  private long lastid;
+  /** false if store created before canonical keys (entity version 1) */
+  private boolean keyed;
   
   protected PrimaryIndex<Long, ScaffoldStoreEntity> scaffoldById;
   protected SecondaryIndex<String, Long, ScaffoldStoreEntity> scaffoldByCanSmi;
+  protected SecondaryIndex<String, Long, ScaffoldStoreEntity> scaffoldByCanKey;
+  protected PrimaryIndex<String, ScaffoldStoreCheckpoint> checkpointByName;
 
   /////////////////////////////////////////////////////////////////////////////
-  /**	Constructor creates or opens existing database in directory specified.
-	Tuning and configuration would be addressed here.
+  /**	Constructor creates or opens existing database in directory specified,
+	with JE default tuning.
   */
   public ScaffoldStore(File location,Boolean stereo,Boolean keep_nitro_attachments)
 	throws DatabaseException
   {
+    this(location,stereo,keep_nitro_attachments,false,null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, in bulk mode if bulk true: non-transactional,
+	deferred-write, durable only at checkpoint().
+  */
+  public ScaffoldStore(File location,Boolean stereo,Boolean keep_nitro_attachments,boolean bulk)
+	throws DatabaseException
+  {
+    this(location,stereo,keep_nitro_attachments,bulk,null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with tuning profile (cache, log file size, cleaner threads,
+	lock timeout), or null for JE defaults.
+	@throws IllegalArgumentException if tuning parameter invalid
+  */
+  public ScaffoldStore(File location,Boolean stereo,Boolean keep_nitro_attachments,boolean bulk,ScaffoldStoreTuning tuning)
+	throws DatabaseException
+  {
+    this.bulk=bulk;
     this.envConf.setAllowCreate(true);
-    this.envConf.setTransactional(true);
+    this.envConf.setTransactional(!bulk);
+    if (tuning!=null) tuning.apply(this.envConf);
     this.env = new Environment(location,envConf);
-    //EnvironmentMutableConfig emconfig = env.getMutableConfig();
-    //emconfig.setCacheSize(emconfig.getCacheSize()*2);
     //System.err.println("DEBUG: stats = "+getStatsString());
     this.storeConf.setAllowCreate(true);
-    this.storeConf.setTransactional(true);
+    this.storeConf.setTransactional(!bulk);
+    this.storeConf.setDeferredWrite(bulk);
     this.scafEntityStore = new EntityStore(env,"scaffolds",storeConf);
     this.scaffoldById = this.scafEntityStore.getPrimaryIndex(Long.class, ScaffoldStoreEntity.class);
     this.scaffoldByCanSmi = this.scafEntityStore.getSecondaryIndex(scaffoldById, String.class, "canSmi");
+    this.scaffoldByCanKey = this.scafEntityStore.getSecondaryIndex(scaffoldById, String.class, "canKey");
+    this.checkpointByName = this.scafEntityStore.getPrimaryIndex(String.class, ScaffoldStoreCheckpoint.class);
     this.stereo=stereo;
     this.keep_nitro_attachments=keep_nitro_attachments;
+    this.lastid=this.lastKey();
+    ScaffoldStoreEntity scent=((this.lastid>0L)?this.scaffoldById.get(1L):null);
+    this.keyed=(scent==null || scent.getCanKey()!=null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Last (largest) primary key, 0 if empty, by one cursor positioning,
+	not a scan.  Since IDs are dense, this seeds the ID allocator, for
+	new or resumed (-bdb_resume) stores alike.
+  */
+  private long lastKey()
+	throws DatabaseException
+  {
+    EntityCursor<Long> keys = this.scaffoldById.keys();
+    try {
+      Long id=keys.last();
+      return ((id!=null)?id:0L);
+    }
+    finally { keys.close(); }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Returns last scaffold ID assigned, which is the number of scaffolds,
+	since IDs are dense (1..N).  Unlike count(), O(1).
+  */
+  public long getLastID() { return this.lastid; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	False if store was created by a version before canonical keys
+	(ScaffoldStoreEntity version 1), so scaffolds have null canKey and
+	cannot be found by key.  Such a store can be dumped, but not
+	resumed (merged into); it must be rebuilt (-bdb_predelete).
+  */
+  public boolean isKeyed() { return this.keyed; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Is this store in bulk mode (non-transactional, deferred-write).
+  */
+  public boolean isBulk() { return this.bulk; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Records input position (molecules processed, including skipped),
+	and makes all writes so far durable: in bulk mode, deferred writes
+	are written to the log (EntityStore.sync()); then the environment
+	is checkpointed, bounding recovery time.  Call every N molecules,
+	so that a crash loses at most N molecules of work.
+  */
+  public void checkpoint(long n_mol)
+	throws DatabaseException
+  {
+    this.checkpoint(n_mol,-1L);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, also recording output file length, flushed by the
+	caller, for the output of molecules 1..n_mol, or -1 if none.
+  */
+  public void checkpoint(long n_mol,long ofile_len)
+	throws DatabaseException
+  {
+    this.checkpointByName.put(new ScaffoldStoreCheckpoint("input",n_mol,this.lastid,ofile_len));
+    if (this.bulk) this.scafEntityStore.sync();
+    CheckpointConfig ckptConf = new CheckpointConfig();
+    ckptConf.setForce(true);
+    this.env.checkpoint(ckptConf);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Input position recorded by last checkpoint(), 0 if none, from
+	which to resume (-bdb_resume).
+  */
+  public long getCheckpointPosition()
+	throws DatabaseException
+  {
+    ScaffoldStoreCheckpoint ckpt=this.checkpointByName.get("input");
+    return ((ckpt!=null)?ckpt.getPosition():0L);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Output file length recorded by last checkpoint(), -1 if none, to
+	which output is truncated on resume.
+  */
+  public long getCheckpointOutputLength()
+	throws DatabaseException
+  {
+    ScaffoldStoreCheckpoint ckpt=this.checkpointByName.get("input");
+    return ((ckpt!=null)?ckpt.getOutputLength():-1L);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Stores new scaffold entity with next ID, allocated only once stored,
+	so IDs remain dense.  Since canSmi is a unique secondary key, a
+	cansmi already stored under another key means keys disagree with
+	cansmi identity (see CanonicalKey), and is rejected, rather than
+	giving the scaffold two keys.
+  */
+  private ScaffoldStoreEntity putNew(String cansmi,String key,long parentid)
+	throws DatabaseException
+  {
+    ScaffoldStoreEntity scent=this.scaffoldByCanSmi.get(cansmi);
+    if (scent!=null)
+      throw new IllegalStateException("ScaffoldStore: [id="+scent.getId()+"] "+cansmi+" stored with key "+scent.getCanKey()+", not "+key+".");
+    scent = new ScaffoldStoreEntity(this.lastid+1,cansmi,key);
+    if (parentid>0L) scent.setParentId(parentid);
+    this.scaffoldById.put(scent);
+    this.lastid=scent.getId();
+    return scent;
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Returns number of scaffolds in ScaffoldStore.
@@ -83,21 +218,21 @@ public class ScaffoldStore
     txt+="config:\n";
     txt+=("\tstereo: "+this.isStereo()+"\n");
     txt+=("\tkeep_nitro_attachments: "+this.isKeep_nitro_attachments()+"\n");
+    txt+=("\tbulk: "+this.isBulk()+"\n");
     txt+=("count() = "+this.count()+"\n");
-    Long id_max=0L;
-    Transaction txn = this.env.beginTransaction(null, null);
-    EntityCursor<ScaffoldStoreEntity> curr = this.scaffoldById.entities(txn, CursorConfig.DEFAULT);
-    for (ScaffoldStoreEntity scaf=curr.first(); scaf!=null; scaf=curr.next())
-      id_max=Math.max(id_max,scaf.getId());
-    curr.close();
-    txn.commitNoSync();
-    txt+=("id_max = "+id_max+"\n");
+    txt+=("id_max = "+this.lastKey()+"\n");
+    txt+=("checkpoint_position = "+this.getCheckpointPosition()+"\n");
     if (verbose>1)
     {
       txt+="databases:\n";
       for (String dbName : this.env.getDatabaseNames())
         txt+=("\t"+dbName+"\n");
     }
+    if (verbose>2)
+    {
+      txt+=("cache_size = "+this.env.getMutableConfig().getCacheSize()+"\n");
+      txt+=("metrics = "+this.getMetrics()+"\n");
+    }
     if (verbose>3)
       txt+=("envstats = "+this.env.getStats(null).toString()+"\n");
     return txt;
@@ -143,11 +278,10 @@ public class ScaffoldStore
           }
           Transaction txn=null;
           try {
-            txn=this.env.beginTransaction(null, null);
+            if (!this.bulk) txn=this.env.beginTransaction(null, null);
             this.env.verify(null, System.err);
-            long count=this.env.truncateDatabase(txn,dbName,true);
-            //long count=this.env.truncateDatabase(null,dbName,true); //non-transactional way
-            txn.commit();
+            long count=this.env.truncateDatabase(txn,dbName,true); //txn null if non-transactional (bulk)
+            if (txn!=null) txn.commit();
             ok=true;
           }
           catch (DatabaseException e) {
@@ -160,6 +294,7 @@ public class ScaffoldStore
         }
       }
     }
+    this.lastid=0L;
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Destroy databases (empty files may remain).
@@ -183,9 +318,9 @@ public class ScaffoldStore
           }
           Transaction txn=null;
           try {
-            txn=this.env.beginTransaction(null, null);
-            this.env.removeDatabase(txn,dbName);
-            txn.commit();
+            if (!this.bulk) txn=this.env.beginTransaction(null, null);
+            this.env.removeDatabase(txn,dbName); //txn null if non-transactional (bulk)
+            if (txn!=null) txn.commit();
             ok=true;
           }
           catch (DatabaseException e) {
@@ -197,6 +332,7 @@ public class ScaffoldStore
         }
       }
     }
+    this.lastid=0L;
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Merges a fully populated ScaffoldTree defined by the Scaffold
@@ -209,57 +345,61 @@ public class ScaffoldStore
 
 	Note that a new unknown parent may have known and/or new child scaffolds.	
 	Hence this recursive method must handle the known-scaffold case.
+
+	Scaffolds are looked up by canonical key; cansmi is generated only
+	for new scaffolds, for storage.  Entities are written only if
+	changed: a new child is stored with its parent ID; a known child
+	keeps its first parent, and is written only if it had none (e.g.
+	stored as a root); the parent is written once, with all child IDs,
+	only if a child ID was added.  So merging an already stored tree
+	writes nothing.
   */
   public int mergeScaffoldTree(Scaffold scaf)
     throws DatabaseException
   {
+    if (!this.keyed)
+      throw new IllegalStateException("ScaffoldStore created by earlier version, with no canonical keys; rebuild (-bdb_predelete).");
     int n_new=0;
-    String cansmi=scaf.getCansmi();
-    //System.err.println("DEBUG: (mergeScaffoldTree) scafsmi="+cansmi);
-    long id=0L;
+    String key=scaf.getKey();
+    //System.err.println("DEBUG: (mergeScaffoldTree) scafkey="+key);
     // First either find existing or create new ScaffoldStoreEntity.
-    if (this.scaffoldByCanSmi.contains(cansmi))
+    ScaffoldStoreEntity scent=this.scaffoldByCanKey.get(key);
+    if (scent==null)
     {
-      id=this.scaffoldByCanSmi.get(cansmi).getId();
-      //System.err.println("DEBUG: (mergeScaffoldTree) scaf found; id="+id);
-    }
-    else
-    {
-      id=this.count()+1;	//new ID (manual)
-      this.scaffoldById.put(new ScaffoldStoreEntity(id,cansmi));
+      scent=this.putNew(scaf.getCansmi(),key,0L);	//new ID (manual)
       ++n_new;
     }
+    //else System.err.println("DEBUG: (mergeScaffoldTree) scaf found; id="+scent.getId());
+    long id=scent.getId();
     scaf.setID(id);
-    ScaffoldStoreEntity scent=this.scaffoldById.get(id);
+    boolean changed=false;
 
     // For each child, find existing or create new ScaffoldStoreEntity, then recurse.
     for (Scaffold cscaf : scaf.getChildScaffolds())
     {
-      cansmi=cscaf.getCansmi();
-      long cid=0L;
-      if (this.scaffoldByCanSmi.contains(cansmi))
+      key=cscaf.getKey();
+      ScaffoldStoreEntity cscent=this.scaffoldByCanKey.get(key);
+      if (cscent==null)
       {
-        cid=this.scaffoldByCanSmi.get(cansmi).getId();
+        cscent=this.putNew(cscaf.getCansmi(),key,id);	//new ID (manual)
+        ++n_new;
       }
-      else
+      else if (cscent.getParentId()==0L) //first parent
       {
-        cid=this.count()+1;	//new ID (manual)
-        this.scaffoldById.put(new ScaffoldStoreEntity(cid,cansmi));
-        ++n_new;
+        cscent.setParentId(id);
+        this.scaffoldById.put(cscent); //update
       }
-      ScaffoldStoreEntity cscent=this.scaffoldById.get(cid);
+      long cid=cscent.getId();
       cscaf.setID(cid);
-      scent.addChildId(cid);
-      this.scaffoldById.put(scent); //update
-      //System.err.println("DEBUG: (mergeScaffoldTree) ID="+id+" scent.getChildIds() "+scent.getChildIds());
-      //System.err.println("DEBUG: (mergeScaffoldTree) CID="+cid+" cscent.setParentId("+id+") ...");
-      cscent.setParentId(id);
-      this.scaffoldById.put(cscent); //update
+      if (scent.addChildId(cid)) changed=true;
       //System.err.println("DEBUG: (mergeScaffoldTree) CID="+cid+" ID="+id+" cscent.getParentId() "+cscent.getParentId());
       //DEBUG_dump(); //DEBUG
 
       n_new+=mergeScaffoldTree(cscaf);
     }
+    if (changed)
+      this.scaffoldById.put(scent); //update, once
+    //System.err.println("DEBUG: (mergeScaffoldTree) ID="+id+" scent.getChildIds() "+scent.getChildIds());
     return n_new;
   }
   /////////////////////////////////////////////////////////////////////////////
@@ -268,46 +408,62 @@ public class ScaffoldStore
 	be known.
 
 	For known scaffold, obtain ID from store, and find child scaffolds
-	in store to populate ScaffoldTree.
+	in store to populate ScaffoldTree.  Descendants are lazy proxies
+	(Scaffold.compressed()) holding only ID, cansmi, key and children;
+	molecules are built from cansmi only if structure is needed
+	(decompress()), e.g. hier_scaffolds -inc_scaf.  Each descendant is
+	fetched once, and shared by its parents, as a DAG, so a store hit
+	costs one index lookup per distinct scaffold.
+	Returns number of descendants, counting shared descendants once per
+	path, as formerly.
   */
   public int populateScaffoldTree(Scaffold scaf)
     throws DatabaseException
   {
-    int n_scaf=0;
     //System.err.println("DEBUG: (populateScaffoldTree); scaf.getID() = "+scaf.getID());
-    if (!this.scaffoldById.contains(scaf.getID()))
+    ScaffoldStoreEntity scent = this.scaffoldById.get(scaf.getID());
+    if (scent==null)
     {
       //System.err.println("DEBUG: (populateScaffoldTree) aaack! ID not found...");
       return 0; //Should not happen.
     }
-    ScaffoldStoreEntity scent = this.scaffoldById.get(scaf.getID());
-    HashSet<Long> chids = scent.getChildIds();
-    //System.err.println("DEBUG: (populateScaffoldTree) chids.size() = "+chids.size());
-    for (Iterator<Long> itr=chids.iterator(); itr.hasNext(); )
+    HScafConfig config=this.getConfig();
+    HashMap<Long,Scaffold> proxies = new HashMap<Long,Scaffold>();
+    ArrayDeque<Scaffold> queue = new ArrayDeque<Scaffold>();
+    ArrayDeque<ScaffoldStoreEntity> scents = new ArrayDeque<ScaffoldStoreEntity>();
+    queue.add(scaf);
+    scents.add(scent);
+    while (!queue.isEmpty())
     {
-      long chid=itr.next();
-      //if (chid==0) System.err.println("DEBUG: (populateScaffoldTree) ERROR; chid = "+chid);
-      ScaffoldStoreEntity cscent = this.scaffoldById.get(chid);
-      String cansmi = cscent.getCanSmi();
-      //System.err.println("DEBUG: (populateScaffoldTree) chid = "+chid+" ; smi = "+cansmi);
-      Scaffold cscaf = null;
-      try { cscaf = new Scaffold(cansmi,this.isStereo(),this.isKeep_nitro_attachments()); }
-      catch (MolFormatException e) { System.err.println("DEBUG: aaack! (populateScaffoldTree)"); } //Should not happen.
-      cscaf.setID(chid);
-      scaf.addChild(cscaf);
-      ++n_scaf;
-      n_scaf+=populateScaffoldTree(cscaf);      //recurse
+      Scaffold pscaf=queue.poll();
+      ScaffoldStoreEntity pscent=scents.poll();
+      //System.err.println("DEBUG: (populateScaffoldTree) chids.size() = "+pscent.getChildIds().size());
+      for (long chid: pscent.getChildIds())
+      {
+        Scaffold cscaf=proxies.get(chid);
+        if (cscaf==null)
+        {
+          ScaffoldStoreEntity cscent = this.scaffoldById.get(chid);
+          if (cscent==null) continue; //Should not happen.
+          cscaf=Scaffold.compressed(chid,cscent.getCanSmi(),cscent.getCanKey(),config);
+          proxies.put(chid,cscaf);
+          queue.add(cscaf);
+          scents.add(cscent);
+        }
+        pscaf.addStoredChild(cscaf);
+      }
     }
-    //System.err.println("DEBUG: (populateScaffoldTree) leaving... ; n_scaf = "+n_scaf);
-    return n_scaf;
+    //System.err.println("DEBUG: (populateScaffoldTree) leaving... ; n_scaf = "+proxies.size());
+    return scaf.getAllChildCount();
   }
   /////////////////////////////////////////////////////////////////////////////
-  /**	Returns BerkeleyDB environment stats.
+  /**	Returns snapshot of BerkeleyDB environment metrics (cache hit ratio,
+	evictions, log size, checkpoints, etc.).
   */
-  public String getStatsString()
+  public ScaffoldStoreMetrics getMetrics()
 	throws DatabaseException
   {
-    return this.env.getStats(null).toString();
+    return new ScaffoldStoreMetrics(this.env);
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Generates string representing the hierarchical scaffold sub tree
@@ -318,22 +474,36 @@ public class ScaffoldStore
 	throws DatabaseException
   {
     if (scent==null) return "";
-    String str=""+scent.getId();
-    if (scent.getChildIds().size()>0)
-    {
-      //System.err.println("DEBUG: scent.getChildIds().size()="+scent.getChildIds().size());
-      str+="(";
-      long i=0L;
-      HashSet<Long> chids = scent.getChildIds();
-      for (Iterator<Long> itr=chids.iterator(); itr.hasNext(); )
+    final HashMap<Long,ScaffoldStoreEntity> scents = new HashMap<Long,ScaffoldStoreEntity>();
+    scents.put(scent.getId(),scent);
+    ScaffoldTraversal<Long> trav = new ScaffoldTraversal<Long>(new ScaffoldTraversal.Children<Long>() {
+      public List<Long> get(Long id)
       {
-        long id=itr.next();
-        ScaffoldStoreEntity cscent=this.scaffoldById.get(id);
-        str+=(((i++>0)?",":"")+this.getScaffoldString(cscent)); //recurse
+        ScaffoldStoreEntity cscent=scents.get(id);
+        if (cscent==null) return Collections.<Long>emptyList();
+        ArrayList<Long> chids = new ArrayList<Long>(cscent.getChildIds());
+        for (long chid: chids)
+          if (!scents.containsKey(chid)) scents.put(chid,scaffoldById.get(chid));
+        return chids;
       }
-      str+=")";
-    }
-    return str;
+    },false);
+    return trav.visit(scent.getId(),new ScaffoldTraversal.Visitor<Long,String>() {
+      public String visit(Long id,List<String> cstrs)
+      {
+        if (scents.get(id)==null) return "";
+        StringBuilder sb = new StringBuilder(""+id);
+        if (cstrs.size()>0)
+        {
+          //System.err.println("DEBUG: cstrs.size()="+cstrs.size());
+          sb.append("(");
+          int i=0;
+          for (String cstr: cstrs)
+            sb.append(((i++>0)?",":"")+cstr);
+          sb.append(")");
+        }
+        return sb.toString();
+      }
+    });
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Is stereo flag on for scaffolds in this ScaffoldStore.
@@ -350,34 +520,148 @@ public class ScaffoldStore
     return this.keep_nitro_attachments;
   }
   /////////////////////////////////////////////////////////////////////////////
+  /**	Configuration (flags and formats) for scaffolds in this ScaffoldStore.
+  */
+  public HScafConfig getConfig()
+  {
+    return HScafConfig.of(this.stereo,this.keep_nitro_attachments);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Receives scaffolds from dump(), in ID order.
+  */
+  public interface DumpHandler
+  {
+    public void scaffold(long id,String cansmi,String scaftree) throws IOException;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Streams all scaffolds in this ScaffoldStore, in ID order, with
+	scaffold tree strings (as getScaffoldString()), to handler.  Two
+	sequential cursor passes, in place of a point get() per scaffold and
+	per descendant: the first loads child IDs of all scaffolds, compactly
+	(arrays indexed by ID, since IDs are dense); the second streams
+	entities, computing each tree string bottom-up, from its children's,
+	exactly once.  Each string is cached until used by all its parents
+	and output, then released, so memory is bounded by the pending
+	strings, not the store.  Returns number of scaffolds.
+  */
+  public long dump(DumpHandler handler)
+	throws IOException,DatabaseException
+  {
+    int n=(int)this.lastid;
+    int[] offset = new int[n+2];	//children of id: chids[offset[id]..offset[id+1])
+    long[] chids = new long[Math.max(16,2*n)];
+    int[] nref = new int[n+1];	//pending uses of tree string: parents, and output
+    boolean[] stored = new boolean[n+1];
+    int n_edge=0;
+    int id_prev=0;
+    EntityCursor<ScaffoldStoreEntity> curs = this.scaffoldById.entities();
+    try {
+      for (ScaffoldStoreEntity scent: curs)
+      {
+        int id=(int)scent.getId();
+        if (id>n) break; //Should not happen.
+        while (id_prev<id) offset[++id_prev]=n_edge;
+        stored[id]=true;
+        ++nref[id];
+        for (long chid: scent.getChildIds())
+        {
+          if (n_edge==chids.length) chids=Arrays.copyOf(chids,2*n_edge);
+          chids[n_edge++]=chid;
+          if (chid>0L && chid<=n) ++nref[(int)chid];
+        }
+      }
+    }
+    finally { curs.close(); }
+    while (id_prev<=n) offset[++id_prev]=n_edge;
+
+    String[] scaftrees = new String[n+1];
+    boolean[] onstack = new boolean[n+1];
+    long nscaf=0;
+    curs = this.scaffoldById.entities();
+    try {
+      for (ScaffoldStoreEntity scent: curs)
+      {
+        int id=(int)scent.getId();
+        if (id>n) break; //Should not happen.
+        handler.scaffold(id,scent.getCanSmi(),scaffoldString(id,offset,chids,nref,stored,scaftrees,onstack));
+        if (--nref[id]==0) scaftrees[id]=null;
+        ++nscaf;
+      }
+    }
+    finally { curs.close(); }
+    return nscaf;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Tree string of scaffold, from cached strings of children, computing
+	those not cached first, depth-first, iteratively (the stack is a path
+	from id).  Child strings are released once used by all parents and
+	output.  Missing scaffolds, and (should not happen) cycles, yield "".
+  */
+  private static String scaffoldString(int id,int[] offset,long[] chids,int[] nref,boolean[] stored,String[] scaftrees,boolean[] onstack)
+  {
+    if (scaftrees[id]!=null) return scaftrees[id];
+    int n=scaftrees.length-1;
+    ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+    stack.push(id);
+    onstack[id]=true;
+    while (!stack.isEmpty())
+    {
+      int top=stack.peek();
+      boolean ready=true;
+      for (int k=offset[top];k<offset[top+1];++k)
+      {
+        long chid=chids[k];
+        if (chid<1L || chid>n || !stored[(int)chid] || scaftrees[(int)chid]!=null || onstack[(int)chid]) continue;
+        stack.push((int)chid);
+        onstack[(int)chid]=true;
+        ready=false;
+        break;
+      }
+      if (!ready) continue;
+      stack.pop();
+      onstack[top]=false;
+      StringBuilder sb = new StringBuilder(""+top);
+      if (offset[top+1]>offset[top])
+      {
+        sb.append("(");
+        for (int k=offset[top];k<offset[top+1];++k)
+        {
+          long chid=chids[k];
+          boolean ok=(chid>=1L && chid<=n && stored[(int)chid] && scaftrees[(int)chid]!=null);
+          sb.append(((k>offset[top])?",":"")+(ok?scaftrees[(int)chid]:""));
+          if (ok && --nref[(int)chid]==0) scaftrees[(int)chid]=null;
+        }
+        sb.append(")");
+      }
+      scaftrees[top]=sb.toString();
+    }
+    return scaftrees[id];
+  }
+  /////////////////////////////////////////////////////////////////////////////
   /**	Dump all scaffolds in this ScaffoldStore to file; format is 
 	legal smiles file and normal hier_scaffolds output:
 	(SMILES ID SCAFTREE).  Returns number of scaffolds
-	written.
+	written.  Streams via dump(), through one buffered writer.
   */
   public long dumpToFile(File fout,int verbose)
         throws IOException,DatabaseException
   {
-    long nscaf=0;
     if (verbose>0)
     {
       System.err.println("Dumping scaffold store to file.");
       System.err.println(this.info(verbose));
     }
-    PrintWriter fout_writer=new PrintWriter(new BufferedWriter(new FileWriter(fout,false))); //overwrite
-
-    for (long scaf_id=1L;true;++scaf_id)
-    {
-      ScaffoldStoreEntity scent=null;
-      try {
-        scent=this.scaffoldById.get(scaf_id);
-      }
-      catch (Exception e) { break; } //Must be EOF? 
-      if (scent==null) break;
-      fout_writer.printf("%s %d %s\n",scent.getCanSmi(),scaf_id,getScaffoldString(scent));
-      ++nscaf;
+    final Writer fout_writer=new BufferedWriter(new FileWriter(fout,false),1<<16); //overwrite
+    long nscaf=0;
+    try {
+      nscaf=this.dump(new DumpHandler() {
+        public void scaffold(long id,String cansmi,String scaftree) throws IOException
+        {
+          fout_writer.write(cansmi+" "+id+" "+scaftree+"\n");
+        }
+      });
     }
-    fout_writer.close();
+    finally { fout_writer.close(); }
     return nscaf;
   }
 }
@@ -0,0 +1,72 @@
+package edu.unm.health.biocomp.hscaf;
+
+import com.sleepycat.persist.model.*;
+
+/**	Checkpoint record stored in BerkeleyDB-based ScaffoldStore, one per
+	name (currently only "input"), recording the input position (number
+	of molecules processed, including skipped) as of the last
+	ScaffoldStore.checkpoint(), so that a job may be resumed from there
+	(-bdb_resume) after a crash.  In bulk mode (-bdb_bulk), scaffolds
+	merged since the last checkpoint may be lost, so resumption is from
+	this position, not the end of the store.  The length of the output
+	file (-o) at the checkpoint is also recorded, so that output written
+	after it may be truncated on resume (-append2ofile), and not
+	duplicated.
+        <br>
+	@see ScaffoldStore
+	@author Jeremy J Yang
+*/
+@Entity(version=1)
+public class ScaffoldStoreCheckpoint
+{
+  @PrimaryKey
+  private String name;
+
+  private long n_mol;
+
+  private long lastId;
+
+  private long ofileLength=-1L;
+
+  public ScaffoldStoreCheckpoint(String name,long n_mol,long lastId) {
+    this.name = name;
+    this.n_mol = n_mol;
+    this.lastId = lastId;
+  }
+
+  public ScaffoldStoreCheckpoint(String name,long n_mol,long lastId,long ofileLength) {
+    this(name,n_mol,lastId);
+    this.ofileLength = ofileLength;
+  }
+
+  @SuppressWarnings("unused")
+  private ScaffoldStoreCheckpoint() { }
+
+  public String getName() {
+    return name;
+  }
+
+  /**	Input position: molecules processed, including skipped.
+  */
+  public long getPosition() {
+    return n_mol;
+  }
+
+  /**	Last scaffold ID assigned, at checkpoint.
+  */
+  public long getLastId() {
+    return lastId;
+  }
+
+  /**	Output file length (bytes, flushed) at checkpoint, -1 if none.
+  */
+  public long getOutputLength() {
+    return ofileLength;
+  }
+
+  @Override
+  public String toString()
+  {
+    return name + "\t" + n_mol + "\t" + lastId ;
+  }
+}
@@ -9,22 +9,31 @@ import static com.sleepycat.persist.model.Relationship.*;
         <br>
 	Developer note: Auto-sequencing did not work correctly for cases where a database
 	was re-opened, which resulted in skipping ahead (to nearest largest multiple of 100).
-	So scaffold IDs are manually assigned 1 + count().
+	So scaffold IDs are manually assigned, dense (1..N), by ScaffoldStore,
+	from the last primary key at open.
+        <br>
+	Scaffolds are identified by canonical key (Scaffold.getKey()); canonical
+	SMILES stored for output.  Version 1 adds canKey; stores created by
+	earlier versions have null canKey, are detected at open
+	(ScaffoldStore.isKeyed()), and must be rebuilt.
         <br>
 	@see ScaffoldStore
 	@author Jeremy J Yang
 */
-@Entity
+@Entity(version=1)
 public class ScaffoldStoreEntity
 {
   //@PrimaryKey(sequence="ID")  //auto, 1+	... not working correctly on re-opened database, skips ahead.
 
-  @PrimaryKey	//must assign manually as next available count+1, after [1,2,...count]
+  @PrimaryKey	//must assign manually as next available, after [1,2,...N] (ScaffoldStore.getLastID())
   private long id;
 
   @SecondaryKey(relate=ONE_TO_ONE)
   private String canSmi;
 
+  @SecondaryKey(relate=ONE_TO_ONE)
+  private String canKey;
+
   @SecondaryKey(relate=MANY_TO_MANY)
   private HashSet<Long> childIds = new HashSet<Long>();
 
@@ -36,6 +45,12 @@ public class ScaffoldStoreEntity
     this.canSmi = canSmi;
   }
 
+  public ScaffoldStoreEntity(Long id,String canSmi,String canKey) {
+    this.id = id;
+    this.canSmi = canSmi;
+    this.canKey = canKey;
+  }
+
   public void setChildIds(ArrayList<Long> cIds)
   {
     this.childIds.clear();
@@ -45,10 +60,12 @@ public class ScaffoldStoreEntity
     }
   }
 
-  public void addChildId(Long Id)
+  /**	Returns true if not already a child, i.e. entity changed.
+  */
+  public boolean addChildId(Long Id)
   {
     //System.err.println("DEBUG: (ScaffoldStoreEntity.addChildId) id="+Id);
-    this.childIds.add(Id);
+    return this.childIds.add(Id);
   }
 
   public void setParentId(Long Id) {
@@ -70,6 +87,10 @@ public class ScaffoldStoreEntity
     return canSmi;
   }
 
+  public String getCanKey() {
+    return canKey;
+  }
+
   @Override
   public String toString()
   {
@@ -0,0 +1,90 @@
+package edu.unm.health.biocomp.hscaf;
+
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
+import com.sleepycat.je.DatabaseException;
+
+/**	Snapshot of BerkeleyDB environment metrics for ScaffoldStore, for
+	sizing cache and machines for large runs: cache usage and hit
+	ratio, evictions, log size and fsyncs, checkpoints and cleaner
+	activity.  Counters are cumulative since the environment was opened.
+	Cache hit ratio is over B-tree node and record fetches (upper INs,
+	BINs and LNs).  Printed by hier_scaffolds -bdb at each progress tick.
+	<br>
+	@see ScaffoldStore#getMetrics()
+	@see ScaffoldStoreTuning
+	@author Jeremy J Yang
+*/
+public class ScaffoldStoreMetrics
+{
+  private long cacheSize;
+  private long cacheTotalBytes;
+  private long nFetch;
+  private long nFetchMiss;
+  private long nEvictPasses;
+  private long nNodesEvicted;
+  private long totalLogSize;
+  private long nLogFSyncs;
+  private long nCheckpoints;
+  private long nCleanerRuns;
+  private int cleanerBacklog;
+
+  /////////////////////////////////////////////////////////////////////////////
+  private ScaffoldStoreMetrics() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Snapshot of current environment stats (not cleared).
+  */
+  public ScaffoldStoreMetrics(Environment env)
+	throws DatabaseException
+  {
+    EnvironmentStats stats=env.getStats(new StatsConfig());
+    this.cacheSize=env.getMutableConfig().getCacheSize();
+    this.cacheTotalBytes=stats.getCacheTotalBytes();
+    this.nFetch=stats.getNUpperINsFetch()+stats.getNBINsFetch()+stats.getNLNsFetch();
+    this.nFetchMiss=stats.getNUpperINsFetchMiss()+stats.getNBINsFetchMiss()+stats.getNLNsFetchMiss();
+    this.nEvictPasses=stats.getNEvictPasses();
+    this.nNodesEvicted=stats.getNNodesExplicitlyEvicted()
+	+stats.getNBINsEvictedEvictorThread()+stats.getNBINsEvictedManual()
+	+stats.getNBINsEvictedCritical()+stats.getNBINsEvictedCacheMode()+stats.getNBINsEvictedDaemon()
+	+stats.getNUpperINsEvictedEvictorThread()+stats.getNUpperINsEvictedManual()
+	+stats.getNUpperINsEvictedCritical()+stats.getNUpperINsEvictedCacheMode()+stats.getNUpperINsEvictedDaemon();
+    this.totalLogSize=stats.getTotalLogSize();
+    this.nLogFSyncs=stats.getNLogFSyncs();
+    this.nCheckpoints=stats.getNCheckpoints();
+    this.nCleanerRuns=stats.getNCleanerRuns();
+    this.cleanerBacklog=stats.getCleanerBacklog();
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Configured cache size, bytes.
+  */
+  public long getCacheSize() { return this.cacheSize; }
+  public long getCacheTotalBytes() { return this.cacheTotalBytes; }
+  public long getFetchCount() { return this.nFetch; }
+  public long getFetchMissCount() { return this.nFetchMiss; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Fraction of fetches found in cache, 1 if none.
+  */
+  public double getCacheHitRatio()
+  {
+    return ((this.nFetch>0)?(1.0-(double)this.nFetchMiss/this.nFetch):1.0);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  public long getEvictPassCount() { return this.nEvictPasses; }
+  public long getEvictedNodeCount() { return this.nNodesEvicted; }
+  public long getTotalLogSize() { return this.totalLogSize; }
+  public long getLogFSyncCount() { return this.nLogFSyncs; }
+  public long getCheckpointCount() { return this.nCheckpoints; }
+  public long getCleanerRunCount() { return this.nCleanerRuns; }
+  public int getCleanerBacklog() { return this.cleanerBacklog; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	One line, e.g. "bdb: cache: 52.1/256.0MB; hit: 99.82%; evicted: 0 (passes: 0); log: 120.4MB; fsyncs: 12; checkpoints: 3; cleaner: 1 runs, backlog 0".
+  */
+  public String toString()
+  {
+    return String.format("bdb: cache: %.1f/%.1fMB; hit: %.2f%%; evicted: %d (passes: %d); log: %.1fMB; fsyncs: %d; checkpoints: %d; cleaner: %d runs, backlog %d",
+	this.cacheTotalBytes/1048576.0, this.cacheSize/1048576.0, 100.0*this.getCacheHitRatio(),
+	this.nNodesEvicted, this.nEvictPasses, this.totalLogSize/1048576.0, this.nLogFSyncs,
+	this.nCheckpoints, this.nCleanerRuns, this.cleanerBacklog);
+  }
+}
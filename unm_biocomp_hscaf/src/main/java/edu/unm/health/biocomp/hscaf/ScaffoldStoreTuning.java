@@ -0,0 +1,108 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.io.*;
+import java.util.*;
+
+import com.sleepycat.je.EnvironmentConfig;
+
+/**	BerkeleyDB tuning profile for ScaffoldStore: cache size (bytes or
+	percent of JVM heap), log file size, cleaner threads and lock
+	timeout, as JE configuration parameters (e.g. "je.maxMemory"),
+	applied to the environment when opened.  Set by convenience setters
+	(e.g. hier_scaffolds -bdb_cache_mb), or from a properties file of
+	JE parameters (-bdb_props), any of which may be given there.  Values
+	are validated by JE when applied.  Unset parameters take JE defaults
+	(or values from je.properties in the environment directory, which JE
+	reads itself).
+	<br>
+	@see ScaffoldStore
+	@see ScaffoldStoreMetrics
+	@author Jeremy J Yang
+*/
+public class ScaffoldStoreTuning
+{
+  private Properties params = new Properties();
+
+  /////////////////////////////////////////////////////////////////////////////
+  public ScaffoldStoreTuning() {}
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Profile from properties file of JE parameters ("je.*").
+  */
+  public static ScaffoldStoreTuning load(File fin)
+	throws IOException
+  {
+    ScaffoldStoreTuning tuning = new ScaffoldStoreTuning();
+    Properties props = new Properties();
+    Reader fin_reader = new BufferedReader(new FileReader(fin));
+    try { props.load(fin_reader); }
+    finally { fin_reader.close(); }
+    for (String name: props.stringPropertyNames())
+      tuning.setParam(name,props.getProperty(name).trim());
+    return tuning;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Sets any JE parameter, e.g. "je.maxMemory".
+  */
+  public void setParam(String name,String value)
+  {
+    if (!name.startsWith("je."))
+      throw new IllegalArgumentException("Not a BerkeleyDB JE parameter: "+name);
+    this.params.setProperty(name,value);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Cache size in bytes; overrides percent.
+  */
+  public void setCacheSize(long nbytes)
+  {
+    this.params.remove(EnvironmentConfig.MAX_MEMORY_PERCENT);
+    this.setParam(EnvironmentConfig.MAX_MEMORY,""+nbytes);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Cache size as percent of JVM max heap (JE default 60).
+  */
+  public void setCachePercent(int pct)
+  {
+    this.params.remove(EnvironmentConfig.MAX_MEMORY);
+    this.setParam(EnvironmentConfig.MAX_MEMORY_PERCENT,""+pct);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Max log file size in bytes (JE default 10MB).
+  */
+  public void setLogFileMax(long nbytes)
+  {
+    this.setParam(EnvironmentConfig.LOG_FILE_MAX,""+nbytes);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Log cleaner threads (JE default 1).
+  */
+  public void setCleanerThreads(int n)
+  {
+    this.setParam(EnvironmentConfig.CLEANER_THREADS,""+n);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Lock timeout in milliseconds (JE default 500).
+  */
+  public void setLockTimeout(long ms)
+  {
+    this.setParam(EnvironmentConfig.LOCK_TIMEOUT,ms+" ms");
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  public boolean isEmpty() { return this.params.isEmpty(); }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Applies parameters to environment configuration.
+	@throws IllegalArgumentException if parameter unknown or invalid
+  */
+  public void apply(EnvironmentConfig envConf)
+  {
+    for (String name: new TreeSet<String>(this.params.stringPropertyNames()))
+      envConf.setConfigParam(name,this.params.getProperty(name));
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (String name: new TreeSet<String>(this.params.stringPropertyNames()))
+      sb.append(((sb.length()>0)?",":"")+name+"="+this.params.getProperty(name));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,195 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+
+/**	Iterative (explicit stack) traversal of a scaffold hierarchy, which
+	is a DAG, since a scaffold may be child of several parents.  Nodes
+	may be Scaffolds, or other representations such as scaffold IDs in
+	a ScaffoldStore, given a Children function.  A visited set ensures
+	each node is expanded once, so shared sub-DAGs are not walked
+	repeatedly, and deep hierarchies cannot overflow the call stack.
+	<ul>
+	<li> iterator() - distinct descendants, in order of first occurrence
+	in the recursive listing: children, then descendants of each child.
+	<li> preorder() - root and distinct descendants, in depth-first
+	pre-order: each child, then its descendants, before the next child,
+	as merges number scaffolds.
+	<li> visit() - post-order Visitor, applied once per node, given the
+	results for its children (in child order, shared children repeated),
+	as needed for counts and subtree strings.
+	</ul>
+	Nodes are compared by identity (Scaffolds) or equals() (e.g. IDs).
+	<br>
+	@see edu.unm.health.biocomp.hscaf.Scaffold
+	@author Jeremy J Yang
+*/
+public class ScaffoldTraversal<N>
+{
+  /**	Child nodes of a node, in order. */
+  public interface Children<N>
+  {
+    public List<N> get(N node);
+  }
+  /**	Post-order visitor, returning result for node given results for
+	its children.
+  */
+  public interface Visitor<N,T>
+  {
+    public T visit(N node,List<T> cresults);
+  }
+
+  private Children<N> children;
+  private boolean identity;
+
+  /** Children of Scaffold. */
+  private static final Children<Scaffold> SCAFFOLD_CHILDREN = new Children<Scaffold>() {
+    public List<Scaffold> get(Scaffold scaf)
+    {
+      return ((scaf.getChildCount()>0) ? scaf.getChildScaffolds() : Collections.<Scaffold>emptyList());
+    }
+  };
+
+  /////////////////////////////////////////////////////////////////////////////
+  private ScaffoldTraversal() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  /**	@param children child function
+	@param identity compare nodes by identity, else equals()
+  */
+  public ScaffoldTraversal(Children<N> children,boolean identity)
+  {
+    this.children=children;
+    this.identity=identity;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Traversal of Scaffold hierarchy, by identity.
+  */
+  public static ScaffoldTraversal<Scaffold> ofScaffolds()
+  {
+    return new ScaffoldTraversal<Scaffold>(SCAFFOLD_CHILDREN,true);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private <V> Map<N,V> newMap()
+  {
+    return (this.identity ? new IdentityHashMap<N,V>() : new HashMap<N,V>());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private Set<N> newSet()
+  {
+    return Collections.newSetFromMap(this.<Boolean>newMap());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Distinct descendants of root (not including root), in order of
+	first occurrence in the recursive listing (children, then
+	descendants of each child).
+  */
+  public Iterator<N> iterator(final N root)
+  {
+    return new Iterator<N>() {
+      private Set<N> emitted = newSet();
+      private Set<N> expanded = newSet();
+      private ArrayDeque<N> pending = new ArrayDeque<N>(); //emitted, not yet returned
+      private ArrayDeque<Iterator<N>> stack = new ArrayDeque<Iterator<N>>(); //children to expand
+      {
+        expand(root);
+      }
+      private void expand(N node)
+      {
+        expanded.add(node);
+        List<N> cnodes=children.get(node);
+        for (N cnode: cnodes)
+          if (emitted.add(cnode)) pending.add(cnode);
+        stack.push(cnodes.iterator());
+      }
+      private void advance()
+      {
+        while (pending.isEmpty() && !stack.isEmpty())
+        {
+          Iterator<N> itr=stack.peek();
+          if (!itr.hasNext()) { stack.pop(); continue; }
+          N cnode=itr.next();
+          if (!expanded.contains(cnode)) expand(cnode);
+        }
+      }
+      public boolean hasNext()
+      {
+        advance();
+        return !pending.isEmpty();
+      }
+      public N next()
+      {
+        advance();
+        if (pending.isEmpty()) throw new NoSuchElementException();
+        return pending.poll();
+      }
+      public void remove() { throw new UnsupportedOperationException(); }
+    };
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Distinct descendants of root, as list.
+	@see #iterator(Object)
+  */
+  public ArrayList<N> descendants(N root)
+  {
+    ArrayList<N> nodes = new ArrayList<N>();
+    for (Iterator<N> itr=this.iterator(root); itr.hasNext(); ) nodes.add(itr.next());
+    return nodes;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Root and distinct descendants, in order of first occurrence in
+	depth-first pre-order (node, then each child with its descendants,
+	in child order).
+  */
+  public ArrayList<N> preorder(N root)
+  {
+    ArrayList<N> nodes = new ArrayList<N>();
+    Set<N> visited = newSet();
+    ArrayDeque<N> stack = new ArrayDeque<N>();
+    stack.push(root);
+    while (!stack.isEmpty())
+    {
+      N node=stack.pop();
+      if (!visited.add(node)) continue;
+      nodes.add(node);
+      List<N> cnodes=children.get(node);
+      for (int i=cnodes.size()-1;i>=0;--i) //reversed, so visited in child order
+        if (!visited.contains(cnodes.get(i))) stack.push(cnodes.get(i));
+    }
+    return nodes;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Applies visitor in post-order, once per distinct node, and returns
+	result for root.
+  */
+  public <T> T visit(N root,Visitor<N,T> visitor)
+  {
+    return this.visit(root,visitor,this.<T>newMap());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As visit(root,visitor), with results memoized in map, which may
+	hold results of prior calls, so nodes already visited are not
+	revisited.  Valid only while sub-hierarchies of those nodes are
+	unchanged.  The map should compare nodes as this traversal does.
+  */
+  public <T> T visit(N root,Visitor<N,T> visitor,Map<N,T> results)
+  {
+    ArrayDeque<N> stack = new ArrayDeque<N>();
+    stack.push(root);
+    while (!stack.isEmpty())
+    {
+      N node=stack.peek();
+      if (results.containsKey(node)) { stack.pop(); continue; }
+      List<N> cnodes=children.get(node);
+      boolean ready=true;
+      for (int i=cnodes.size()-1;i>=0;--i) //reversed, so visited in child order
+      {
+        if (!results.containsKey(cnodes.get(i))) { stack.push(cnodes.get(i)); ready=false; }
+      }
+      if (!ready) continue;
+      stack.pop();
+      ArrayList<T> cresults = new ArrayList<T>(cnodes.size());
+      for (N cnode: cnodes) cresults.add(results.get(cnode));
+      results.put(node,visitor.visit(node,cresults));
+    }
+    return results.get(root);
+  }
+}
@@ -4,6 +4,7 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.*;
 import java.sql.*;
+import java.util.concurrent.ForkJoinPool;
 
 import com.sleepycat.je.DatabaseException;
 
@@ -41,8 +42,8 @@ import chemaxon.marvin.io.MolExportException;
 	database, {@link ScaffoldDB} can be used, but requires an available
 	database server.
 	<li> For each input molecule, a complete ScaffoldTree is built.
-	When {@link ScaffoldSet} is used, the ScaffoldTree references {@link Scaffold} instances 
-	which are contained in the {@link ScaffoldSet}.
+	When {@link ScaffoldSet} is used, known {@link Scaffold} instances are
+	materialized from compact {@link ScaffoldNode} objects.
 	When {@link ScaffoldStore} is used, all {@link Scaffold} instances must be
 	re-constructed from {@link ScaffoldStoreEntity} objects.
 	When {@link ScaffoldDB} is used, all {@link Scaffold} instances must be
@@ -69,15 +70,17 @@ import chemaxon.marvin.io.MolExportException;
 */
 public class ScaffoldTree
 {
-  private static String smifmt="cxsmiles:u-L-l-e-d-D-p-R-f-w";
-  private static String cxsmifmt="cxsmiles:+L+l+e+d+D+p+R+f+w";
-  /** input molecule (not changed) */
+  /** input molecule (not changed); null if not kept (see ScaffoldAnalyzer) */
   public Molecule inmol;
   private Molecule mol; // working molecule (tagged, etc.)
-  private boolean keep_nitro_attachments;
+  private HScafConfig config; // flags and formats, shared with scaffolds
+  private ForkJoinPool pool=null; // intra-molecule parallel perception, if non-null
   private Scaffold rootscaf;
   private ArrayList<Linker> linkers;
   private ArrayList<Sidechain> sidechains;
+  private long t_deadline=0L; // perception deadline (ms), 0 for none
+  private boolean truncated=false;
+  private ArrayList<Scaffold> uscafs=null; // getScaffolds() memo, cleared by mergeScaffolds()
   /////////////////////////////////////////////////////////////////////////////
   private ScaffoldTree() {} //disallow default constructor
   /////////////////////////////////////////////////////////////////////////////
@@ -88,8 +91,8 @@ public class ScaffoldTree
 	or (3) {@link ScaffoldDB} used as a lookup
 	to avoid re-analysis of previously analyzed scaffolds.
 	@param mol input molecule
-	@param keep_nitro_attachments true for N-attachments scaf definition
 	@param stereo stereo scaffolds (default non-stereo)
+	@param keep_nitro_attachments true for N-attachments scaf definition
 	@param scafset in-memory lookup table
 	@param scafstore BerkeleyDB for lookup table
 	@param scafdb RDB for lookup table
@@ -98,19 +101,99 @@ public class ScaffoldTree
         ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb)
     throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
   {
+    this(mol,stereo,keep_nitro_attachments,scafset,scafstore,scafdb,true,false);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with find_linkers flag, used only if no lookup, and
+	ringsys flag, to enumerate child scaffolds via ring-system reduced
+	graph (for molecules with many ring systems).
+	@param find_linkers find linkers, if no lookup
+	@param ringsys use RingSystemGraph engine
+  */
+  public ScaffoldTree(Molecule mol,boolean stereo,boolean keep_nitro_attachments,
+        ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,boolean find_linkers,boolean ringsys)
+    throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
+  {
+    this(mol,stereo,keep_nitro_attachments,scafset,scafstore,scafdb,find_linkers,ringsys,0);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with compute time budget.  If perception exceeds maxtime,
+	it stops cleanly, and the tree is partial (at minimum the root
+	scaffold) and flagged as truncated (see isTruncated()).  A truncated
+	tree is not merged with the {@link ScaffoldSet}, {@link ScaffoldStore}
+	or {@link ScaffoldDB}, so its scaffolds have no IDs.
+	@param maxtime max compute time in seconds, 0 for none
+	(see hscaf_utils.HSCAF_MAX_COMPUTE_TIME)
+  */
+  public ScaffoldTree(Molecule mol,boolean stereo,boolean keep_nitro_attachments,
+        ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,boolean find_linkers,boolean ringsys,int maxtime)
+    throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
+  {
+    this(mol,stereo,keep_nitro_attachments,scafset,scafstore,scafdb,find_linkers,ringsys,maxtime,null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with ring perception for mol already done (e.g. for
+	pre-filters), reused for junction tagging and the root scaffold.
+	@param ringctx ring perception for mol, or null
+  */
+  public ScaffoldTree(Molecule mol,boolean stereo,boolean keep_nitro_attachments,
+        ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,boolean find_linkers,boolean ringsys,int maxtime,
+        RingContext ringctx)
+    throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
+  {
+    this(mol,HScafConfig.of(stereo,keep_nitro_attachments),scafset,scafstore,scafdb,find_linkers,ringsys,maxtime,ringctx);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with configuration (flags and formats) in place of
+	stereo and keep_nitro_attachments flags.
+	@param config configuration, shared with scaffolds
+  */
+  public ScaffoldTree(Molecule mol,HScafConfig config,
+        ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,boolean find_linkers,boolean ringsys,int maxtime,
+        RingContext ringctx)
+    throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
+  {
+    this(mol,config,scafset,scafstore,scafdb,find_linkers,ringsys,maxtime,ringctx,null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with child scaffolds of one large molecule found in
+	parallel, by fork-join tasks in pool (see
+	hscaf_utils.findChildScaffoldsParallel()), then merged with the
+	lookup, if any.  The resulting tree is identical.  For one heavy
+	molecule awaited by a user (e.g. servlet, hier_scaffolds_common);
+	for many molecules, hier_scaffolds -threads is more efficient.
+	Not used with ringsys.
+	@param pool fork-join pool, or null for serial perception
+  */
+  public ScaffoldTree(Molecule mol,HScafConfig config,
+        ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,boolean find_linkers,boolean ringsys,int maxtime,
+        RingContext ringctx,ForkJoinPool pool)
+    throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
+  {
+    this(mol,config,scafset,scafstore,scafdb,find_linkers,ringsys,maxtime,ringctx,pool,true);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above; if keep_inmol false, inmol is null, and mol itself is
+	the working molecule (junction bonds tagged), not a copy, so the
+	caller must not use it further.  For batch perception (see
+	ScaffoldAnalyzer), saving two copies of each molecule.
+  */
+  ScaffoldTree(Molecule mol,HScafConfig config,
+        ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,boolean find_linkers,boolean ringsys,int maxtime,
+        RingContext ringctx,ForkJoinPool pool,boolean keep_inmol)
+    throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
+  {
+    this.pool=pool;
+    if (maxtime>0) this.t_deadline=System.currentTimeMillis()+1000L*maxtime;
     if (mol.getFragCount(MoleculeGraph.FRAG_BASIC)>1)
       throw new ScaffoldException("Cannot analyze multi-fragment molecule.");
-    this.inmol=mol.cloneMolecule();
-    this.mol=mol.cloneMolecule();
-    this.keep_nitro_attachments=keep_nitro_attachments;
-    if (!stereo)
-    {
-      this.smifmt+="+0";
-      this.cxsmifmt+="+0";
-    }
+    this.inmol=(keep_inmol?mol.cloneMolecule():null);
+    this.mol=(keep_inmol?mol.cloneMolecule():mol);
+    this.config=config;
     //System.err.println("DEBUG (ScaffoldTree): tagJunctions...");
-    hscaf_utils.tagJunctions(this.mol,this.keep_nitro_attachments);
-    this.rootscaf = new Scaffold(this.mol,this.keep_nitro_attachments,stereo);
+    if (ringctx==null || !ringctx.isFor(this.mol)) ringctx = new RingContext(this.mol);
+    hscaf_utils.tagJunctions(this.mol,config.isKeep_nitro_attachments(),ringctx);
+    this.rootscaf = new Scaffold(this.mol,config,ringctx);
     this.linkers = new ArrayList<Linker>(); //default empty
     this.sidechains = new ArrayList<Sidechain>(); //default empty
     if (this.rootscaf==null) return;
@@ -127,18 +210,12 @@ public class ScaffoldTree
         if (this.rootscaf.isLegal())
         {
           //System.err.println("DEBUG (ScaffoldTree): findChildScaffolds...");
-          hscaf_utils.findChildScaffolds(this.rootscaf,scafset);
-          //System.err.println("DEBUG (ScaffoldTree): rmJBonds...");
-          rmJBonds(this.mol);
-
-          //COMMENTED OUT DUE TO ERRORS ASSOCIATED WITH JChem 6+:
-          //System.err.println("DEBUG (ScaffoldTree): findLinkers...");
-          //this.linkers=findLinkers(this.mol);
-
-          //System.err.println("DEBUG (ScaffoldTree): findSidechains...");
-          this.sidechains=findSidechains(this.mol);
+          findChildScaffolds(scafset,null,null,ringsys);
+          //System.err.println("DEBUG (ScaffoldTree): findFragments...");
+          findFragments(true,ringctx);
           //System.err.println("DEBUG (ScaffoldTree): mergeScaffoldTree...");
-          scafset.mergeScaffoldTree(this.rootscaf); // Scaf IDs assigned here.
+          if (!this.truncated)
+            scafset.mergeScaffoldTree(this.rootscaf); // Scaf IDs assigned here.
         }
         else
         {
@@ -149,9 +226,9 @@ public class ScaffoldTree
     }
     else if (scafstore!=null)
     {
-      if (scafstore.scaffoldByCanSmi.contains(this.rootscaf.getCansmi())) // Scaf present in scafstore?
+      if (scafstore.scaffoldByCanKey.contains(this.rootscaf.getKey())) // Scaf present in scafstore?
       {
-        ScaffoldStoreEntity scent=scafstore.scaffoldByCanSmi.get(this.rootscaf.getCansmi());
+        ScaffoldStoreEntity scent=scafstore.scaffoldByCanKey.get(this.rootscaf.getKey());
         long id=scent.getId();
         this.rootscaf.setID(id);
         scafstore.populateScaffoldTree(this.rootscaf); // Scaf IDs assigned here.
@@ -160,11 +237,10 @@ public class ScaffoldTree
       {
         if (this.rootscaf.isLegal())
         {
-          hscaf_utils.findChildScaffolds(this.rootscaf,scafstore);
-          rmJBonds(this.mol);
-          this.linkers=findLinkers(this.mol);
-          this.sidechains=findSidechains(this.mol);
-          scafstore.mergeScaffoldTree(this.rootscaf); // Scaf IDs assigned here.
+          findChildScaffolds(null,scafstore,null,ringsys);
+          findFragments(true,ringctx);
+          if (!this.truncated)
+            scafstore.mergeScaffoldTree(this.rootscaf); // Scaf IDs assigned here.
         }
         else
         {
@@ -186,11 +262,10 @@ public class ScaffoldTree
       {
         if (this.rootscaf.isLegal())
         {
-          hscaf_utils.findChildScaffolds(this.rootscaf,scafdb);
-          rmJBonds(this.mol);
-          this.linkers=findLinkers(this.mol);
-          this.sidechains=findSidechains(this.mol);
-          scafdb.mergeScaffoldTree(this.rootscaf); // Scaf IDs assigned here.
+          findChildScaffolds(null,null,scafdb,ringsys);
+          findFragments(true,ringctx);
+          if (!this.truncated)
+            scafdb.mergeScaffoldTree(this.rootscaf); // Scaf IDs assigned here.
         }
         else
         {
@@ -199,78 +274,207 @@ public class ScaffoldTree
         }
       }
     }
-    else
+    else // No lookup; perceive all scaffolds.  Scaf IDs not assigned (see mergeScaffolds()).
     {
-      System.err.println("ERROR (ScaffoldTree): Should not happen; no set, store or db.");
+      if (this.rootscaf.isLegal())
+      {
+        findChildScaffolds(null,null,null,ringsys);
+        findFragments(find_linkers,ringctx);
+      }
+      else
+      {
+        this.rootscaf=null;
+        return;
+      }
     }
   }
   /**   {@link ScaffoldSet} used for storage.
 	@param mol input molecule
-	@param keep_nitro_attachments true for N-attachments scaf definition
 	@param stereo stereo scaffolds (default non-stereo)
+	@param keep_nitro_attachments true for N-attachments scaf definition
 	@param scafset in-memory lookup table
   */
-  public ScaffoldTree(Molecule mol,boolean keep_nitro_attachments,boolean stereo,ScaffoldSet scafset)
+  public ScaffoldTree(Molecule mol,boolean stereo,boolean keep_nitro_attachments,ScaffoldSet scafset)
     throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
   {
-    this(mol,keep_nitro_attachments,stereo,scafset,null,null);
+    this(mol,stereo,keep_nitro_attachments,scafset,null,null);
   }
   /**   {@link ScaffoldStore} used for storage.
 	@param mol input molecule
-	@param keep_nitro_attachments true for N-attachments scaf definition
 	@param stereo stereo scaffolds (default non-stereo)
+	@param keep_nitro_attachments true for N-attachments scaf definition
 	@param scafstore Berkeley DB for lookup table
   */
-  public ScaffoldTree(Molecule mol,boolean keep_nitro_attachments,boolean stereo,ScaffoldStore scafstore)
+  public ScaffoldTree(Molecule mol,boolean stereo,boolean keep_nitro_attachments,ScaffoldStore scafstore)
     throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
   {
-    this(mol,keep_nitro_attachments,stereo,null,scafstore,null);
+    this(mol,stereo,keep_nitro_attachments,null,scafstore,null);
   }
   /**   {@link ScaffoldDB} used for storage.
 	@param mol input molecule
-	@param keep_nitro_attachments true for N-attachments scaf definition
 	@param stereo stereo scaffolds (default non-stereo)
+	@param keep_nitro_attachments true for N-attachments scaf definition
 	@param scafdb RDB for lookup table
   */
-  public ScaffoldTree(Molecule mol,boolean keep_nitro_attachments,boolean stereo,ScaffoldDB scafdb)
+  public ScaffoldTree(Molecule mol,boolean stereo,boolean keep_nitro_attachments,ScaffoldDB scafdb)
     throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
   {
-    this(mol,keep_nitro_attachments,stereo,null,null,scafdb);
+    this(mol,stereo,keep_nitro_attachments,null,null,scafdb);
   }
   /**   No ScaffoldStore, no ScaffoldSet, no ScaffoldDB.
 	@param mol input molecule
+	@param stereo stereo scaffolds (default non-stereo)
 	@param keep_nitro_attachments true for N-attachments scaf definition
+  */
+  public ScaffoldTree(Molecule mol,boolean stereo,boolean keep_nitro_attachments)
+    throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
+  {
+    this(mol,stereo,keep_nitro_attachments,null,null,null);
+  }
+  /**   No ScaffoldStore, no ScaffoldSet, no ScaffoldDB; for later merge
+	via mergeScaffolds(), e.g. by another thread.  Linkers are found as
+	in every lookup mode, including {@link ScaffoldSet}, if find_linkers.
+	@param mol input molecule
 	@param stereo stereo scaffolds (default non-stereo)
+	@param keep_nitro_attachments true for N-attachments scaf definition
+	@param find_linkers find linkers (else only sidechains)
   */
-  public ScaffoldTree(Molecule mol,boolean keep_nitro_attachments,boolean stereo)
+  public ScaffoldTree(Molecule mol,boolean stereo,boolean keep_nitro_attachments,boolean find_linkers)
     throws SearchException,MolFormatException,MolExportException,ScaffoldException,IOException,SQLException,DatabaseException
   {
-    this(mol,keep_nitro_attachments,stereo,null,null,null);
+    this(mol,stereo,keep_nitro_attachments,null,null,null,find_linkers,false);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private void findChildScaffolds(ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,boolean ringsys)
+    throws SearchException,MolFormatException,IOException,SQLException,DatabaseException
+  {
+    if (ringsys)
+      hscaf_utils.findChildScaffoldsRingsys(this.rootscaf,scafset,scafstore,scafdb,this.t_deadline);
+    else if (this.pool!=null)
+    {
+      hscaf_utils.findChildScaffoldsParallel(this.rootscaf,this.t_deadline,this.pool);
+      this.truncated=hscaf_utils.pastDeadline(this.t_deadline);
+      if (!this.truncated && (scafset!=null || scafstore!=null || scafdb!=null))
+        hscaf_utils.mergeChildScaffolds(this.rootscaf,scafset,scafstore,scafdb); //as if looked up during perception
+      return;
+    }
+    else
+      hscaf_utils.findChildScaffolds(this.rootscaf,scafset,scafstore,scafdb,this.t_deadline);
+    this.truncated=hscaf_utils.pastDeadline(this.t_deadline);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	True if perception exceeded compute time budget, hence tree is
+	partial, and not merged.
+  */
+  public boolean isTruncated() { return this.truncated; }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Merges ScaffoldTree, perceived with no lookup, with one of
+	{@link ScaffoldSet}, {@link ScaffoldStore} or {@link ScaffoldDB},
+	assigning scaffold IDs.  The result is identical to perceiving with
+	the lookup: known scaffolds replace perceived ones, and if the
+	root scaffold is known, linkers and sidechains are not reported.
+	Since perception is the costly step, this allows parallel perception
+	with serial merging in input order, hence reproducible IDs.
+	A truncated tree is merged only if its root scaffold is known, in
+	which case the complete known tree replaces it, and it is no longer
+	truncated.
+	@return number of new scaffolds merged
+  */
+  public int mergeScaffolds(ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb)
+    throws SearchException,MolFormatException,IOException,SQLException,DatabaseException
+  {
+    if (this.rootscaf==null) return 0;
+    this.uscafs=null;
+    int n_new=0;
+    if (scafset!=null)
+    {
+      if (scafset.containsScaffold(this.rootscaf))
+      {
+        this.rootscaf=scafset.getScaffoldByID(scafset.getScaffoldID(this.rootscaf));
+        this.linkers.clear();
+        this.sidechains.clear();
+        this.truncated=false;
+      }
+      else if (!this.truncated)
+      {
+        hscaf_utils.mergeChildScaffolds(this.rootscaf,scafset,null,null);
+        n_new=scafset.mergeScaffoldTree(this.rootscaf);
+      }
+    }
+    else if (scafstore!=null)
+    {
+      if (scafstore.scaffoldByCanKey.contains(this.rootscaf.getKey()))
+      {
+        ScaffoldStoreEntity scent=scafstore.scaffoldByCanKey.get(this.rootscaf.getKey());
+        this.rootscaf.getChildScaffolds().clear();
+        this.rootscaf.setID(scent.getId());
+        scafstore.populateScaffoldTree(this.rootscaf);
+        this.linkers.clear();
+        this.sidechains.clear();
+        this.truncated=false;
+      }
+      else if (!this.truncated)
+      {
+        hscaf_utils.mergeChildScaffolds(this.rootscaf,null,scafstore,null);
+        n_new=scafstore.mergeScaffoldTree(this.rootscaf);
+      }
+    }
+    else if (scafdb!=null)
+    {
+      if (scafdb.containsScaffoldByCansmi(this.rootscaf.getCansmi()))
+      {
+        ScaffoldDBRecord scafrec=scafdb.getScaffoldByCansmi(this.rootscaf.getCansmi());
+        this.rootscaf.getChildScaffolds().clear();
+        this.rootscaf.setID(scafrec.getID());
+        scafdb.populateScaffoldTree(this.rootscaf);
+        this.linkers.clear();
+        this.sidechains.clear();
+        this.truncated=false;
+      }
+      else if (!this.truncated)
+      {
+        hscaf_utils.mergeChildScaffolds(this.rootscaf,null,null,scafdb);
+        n_new=scafdb.mergeScaffoldTree(this.rootscaf);
+      }
+    }
+    return n_new;
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Returns list of all scaffolds, deduplicated.  Note that although the child scaffolds
 	for each Scaffold are unique, for a set there may be duplicates in the
-	hierarchy, thus this method must deduplicate.
+	hierarchy, thus this method must deduplicate.  One traversal, each
+	instance visited once, deduplicated by ID if assigned (lookup), else
+	key hash, so stored scaffolds (lazy proxies) need not be decompressed
+	for keys; memoized, since called several times per molecule.
   */
   public ArrayList<Scaffold> getScaffolds()
   {
+    return new ArrayList<Scaffold>(this.getUniqueScaffolds());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private ArrayList<Scaffold> getUniqueScaffolds()
+  {
+    if (this.uscafs!=null) return this.uscafs;
     ArrayList<Scaffold> scafs = new ArrayList<Scaffold>();
-    ArrayList<String> usmis = new ArrayList<String>(); //should be HashSet<String,Boolean>
     if (this.rootscaf==null) return scafs;
+    HashSet<String> ukeys = new HashSet<String>();
+    HashSet<Long> uids = new HashSet<Long>();
     scafs.add(this.rootscaf);
-    usmis.add(this.rootscaf.getCansmi());
-    for (Scaffold cscaf: this.rootscaf.getAllChildScaffolds())
+    if (this.rootscaf.getID()>0L) uids.add(this.rootscaf.getID());
+    else ukeys.add(this.rootscaf.getKey());
+    for (Iterator<Scaffold> itr=ScaffoldTraversal.ofScaffolds().iterator(this.rootscaf); itr.hasNext(); )
     {
-      if (usmis.contains(cscaf.getCansmi())) continue;
-      usmis.add(cscaf.getCansmi());
+      Scaffold cscaf=itr.next();
+      if ((cscaf.getID()>0L)?!uids.add(cscaf.getID()):!ukeys.add(cscaf.getKey())) continue;
       scafs.add(cscaf);
     }
+    this.uscafs=scafs;
     return scafs;
   }
   /////////////////////////////////////////////////////////////////////////////
-  /**	Returns list of all scaffolds, not deduplicated.  Note that although the child scaffolds
-	for each Scaffold are unique, for a set there may be duplicates in the
-	hierarchy.
+  /**	Returns list of all scaffolds in the hierarchy, each instance once.
+	Note that with a ScaffoldSet or ScaffoldStore, distinct instances
+	may be the same scaffold; see getScaffolds() for deduplicated.
   */
   public ArrayList<Scaffold> getAllScaffolds()
   {
@@ -286,7 +490,7 @@ public class ScaffoldTree
   public int getScaffoldCount()
   {
     if (this.rootscaf==null) return 0;
-    return this.getScaffolds().size();
+    return this.getUniqueScaffolds().size();
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	Returns count of all leaf scaffolds, deduplicated.
@@ -295,7 +499,7 @@ public class ScaffoldTree
   {
     if (this.rootscaf==null) return 0;
     int n_scaf=0;
-    for (Scaffold scaf: this.getScaffolds())
+    for (Scaffold scaf: this.getUniqueScaffolds())
     {
       if (scaf.getChildCount()==0) ++n_scaf;
     }
@@ -306,7 +510,7 @@ public class ScaffoldTree
   {
     ArrayList<Scaffold> scafs = new ArrayList<Scaffold>();
     if (this.rootscaf==null) return scafs;
-    for (Scaffold scaf: this.getScaffolds())
+    for (Scaffold scaf: this.getUniqueScaffolds())
     {
       if (scaf.getChildCount()==0) scafs.add(scaf);
     }
@@ -339,12 +543,15 @@ public class ScaffoldTree
   {
     Molecule groupmol = new Molecule();
     for (Scaffold cscaf: this.getScaffolds())
+    {
+      cscaf.decompress(); //stored scaffolds are lazy
       groupmol.fuse(cscaf.cloneMolecule());
+    }
     if (show_js)
       hscaf_utils.replaceJHydrogensWithJPseudoatoms(groupmol);
     else
       groupmol.implicitizeHydrogens(MolAtom.ALL_H);
-    return MolExporter.exportToFormat(groupmol,cxsmifmt);
+    return MolExporter.exportToFormat(groupmol,this.config.getCxsmiFormat());
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	SMILES representing all linkers as disconnected fragments.
@@ -359,7 +566,7 @@ public class ScaffoldTree
       hscaf_utils.replaceJHydrogensWithJPseudoatoms(groupmol);
     else
       groupmol.implicitizeHydrogens(MolAtom.ALL_H);
-    return MolExporter.exportToFormat(groupmol,cxsmifmt);
+    return MolExporter.exportToFormat(groupmol,this.config.getCxsmiFormat());
   }
   /////////////////////////////////////////////////////////////////////////////
   /**	SMILES representing all side-chains as disconnected fragments.
@@ -374,122 +581,29 @@ public class ScaffoldTree
       hscaf_utils.replaceJHydrogensWithJPseudoatoms(groupmol);
     else
       groupmol.implicitizeHydrogens(MolAtom.ALL_H);
-    return MolExporter.exportToFormat(groupmol,cxsmifmt);
+    return MolExporter.exportToFormat(groupmol,this.config.getCxsmiFormat());
   }
   /////////////////////////////////////////////////////////////////////////////
-  /**	Removes junction bonds in molecule previously tagged
-	with hscaf_utils.tagJunctions().
-  */
-  private static int rmJBonds(Molecule mol)
-  {
-    int n_del=0;
-    for (MolBond bond: mol.getBondArray())
-    {
-      if (bond.getSetSeq()>0)
-      {
-        MolAtom a1=bond.getAtom1();
-        MolAtom a2=bond.getAtom2();
-        //if (a1.getAtno()==1 || a2.getAtno()==1) continue; //junction-atoms
-        MolAtom ja1 = new MolAtom(MolAtom.PSEUDO);
-        MolAtom ja2 = new MolAtom(MolAtom.PSEUDO);
-        ja1.setAliasstr("J");
-        ja2.setAliasstr("J");
-        mol.add(ja1);
-        mol.add(ja2);
-        MolBond b_new1 = new MolBond(ja1,a1,bond.getType());
-        MolBond b_new2 = new MolBond(ja2,a2,bond.getType());
-        mol.add(b_new1);
-        mol.add(b_new2);
-        b_new1.setSetSeq(bond.getSetSeq());
-        b_new2.setSetSeq(bond.getSetSeq());
-        mol.removeBond(bond);
-        ++n_del;
-      }
-    }
-    return n_del;
-  }
-  ///////////////////////////////////////////////////////////////////////////
-  /**	Finds linkers in fragmented molecule previously tagged
-	with hscaf_utils.tagJunctions() and fragmented with rmJBonds().
-	Scaffolds identified by ring atoms.  2+ junction atoms
+  /**	Finds linkers (if find_linkers) and side-chains in molecule previously
+	tagged with hscaf_utils.tagJunctions(), as fragments left by removing
+	junction bonds, classified natively by FragmentClassifier.
+	Scaffolds identified by ring atoms.  2+ junctions
 	and not scaf implies linker.  By process of elimination
-	the rest are side-chains.  Returned sidechains 
-	are deduplicated.  Note that linkers must have
-	side-chains removed.
-
-	THIS CODE FAILS WITH JChem versions 6+ ?
-	E.g.
-
+	the rest are side-chains.  Returned linkers and sidechains
+	are deduplicated.  Note that linkers have side-chains removed.
+	Formerly by MolSearch per fragment, which failed for linkers
+	with JChem versions 6+, e.g.
 	Query: *-*
 	Target: O(*1**1)*1**1 |$;J_p;;;J_p;;$|
-	Caused by:
-	java.lang.NullPointerException
-	Mar 18, 2016 11:28:26 AM chemaxon.sss.search.SearchUtil logException
-	INFO: An error occurred during search: null
-  */
-  private static ArrayList<Linker> findLinkers(Molecule mol)
-    throws SearchException,MolFormatException,MolExportException,IOException
-  {
-    ArrayList<Linker> links = new ArrayList<Linker>();
-    MolSearch patScaf = new MolSearch(); //scaf pattern
-    patScaf.setQuery(MolImporter.importMol("[R]","smarts:"));
-    MolSearch patLink = new MolSearch(); //linker pattern (2+ Js)
-    patLink.setQuery(MolImporter.importMol("[*].[*] |$J_p;J_p$|","cxsmarts:"));
-    ArrayList<String> usmis = new ArrayList<String>();
-    for (Molecule fragmol: mol.cloneMolecule().convertToFrags())
-    {
-      patScaf.setTarget(fragmol);
-      patLink.setTarget(fragmol);
-      if (patScaf.isMatching()) continue;
-      else if (patLink.isMatching())
-      {
-        Linker newlink = new Linker(fragmol);
-        if (usmis.contains(newlink.getCansmi())) continue;
-        else
-        {
-          usmis.add(newlink.getCansmi());
-          links.add(newlink);
-        }
-      }
-      else continue;
-    }
-    return links;
-  }
-  ///////////////////////////////////////////////////////////////////////////
-  /**	Finds side-chains in fragmented molecule previously tagged
-	with hscaf_utils.tagJunctions() and fragmented with rmJBonds().
-	Scaffolds identified by ring atoms.  2+ junction atoms
-	and not scaf implies linker.  By process of elimination
-	the rest are side-chains.  Returned sidechains 
-	are deduplicated.
+	so linkers were not found with a ScaffoldSet.
   */
-  private static ArrayList<Sidechain> findSidechains(Molecule mol)
+  private void findFragments(boolean find_linkers,RingContext ringctx)
     throws SearchException,MolFormatException,MolExportException,IOException
   {
-    ArrayList<Sidechain> chains = new ArrayList<Sidechain>();
-    MolSearch patScaf = new MolSearch(); //scaf pattern
-    patScaf.setQuery(MolImporter.importMol("[R]","smarts:"));
-    MolSearch patLink = new MolSearch(); //linker pattern (2+ Js)
-    patLink.setQuery(MolImporter.importMol("[*].[*] |$J_p;J_p$|","cxsmarts:"));
-    ArrayList<String> usmis = new ArrayList<String>();
-    for (Molecule fragmol: mol.cloneMolecule().convertToFrags())
-    {
-      patScaf.setTarget(fragmol);
-      patLink.setTarget(fragmol);
-      if (patScaf.isMatching()) continue;
-      else if (patLink.isMatching()) continue;
-      else
-      {
-        Sidechain newchain = new Sidechain(fragmol);
-        if (usmis.contains(newchain.getCansmi())) continue;
-        else
-        {
-          usmis.add(newchain.getCansmi());
-          chains.add(newchain);
-        }
-      }
-    }
-    return chains;
+    FragmentClassifier fragclass = new FragmentClassifier(this.mol,ringctx);
+    if (find_linkers)
+      this.linkers=fragclass.getLinkers();
+    this.sidechains=fragclass.getSidechains();
   }
   ///////////////////////////////////////////////////////////////////////////
   public String toString()
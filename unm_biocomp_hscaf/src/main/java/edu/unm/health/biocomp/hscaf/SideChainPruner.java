@@ -0,0 +1,265 @@
+package edu.unm.health.biocomp.hscaf;
+
+import java.util.*;
+
+import chemaxon.struc.*;
+
+/**	Native side chain removal, by peeling terminal atoms with a work
+	queue over an int-array adjacency, in place of the repeated SMARTS
+	findFirst() loop.  Linear in molecule size, apart from JChem atom
+	removal.
+	<br>
+	A terminal (D1) non-hydrogen atom A, bonded to B, is removed by the
+	same rules as the side chain SMARTS (ScaffoldQueries), where D counts
+	explicit neighbors (including hydrogens), and ring membership is
+	by SSSR, which peeling does not change:
+	<ol>
+	<li> A-B single, B not H.
+	<li> B D2, acyclic, B with a single bond.
+	<li> B D2, acyclic, bonded to C, D2, acyclic, C with a single bond.
+	<li> B D3, acyclic, with one other D1 neighbor, and a single bond
+	to the third.
+	</ol>
+	With keep_nitro_attachments, single bonds to ring nitrogens do not
+	qualify.  Exocyclic multiple bonds to ring atoms are thus kept.  As
+	before, a removed atom bonded by a junction bond (setSeq&gt;0) is
+	replaced by a junction hydrogen bearing the tag; otherwise B gains
+	an implicit hydrogen.  Atoms enabled by a removal (within two bonds)
+	are queued again, until no atom qualifies.
+	<br>
+	@see edu.unm.health.biocomp.hscaf.hscaf_utils#rmSideChains(Molecule,boolean)
+	@author Jeremy J Yang
+*/
+public class SideChainPruner
+{
+  private Molecule mol;
+  private boolean keep_nitro_attachments;
+  private int n_atoms;
+  private int[] atno;
+  private boolean[] ring;
+  private int[] degree;
+  /** incident bond indexes of each atom */
+  private int[][] abonds;
+  private int[] bond_a1;
+  private int[] bond_a2;
+  private int[] btype;
+  private boolean[] bond_gone;
+  /** atom removed, or replaced by junction hydrogen */
+  private boolean[] removed;
+  /** bond of removed atom, when removed */
+  private int[] rmbond;
+
+  /////////////////////////////////////////////////////////////////////////////
+  private SideChainPruner() {} //disallow default constructor
+  /////////////////////////////////////////////////////////////////////////////
+  private SideChainPruner(Molecule mol,boolean keep_nitro_attachments,boolean[] ring)
+  {
+    this.mol=mol;
+    this.keep_nitro_attachments=keep_nitro_attachments;
+    this.n_atoms=mol.getAtomCount();
+    int n_bonds=mol.getBondCount();
+    this.atno = new int[n_atoms];
+    this.ring=ring;
+    this.degree = new int[n_atoms];
+    this.removed = new boolean[n_atoms];
+    this.rmbond = new int[n_atoms];
+    for (int i=0;i<n_atoms;++i) atno[i]=mol.getAtom(i).getAtno();
+    this.bond_a1 = new int[n_bonds];
+    this.bond_a2 = new int[n_bonds];
+    this.btype = new int[n_bonds];
+    this.bond_gone = new boolean[n_bonds];
+    for (int j=0;j<n_bonds;++j)
+    {
+      MolBond bond=mol.getBond(j);
+      bond_a1[j]=mol.indexOf(bond.getAtom1());
+      bond_a2[j]=mol.indexOf(bond.getAtom2());
+      btype[j]=bond.getType();
+      ++degree[bond_a1[j]];
+      ++degree[bond_a2[j]];
+    }
+    this.abonds = new int[n_atoms][];
+    int[] k = new int[n_atoms];
+    for (int i=0;i<n_atoms;++i) abonds[i] = new int[degree[i]];
+    for (int j=0;j<n_bonds;++j)
+    {
+      abonds[bond_a1[j]][k[bond_a1[j]]++]=j;
+      abonds[bond_a2[j]][k[bond_a2[j]]++]=j;
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Removes side chains from molecule, as hscaf_utils.rmSideChains(),
+	except for cleanup of explicit hydrogen fragments.
+	@return number of atoms removed
+  */
+  public static int prune(Molecule mol,boolean keep_nitro_attachments)
+  {
+    return prune(mol,keep_nitro_attachments,null);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	As above, with ring perception already done (null to perceive).
+  */
+  public static int prune(Molecule mol,boolean keep_nitro_attachments,RingContext ringctx)
+  {
+    if (ringctx==null || !ringctx.isFor(mol)) ringctx = new RingContext(mol);
+    boolean[] ring = new boolean[mol.getAtomCount()];
+    for (int i=0;i<ring.length;++i) ring[i]=ringctx.isRingAtom(i);
+    SideChainPruner pruner = new SideChainPruner(mol,keep_nitro_attachments,ring);
+    return pruner.apply(pruner.peel());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Removes side chains from an acyclic fragment (e.g. linker), with
+	no ring perception.  Pinned atoms (e.g. junction pseudo-atoms) are
+	kept, and treated as ring atoms of degree 3, as if each protected by
+	a 3-ring, as formerly done for linkers.
+	@return number of atoms removed
+  */
+  public static int pruneAcyclic(Molecule mol,boolean[] pinned)
+  {
+    SideChainPruner pruner = new SideChainPruner(mol,false,pinned.clone());
+    for (int i=0;i<pruner.n_atoms;++i)
+      if (pinned[i]) pruner.degree[i]+=2; //protecting ring
+    return pruner.apply(pruner.peel());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Peels graph; returns removed atoms, in order.
+  */
+  private int[] peel()
+  {
+    int[] order = new int[n_atoms];
+    int n_del=0;
+    ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+    boolean[] queued = new boolean[n_atoms];
+    for (int i=0;i<n_atoms;++i)
+      if (degree[i]==1) { queue.add(i); queued[i]=true; }
+    while (!queue.isEmpty())
+    {
+      int a=queue.poll();
+      queued[a]=false;
+      int jab=terminalBond(a);
+      if (jab<0) continue;
+      int b=other(jab,a);
+      order[n_del++]=a;
+      removed[a]=true;
+      rmbond[a]=jab;
+      if (mol.getBond(jab).getSetSeq()>0)
+      {
+        atno[a]=1; //junction hydrogen in place of a, single bond
+        btype[jab]=1;
+      }
+      else
+      {
+        bond_gone[jab]=true;
+        --degree[b];
+      }
+      // Atoms within two bonds of b may now qualify.
+      enqueue(b,queue,queued);
+      for (int j: abonds[b])
+      {
+        if (bond_gone[j]) continue;
+        int c=other(j,b);
+        enqueue(c,queue,queued);
+        for (int j2: abonds[c])
+          if (!bond_gone[j2]) enqueue(other(j2,c),queue,queued);
+      }
+    }
+    return Arrays.copyOf(order,n_del);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private void enqueue(int i,ArrayDeque<Integer> queue,boolean[] queued)
+  {
+    if (removed[i] || queued[i] || degree[i]!=1) return;
+    queue.add(i);
+    queued[i]=true;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Returns bond of terminal atom a, if a qualifies for removal, else -1.
+  */
+  private int terminalBond(int a)
+  {
+    if (removed[a] || atno[a]==1 || degree[a]!=1) return -1;
+    int jab=liveBond(a,-1,-1);
+    int b=other(jab,a);
+    // 1. A-B single, B not H.
+    if (btype[jab]==1 && atno[b]!=1 && !excluded(b)) return jab;
+    if (ring[b]) return -1;
+    // 2. B D2, acyclic, B with a single bond.
+    // 3. B D2, acyclic, bonded to C, D2, acyclic, C with a single bond.
+    if (degree[b]==2)
+    {
+      if (hasSingleBond(b)) return jab;
+      int c=other(liveBond(b,jab,-1),b);
+      if (degree[c]==2 && !ring[c] && hasSingleBond(c)) return jab;
+      return -1;
+    }
+    // 4. B D3, acyclic, with another D1 neighbor X, and single bond to Y.
+    if (degree[b]==3)
+    {
+      int jx=liveBond(b,jab,-1);
+      int jy=liveBond(b,jab,jx);
+      int x=other(jx,b);
+      int y=other(jy,b);
+      if (degree[x]==1 && btype[jy]==1 && !excluded(y)) return jab;
+      if (degree[y]==1 && btype[jx]==1 && !excluded(x)) return jab;
+    }
+    return -1;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	True if atom has a single bond, to an atom not excluded.
+  */
+  private boolean hasSingleBond(int i)
+  {
+    for (int j: abonds[i])
+      if (!bond_gone[j] && btype[j]==1 && !excluded(other(j,i))) return true;
+    return false;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Ring nitrogen, with keep_nitro_attachments.
+  */
+  private boolean excluded(int i)
+  {
+    return (keep_nitro_attachments && atno[i]==7 && ring[i]);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	First remaining bond of atom, other than bonds x1, x2.
+  */
+  private int liveBond(int i,int x1,int x2)
+  {
+    for (int j: abonds[i])
+      if (!bond_gone[j] && j!=x1 && j!=x2) return j;
+    return -1;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private int other(int j,int i)
+  {
+    return ((bond_a1[j]==i)?bond_a2[j]:bond_a1[j]);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Applies removals to molecule, in order, as the SMARTS loop did.
+  */
+  private int apply(int[] order)
+  {
+    MolAtom[] atoms=mol.getAtomArray();
+    MolBond[] bonds=mol.getBondArray();
+    for (int a: order)
+    {
+      int jab=rmbond[a];
+      MolAtom atom=atoms[a];
+      MolAtom nbr=atoms[other(jab,a)];
+      MolBond bond=bonds[jab];
+      if (bond.getSetSeq()>0) //may signify junction
+      {
+        MolAtom h_new = new MolAtom(1);
+        mol.add(h_new);
+        MolBond b_new = new MolBond(h_new,nbr);
+        b_new.setSetSeq(bond.getSetSeq());
+        mol.add(b_new);
+      }
+      else
+      {
+        nbr.setImplicitHcount(1+nbr.getImplicitHcount());
+      }
+      mol.removeAtom(atom,MoleculeGraph.RMCLEANUP_EDGES);
+    }
+    return order.length;
+  }
+}
@@ -2,6 +2,7 @@ package edu.unm.health.biocomp.hscaf;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import java.text.DateFormat;
 import java.sql.*;
@@ -55,6 +56,16 @@ public class hier_scaffolds
   private static Boolean bdb_resume=false;
   private static Boolean bdb_predelete=false;
   private static String bdb_dump=null;
+  private static Boolean bdb_bulk=false;
+  private static int bdb_bulk_n=1000;
+  private static long n_mol_ckpt=0L;
+  private static FileOutputStream ofile_fos=null; //-o, for length at checkpoint
+  private static String bdb_props=null;
+  private static int bdb_cache_mb=0;
+  private static int bdb_cache_pct=0;
+  private static int bdb_logfile_mb=0;
+  private static int bdb_cleaner_threads=0;
+  private static int bdb_lock_timeout_ms=0;
 
   private static Boolean rdb=false;
   private static Boolean rdb_keep=false;
@@ -78,14 +89,36 @@ public class hier_scaffolds
 
   private static int maxatoms=100;
   private static int maxrings=10;
+  private static int ringsys_min=0;
+  private static int maxtime=hscaf_utils.HSCAF_MAX_COMPUTE_TIME;
+  private static String ofile_trunc=null;
   private static int nmax=0;
   private static int nskip=0;
   //private static String db_preload=null;
-  private static String SMIFMT_HSCAF="cxsmiles:u-L-l-e-d-D-p-R-f-w";
-  private static String SMIFMT_OUT="smiles:+n-a-H"; //Kekule, H-implicit
-  private static String SMIFMT_TSV="smiles:+n-a-HT*"; //Kekule, H-implicit, noHeader
+  private static final String SMIFMT_HSCAF="cxsmiles:u-L-l-e-d-D-p-R-f-w";
+  private static final String SMIFMT_OUT="smiles:+n-a-H"; //Kekule, H-implicit
+  private static final String SMIFMT_TSV="smiles:+n-a-HT*"; //Kekule, H-implicit, noHeader
   private static String bdb_dir="/tmp/hscaf";
   private static String ddb_dir="/tmp/hscaf";
+  private static int nthreads=1;
+  private static int heavy_min=0;
+  private static int heavy_threads=1;
+  private static int heavy_maxtime=-1;
+  private static int route_threads=0; //0=auto: max(1,threads/4)
+  private static final int ROUTE_WINDOW=10000; //max mols completed ahead of output, if routing
+
+  private static int n_err=0;
+  private static int n_mol_toobig=0;
+  private static int n_mol_toomanyrings=0;
+  private static int n_mol_frag=0;
+  private static int n_mol_truncated=0;
+  private static int n_total_scaf=0;
+  private static final String[] LANE_NAMES={"fast","heavy"};
+  private static int[] n_mol_lane={0,0};
+  private static int[] n_trunc_lane={0,0};
+  private static long[] t_lane_total={0L,0L}; //ms
+  private static long[] t_lane_max={0L,0L}; //ms
+  private static long t_wall=0L; //ms, threaded run, for lane throughput
 
   private static void Help(String msg)
   {
@@ -118,6 +151,7 @@ public class hier_scaffolds
       +"    -scaflist_append2title .... scaf/link/chain list appended to title\n"
       +"    -scaflist_sdtag SDTAG ..... scaf list written to SD dataitem\n"
       +"    -append2ofile ............. output mols appended to -o OFILE (resume mode)\n"
+      +"                                (with -bdb_bulk, OFILE first truncated to last checkpoint)\n"
       +"  RDB:\n"
       +"    -rdb ...................... use RDB for storage and performance\n"
       +"    -rdb_keep ................. keep RDB tables after job completion\n"
@@ -137,6 +171,15 @@ public class hier_scaffolds
       +"    -bdb_keep ................. keep BerkeleyDB files after job completion\n"
       +"    -bdb_predelete ............ initially delete BerkeleyDB at BDBDIR (if existing)\n"
       +"    -bdb_resume ............... resume job using existing BerkeleyDB\n"
+      +"    -bdb_bulk ................. bulk load: non-transactional, deferred writes, durable per checkpoint\n"
+      +"    -bdb_bulk_n N ............. bulk load checkpoint once per N mols (crash loses at most N) ["+bdb_bulk_n+"]\n"
+      +"                                (resume after crash: same args plus -bdb_resume -append2ofile)\n"
+      +"    -bdb_props PFILE .......... BerkeleyDB tuning, JE parameters (je.*) properties file\n"
+      +"    -bdb_cache_mb MB .......... BerkeleyDB cache size [JE default]\n"
+      +"    -bdb_cache_pct PCT ........ BerkeleyDB cache size, percent of heap [JE default]\n"
+      +"    -bdb_logfile_mb MB ........ BerkeleyDB max log file size [JE default]\n"
+      +"    -bdb_cleaner_threads N .... BerkeleyDB log cleaner threads [JE default]\n"
+      +"    -bdb_lock_timeout_ms MS ... BerkeleyDB lock timeout [JE default]\n"
       +"  DerbyDB:\n"
       +"    -ddb ...................... use DerbyDB for storage and performance\n"
       +"    -ddb_dir DDBDIR ........... scratch dir for DerbyDB files ["+ddb_dir+"]\n"
@@ -146,9 +189,17 @@ public class hier_scaffolds
       +"  Misc:\n"
       +"    -maxatoms MAX ............. max atom count of input mol ["+maxatoms+"]\n"
       +"    -maxrings MAX ............. max ring count of input mol ["+maxrings+"]\n"
+      +"    -ringsys_min RMIN ......... ring-system engine for mols with RMIN+ rings, not subject to MAX [0=never]\n"
+      +"    -maxtime SEC .............. max compute time per mol; else truncated, not merged [0=none] ["+maxtime+"]\n"
+      +"    -out_truncated OFILE_TRUNC  truncated input mols, for reprocessing with larger -maxtime\n"
       +"    -show_js .................. show junctions (as pseudoatoms) -- for debugging, visualizing\n"
       +"    -nmax NMAX ................ quit after NMAX molecules\n"
       +"    -nskip NSKIP .............. skip NSKIP molecules\n"
+      +"    -threads N ................ perception threads; output identical ["+nthreads+"]\n"
+      +"    -heavy_min SCORE .......... route mols with cost score (ringsys+junctions) SCORE+ to heavy lane [0=no routing]\n"
+      +"    -heavy_threads N .......... heavy lane threads ["+heavy_threads+"]\n"
+      +"    -heavy_maxtime SEC ........ heavy lane max compute time per mol [default=MAXTIME]\n"
+      +"    -route_threads N .......... routing (pre-filter, ring perception, score) threads [default=max(1,N/4)]\n"
       //+"    -db_preload SCAFS ......... preload db from scaffold file for incremental analysis\n"
       +"    -v ........................ verbose\n"
       +"    -vv ....................... very verbose\n"
@@ -179,6 +230,9 @@ public class hier_scaffolds
       else if (args[i].equals("-scaflist_sdtag")) scaflist_sdtag=args[++i];
       else if (args[i].equals("-maxatoms") || args[i].equals("-maxmol")) maxatoms=Integer.parseInt(args[++i]);
       else if (args[i].equals("-maxrings")) maxrings=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-ringsys_min")) ringsys_min=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-maxtime")) maxtime=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-out_truncated")) ofile_trunc=args[++i];
 
       else if (args[i].equals("-rdb")) rdb=true;
       else if (args[i].equals("-rdb_keep")) rdb_keep=true;
@@ -200,6 +254,14 @@ public class hier_scaffolds
       else if (args[i].equals("-bdb_resume")) bdb_resume=true;
       else if (args[i].equals("-bdb_predelete")) bdb_predelete=true;
       else if (args[i].equals("-bdb_dump")) bdb_dump=args[++i];
+      else if (args[i].equals("-bdb_bulk")) bdb_bulk=true;
+      else if (args[i].equals("-bdb_bulk_n")) bdb_bulk_n=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-bdb_props")) bdb_props=args[++i];
+      else if (args[i].equals("-bdb_cache_mb")) bdb_cache_mb=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-bdb_cache_pct")) bdb_cache_pct=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-bdb_logfile_mb")) bdb_logfile_mb=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-bdb_cleaner_threads")) bdb_cleaner_threads=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-bdb_lock_timeout_ms")) bdb_lock_timeout_ms=Integer.parseInt(args[++i]);
 
       else if (args[i].equals("-ddb")) ddb=true;
       else if (args[i].equals("-ddb_dir")) ddb_dir=args[++i];
@@ -210,6 +272,11 @@ public class hier_scaffolds
 
       else if (args[i].equals("-nmax")) nmax=Integer.parseInt(args[++i]);
       else if (args[i].equals("-nskip")) nskip=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-threads")) nthreads=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-heavy_min")) heavy_min=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-heavy_threads")) heavy_threads=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-heavy_maxtime")) heavy_maxtime=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-route_threads")) route_threads=Integer.parseInt(args[++i]);
       //else if (args[i].equals("-db_preload")) db_preload=args[++i];
       else if (args[i].equals("-v")) verbose=1;
       else if (args[i].equals("-vv")) verbose=2;
@@ -239,6 +306,9 @@ public class hier_scaffolds
     opts.addOption(Option.builder("stereo").hasArg().desc("stereo scaffolds (default non-stereo)").build());
     opts.addOption(Option.builder("maxatoms").type(Number.class).hasArg().desc("max atom count of input mol ["+maxatoms+"]").build());
     opts.addOption(Option.builder("maxrings").type(Number.class).hasArg().desc("max ring count of input mol ["+maxrings+"]").build());
+    opts.addOption(Option.builder("ringsys_min").type(Number.class).hasArg().desc("ring-system engine for mols with RMIN+ rings, not subject to maxrings [0=never]").build());
+    opts.addOption(Option.builder("maxtime").type(Number.class).hasArg().desc("max compute time per mol; else truncated, not merged [0=none] ["+maxtime+"]").build());
+    opts.addOption(Option.builder("out_truncated").hasArg().desc("truncated input mols, for reprocessing with larger maxtime").build());
     opts.addOption(Option.builder("rdb").hasArg().desc("use RDB for storage and performance").build());
     opts.addOption(Option.builder("rdb_keep").hasArg().desc("keep RDB tables after job completion").build());
     opts.addOption(Option.builder("rdb_predelete").hasArg().desc("initially delete RDB (if existing)").build());
@@ -259,6 +329,14 @@ public class hier_scaffolds
     opts.addOption(Option.builder("bdb_resume").hasArg().desc("").build());
     opts.addOption(Option.builder("bdb_predelete").hasArg().desc("").build());
     opts.addOption(Option.builder("bdb_dump").hasArg().desc("dump existing BerkeleyDB at BDBDIR").build());
+    opts.addOption(Option.builder("bdb_bulk").desc("bulk load: non-transactional, deferred writes, durable per checkpoint").build());
+    opts.addOption(Option.builder("bdb_bulk_n").type(Number.class).hasArg().desc("bulk load checkpoint once per N mols ["+bdb_bulk_n+"]").build());
+    opts.addOption(Option.builder("bdb_props").hasArg().desc("BerkeleyDB tuning, JE parameters (je.*) properties file").build());
+    opts.addOption(Option.builder("bdb_cache_mb").type(Number.class).hasArg().desc("BerkeleyDB cache size").build());
+    opts.addOption(Option.builder("bdb_cache_pct").type(Number.class).hasArg().desc("BerkeleyDB cache size, percent of heap").build());
+    opts.addOption(Option.builder("bdb_logfile_mb").type(Number.class).hasArg().desc("BerkeleyDB max log file size").build());
+    opts.addOption(Option.builder("bdb_cleaner_threads").type(Number.class).hasArg().desc("BerkeleyDB log cleaner threads").build());
+    opts.addOption(Option.builder("bdb_lock_timeout_ms").type(Number.class).hasArg().desc("BerkeleyDB lock timeout").build());
     opts.addOption(Option.builder("ddb").hasArg().desc("").build());
     opts.addOption(Option.builder("ddb_dir").hasArg().desc("").build());
     opts.addOption(Option.builder("ddb_keep").hasArg().desc("").build());
@@ -267,6 +345,11 @@ public class hier_scaffolds
     opts.addOption(Option.builder("ddb_dump").hasArg().desc("").build());
     opts.addOption(Option.builder("nmax").type(Number.class).hasArg().desc("quit after NMAX molecules").build());
     opts.addOption(Option.builder("nskip").type(Number.class).hasArg().desc("skip NSKIP molecules").build());
+    opts.addOption(Option.builder("threads").type(Number.class).hasArg().desc("perception threads; output identical ["+nthreads+"]").build());
+    opts.addOption(Option.builder("heavy_min").type(Number.class).hasArg().desc("route mols with cost score (ringsys+junctions) SCORE+ to heavy lane [0=no routing]").build());
+    opts.addOption(Option.builder("heavy_threads").type(Number.class).hasArg().desc("heavy lane threads ["+heavy_threads+"]").build());
+    opts.addOption(Option.builder("heavy_maxtime").type(Number.class).hasArg().desc("heavy lane max compute time per mol [default=maxtime]").build());
+    opts.addOption(Option.builder("route_threads").type(Number.class).hasArg().desc("routing (pre-filter, ring perception, score) threads [default=max(1,threads/4)]").build());
 
     ParseCommand(args);
 
@@ -280,9 +363,10 @@ public class hier_scaffolds
       if (bdb_resume || bdb_predelete)
         Help("ERROR: -bdb_resume, -bdb_predelete incompatible with -bdb_dump.");
       if (verbose>0) System.err.println("Dumping scaffold store at: "+bdb_dir);
+      ScaffoldStoreTuning bdb_tuning=BdbTuning();
 
       File bdbDir = new File(bdb_dir);
-      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, stereo, keep_nitro_attachments);
+      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, stereo, keep_nitro_attachments, bdb_bulk, bdb_tuning);
       File fout = new File(bdb_dump);
       long nscaf = scafstore.dumpToFile(fout, verbose);
       System.err.println("Scaffold store at: "+bdb_dir+" dumped to: "+bdb_dump);
@@ -314,6 +398,8 @@ public class hier_scaffolds
     }
 
     if (ifile==null) Help("Input file required.");
+    if (heavy_maxtime<0) heavy_maxtime=maxtime;
+    if (route_threads<=0) route_threads=Math.max(1, nthreads/4);
 
     if (verbose>1)
       System.err.println("JChem version: "+com.chemaxon.version.VersionInfo.getVersion());
@@ -325,6 +411,14 @@ public class hier_scaffolds
       Help("ERROR: -bdb_resume requires -bdb.");
     if ((bdb_resume||bdb_keep||bdb_predelete) && !bdb)
       Help("ERROR: -bdb_resume|-bdb_keep|-bdb_predelete require -bdb.");
+    if (bdb_bulk && !bdb)
+      Help("ERROR: -bdb_bulk requires -bdb.");
+    if ((bdb_props!=null || bdb_cache_mb>0 || bdb_cache_pct>0 || bdb_logfile_mb>0 || bdb_cleaner_threads>0 || bdb_lock_timeout_ms>0) && !bdb)
+      Help("ERROR: -bdb_props|-bdb_cache_mb|-bdb_cache_pct|-bdb_logfile_mb|-bdb_cleaner_threads|-bdb_lock_timeout_ms require -bdb.");
+    if (bdb_cache_mb>0 && bdb_cache_pct>0)
+      Help("ERROR: -bdb_cache_mb and -bdb_cache_pct incompatible.");
+    if (bdb_bulk_n<1)
+      Help("ERROR: -bdb_bulk_n must be positive.");
     if (rdb_resume && rdb_predelete)
       Help("ERROR: -rdb_resume and -rdb_predelete incompatible.");
     if (rdb_resume && !rdb)
@@ -352,7 +446,8 @@ public class hier_scaffolds
         Help("-o requires one or more of: -inc_mol, inc_scaf, inc_link, inc_chain");
       String ofmt=MFileFormatUtil.getMostLikelyMolFormat(ofile);
       if (ofmt.equals("smiles")) ofmt=SMIFMT_TSV;
-      molWriter=new MolExporter(new FileOutputStream(ofile, append2ofile), ofmt);
+      ofile_fos=new FileOutputStream(ofile, append2ofile);
+      molWriter=new MolExporter(ofile_fos, ofmt);
     }
     else
     {
@@ -373,8 +468,17 @@ public class hier_scaffolds
         molWriter_scaf=new MolExporter(System.out, SMIFMT_OUT);
     }
 
+    MolExporter molWriter_trunc=null;
+    if (ofile_trunc!=null)
+    {
+      String ofmt=MFileFormatUtil.getMostLikelyMolFormat(ofile_trunc);
+      if (ofmt.equals("smiles")) ofmt=SMIFMT_OUT;
+      molWriter_trunc=new MolExporter(new FileOutputStream(ofile_trunc), ofmt);
+    }
+
     ScaffoldStore scafstore=null; // ScaffoldStore stores global unique scafs in BerkeleyDB.
     File bdbDir=null;
+    ScaffoldStoreTuning bdb_tuning=null;
 
     ScaffoldDB scafdb=null; // ScaffoldDB stores global unique scafs in RDB.
     Connection rdb_con=null;
@@ -393,24 +497,45 @@ public class hier_scaffolds
         catch (Exception e)
         { System.err.println("ERROR: DBDIR creation failed ("+bdb_dir+"): "+e.getMessage()); }
       }
-      scafstore = new ScaffoldStore(bdbDir, stereo, keep_nitro_attachments);
+      bdb_tuning=BdbTuning();
+      if (verbose>0 && bdb_tuning!=null)
+        System.err.println("BerkeleyDB tuning: "+bdb_tuning);
+      scafstore = new ScaffoldStore(bdbDir, stereo, keep_nitro_attachments, bdb_bulk, bdb_tuning);
 
       if (bdb_predelete)
       {
         if (verbose>0)
           System.err.println("Deleting and reinitializing BerkeleyDB at \""+bdb_dir+"\".");
         scafstore.destroyDB();
-        scafstore = new ScaffoldStore(bdbDir, stereo, keep_nitro_attachments);
+        scafstore = new ScaffoldStore(bdbDir, stereo, keep_nitro_attachments, bdb_bulk, bdb_tuning);
       }
 
       // Check for existing contents of scafstore:
-      n_db_scaf_init=scafstore.count();
+      n_db_scaf_init=scafstore.getLastID(); //dense IDs; count() scans
       if (n_db_scaf_init>0)
       {
         if (!bdb_resume)
           Help("ERROR: Non-empty scratch DB at \""+bdb_dir+"\" (n_scafs="+n_db_scaf_init+") requires -bdb_resume or -bdb_predelete.");
         else
           System.err.println("Non-empty scratch DB at \""+bdb_dir+"\" (n_scafs="+n_db_scaf_init+").");
+        if (!scafstore.isKeyed())
+          Help("ERROR: Scratch DB at \""+bdb_dir+"\" created by earlier version (no canonical keys); cannot resume, rebuild with -bdb_predelete.");
+        if (bdb_resume && nskip==0 && scafstore.getCheckpointPosition()>0)
+        {
+          nskip=(int)scafstore.getCheckpointPosition(); //resume after last checkpoint
+          System.err.println("Resuming from checkpoint: skipping "+nskip+" mols.");
+          long ofile_len=scafstore.getCheckpointOutputLength();
+          if (ofile_fos!=null && ofile_len>=0L)
+          {
+            if (append2ofile)
+            {
+              ofile_fos.getChannel().truncate(ofile_len); //output after checkpoint written again
+              System.err.println("Output truncated to checkpoint: "+ofile+" ("+ofile_len+" bytes).");
+            }
+            else
+              System.err.println("NOTE: output written from checkpoint only; for complete output use -append2ofile.");
+          }
+        }
         if (verbose>0)
           System.err.println("scafstore.info:\n"+scafstore.info(verbose));
       }
@@ -482,21 +607,22 @@ public class hier_scaffolds
       scafset = new ScaffoldSet("scaffold set from: "+ifile);
     }
 
-    Molecule mol;
     int n_mol=0;
-    int n_err=0;
-    int n_mol_toobig=0;
-    int n_mol_toomanyrings=0;
-    int n_mol_frag=0;
-    int n_total_scaf=0;
     java.util.Date t_0 = new java.util.Date();
+    hscaf_utils.resetCutPartCounts();
     if (verbose>0)
       System.err.println(DateFormat.getDateTimeInstance().format(t_0));
     java.util.Date t_i = t_0;
     int n_chunk=100;
+    if (nthreads>1 || heavy_min>0)
+    {
+      n_mol=RunThreaded(molReader, molWriter, molWriter_trunc, scafset, scafstore, scafdb, t_0);
+    }
+    else
+    {
     for (n_mol=0;true;)
     {
-      boolean ok=true;
+      Molecule mol;
       try { mol=molReader.read(); }
       catch (MolFormatException e)
       {
@@ -508,145 +634,32 @@ public class hier_scaffolds
       ++n_mol;
       if (nskip>0 && n_mol<=nskip) continue;
 
-      Molecule outmol = new Molecule();
-      if (inc_mol)
-      {
-        outmol.setName(mol.getName());
-        outmol.fuse(mol.cloneMolecule(), false);
-      }
-      String molname=mol.getName();
-      if (verbose>1)
-      {
-        System.err.println(""+n_mol+". "+molname);
-        try { System.err.println("\t"+MolExporter.exportToFormat(mol, SMIFMT_HSCAF)); }
-        catch (MolExportException e) { System.err.println(e.getMessage()); }
-        catch (IOException e) { System.err.println(e.getMessage()); }
-      }
-      if (mol.getAtomCount()>maxatoms)
-      {
-        if (verbose>1)
-          System.err.println("Warning: skipping mol; natoms="+mol.getAtomCount() +">"+ +maxatoms+" ["+n_mol+"] "+molname);
-        ++n_mol_toobig;
-        ok=false;
-      }
-      if (mol.getFragCount(MoleculeGraph.FRAG_BASIC)>1)
-      {
-        if (verbose>1)
-          System.err.println("Warning: multi-frag mol; analyzing largest frag only: ["+n_mol+"] "+molname);
-        ++n_mol_frag;
-        mol=hier_scaffolds_utils.LargestPart(mol);
-      }
-      int ring_count=hier_scaffolds_utils.RawRingsystemCount(mol);
-      if (verbose>1)
-      {
-        System.err.println("\traw_ringsys_count: "+ring_count);
-      }
-      if (maxrings>0 && ring_count>maxrings)
-      {
-        if (verbose>1)
-          System.err.println("Warning: skipping mol; nrings="+ring_count +">"+ +maxrings+" ["+n_mol+"] "+molname);
-        ++n_mol_toomanyrings;
-        ok=false;
-      }
-      if (!ok)
-      {
-        if (ofile!=null) { if (!WriteMol(molWriter, outmol)) ++n_err; }
-        continue;
-      }
-      java.util.Date t_this_0 = new java.util.Date();
-      ScaffoldTree scaftree=null;
-      //System.err.println("DEBUG: ScaffoldTree() next...");
-      try {
-        if (rdb)
-          scaftree = new ScaffoldTree(mol, stereo, keep_nitro_attachments, scafdb); //scafIDs assigned.
-        else if (bdb)
-          scaftree = new ScaffoldTree(mol, stereo, keep_nitro_attachments, scafstore); //scafIDs assigned.
-        else 
-          scaftree = new ScaffoldTree(mol, stereo, keep_nitro_attachments, scafset); //scafIDs assigned.
-      }
-      catch (Exception e) {
-        ++n_err;
-        //System.err.println(e.getMessage());
-        System.err.println("DEBUG: ScaffoldTree() Exception: "+e.toString());
-        ok=false;
-      }
-      if (!ok)
-      {
-        if (ofile!=null) { if (!WriteMol(molWriter, outmol)) ++n_err; }
-        continue;
-      }
-      if (verbose>1)
-      {
-        System.err.print("\tn_scaf="+scaftree.getScaffoldCount());
-        System.err.print("\tn_link="+scaftree.getLinkerCount());
-        System.err.println("\tn_chain="+scaftree.getSidechainCount());
-      }
-      n_total_scaf+=scaftree.getScaffoldCount();
-
-      ArrayList<Long> scaflist = new ArrayList<Long>(); //scafIDs for this mol
-      int n_scaf=0;
-      for (Scaffold scaf: scaftree.getScaffolds())
-      {
-        ++n_scaf;
-        scaflist.add(scaf.getID());
-        if (verbose>2)
-        {
-          System.err.println("\tscaf: "+n_scaf+". "+(show_js?scaf.getJsmi():scaf.getCansmi()));
-          //System.err.println("\tDEBUG: "+hscaf_utils.ScaffoldSmarts(scaf));
-          System.err.print("\t\tID="+(scaf.getID()));
-          System.err.print(" cIDs="+scaf.getChildIDs());
-          System.err.print(scaf.isRoot()?" (root)":"");
-          System.err.print(scaf.isLeaf()?" (leaf)":"");
-          System.err.println("");
-        }
-        if (inc_scaf)
-          outmol.fuse(scaf.cloneMolecule(), false);
-      }
-      if (verbose>1)
-      {
-        System.err.println("\t"+scaftree.toString());
-      }
-
-      Collections.sort(scaflist);
-      String scaflist_str="S:";
-      for (long id: scaflist) { scaflist_str+=""+id+","; }
-      scaflist_str=scaflist_str.replaceFirst(",$", "");
-
-      if (scaflist_title) outmol.setName(scaflist_str);
-      else if (scaflist_append2title)
-        outmol.setName(mol.getName()+" "+scaflist_str);
-      outmol.setProperty(scaflist_sdtag, scaflist_str);
-      outmol.setProperty(scaftree_sdtag, scaftree.toString());
-
-      int n_link=0;
-      for (Linker link: scaftree.getLinkers())
+      MolJob job = new MolJob(n_mol, mol);
+      PrepareMol(job);
+      if (job.ok)
       {
-        ++n_link;
-        if (verbose>2)
-        {
-          System.err.println("\tlinker: "+n_link+". "+(show_js?link.getJsmi():link.getSmi()));
+        job.t_this_0 = new java.util.Date();
+        //System.err.println("DEBUG: ScaffoldTree() next...");
+        try {
+          if (rdb)
+            job.scaftree = new ScaffoldTree(job.mol, stereo, keep_nitro_attachments, null, null, scafdb, true, job.ringsys, maxtime, job.ringctx); //scafIDs assigned.
+          else if (bdb)
+            job.scaftree = new ScaffoldTree(job.mol, stereo, keep_nitro_attachments, null, scafstore, null, true, job.ringsys, maxtime, job.ringctx); //scafIDs assigned.
+          else 
+            job.scaftree = new ScaffoldTree(job.mol, stereo, keep_nitro_attachments, scafset, null, null, true, job.ringsys, maxtime, job.ringctx); //scafIDs assigned.
         }
-        if (inc_link)
-          outmol.fuse(link.cloneMolecule(), false);
+        catch (Exception e) { job.ex=e; }
       }
-      int n_chain=0;
-      for (Sidechain chain: scaftree.getSidechains())
-      {
-        ++n_chain;
-        if (verbose>2)
-          System.err.println("\tsidechain: "+n_chain+". "+(show_js?chain.getJsmi():chain.getSmi()));
-        if (inc_chain)
-          outmol.fuse(chain.cloneMolecule(), false);
-      }
-      if (verbose>1)
-        System.err.println("\tt_this: "+time_utils.TimeDeltaStr(t_this_0, new java.util.Date()));
-      if (ofile!=null) { if (!WriteMol(molWriter, outmol)) ++n_err; }
+      boolean finished=FinishMol(job, molWriter, molWriter_trunc);
+      if (bdb_bulk) BulkCheckpoint(scafstore, molWriter, n_mol, false);
+      if (!finished) continue;
       if (verbose>0 && n_mol%n_chunk==0)
       {
         System.err.print(" mols: "+n_mol+"; errors: "+n_err+": tod: "+time_utils.CurrentTime());
         java.util.Date t_j = new java.util.Date();
         System.err.print("; elapsed: "+time_utils.TimeDeltaStr(t_0, t_j)+"; dt: "+time_utils.TimeDeltaStr(t_i, t_j));
-        System.err.println("; @: \""+molname+"\"");
+        System.err.println("; @: \""+job.molname+"\"");
+        if (bdb) System.err.println(" "+scafstore.getMetrics());
         t_i=t_j;
       }
       if (nmax>0 && n_mol==(nmax+nskip)) break;
@@ -658,39 +671,36 @@ public class hier_scaffolds
         catch (SQLException e) { System.err.println("SQLException: "+e.getMessage()); }
       }
     }
+    }
     int n_scaf_unique=0;
     if (bdb)
     {
-      for (long scaf_id=1L;true;++scaf_id)
+      if (ofile_scaf!=null)
       {
-        String scafsmi=null;
-        ScaffoldStoreEntity scent=null;
-        try {
-          scent=scafstore.scaffoldById.get(scaf_id);
-          scafsmi=scent.getCanSmi();
-        }
-        catch (Exception e) { break; }
-        if (scafsmi==null) break;
-        ++n_scaf_unique;
-        if (ofile_scaf!=null)
-        {
-          Molecule scafmol=null;
-          try { scafmol=MolImporter.importMol(scafsmi, "smiles:"); }
-          catch (Exception e) {
-          //System.err.println(e.getMessage());
-          System.err.println(e.toString());
-            ++n_err;
-          }
-          if (scafmol==null)
+        final MolExporter scafWriter=molWriter_scaf;
+        n_scaf_unique=(int)scafstore.dump(new ScaffoldStore.DumpHandler() {
+          public void scaffold(long scaf_id,String scafsmi,String scaftree) throws IOException
           {
-            System.err.println("error: importMol smiles: \""+scafsmi+"\"");
-            ++n_err;
-            scafmol = new Molecule();
+            Molecule scafmol=null;
+            try { scafmol=MolImporter.importMol(scafsmi, "smiles:"); }
+            catch (Exception e) {
+            //System.err.println(e.getMessage());
+            System.err.println(e.toString());
+              ++n_err;
+            }
+            if (scafmol==null)
+            {
+              System.err.println("error: importMol smiles: \""+scafsmi+"\"");
+              ++n_err;
+              scafmol = new Molecule();
+            }
+            scafmol.setName(""+scaf_id+" "+scaftree);
+            scafWriter.write(scafmol);
           }
-          scafmol.setName(""+scaf_id+" "+scafstore.getScaffoldString(scent));
-          molWriter_scaf.write(scafmol);
-        }
+        }); //two cursor passes (child IDs, then entities), tree strings memoized
       }
+      else
+        n_scaf_unique=(int)scafstore.getLastID(); //dense IDs
     }
     else if (rdb)
     {
@@ -740,14 +750,17 @@ public class hier_scaffolds
         molWriter_scaf.write(scaf);
         ++n_scaf_unique;
       }
+      if (verbose>0)
+        System.err.println("ScaffoldSet memory: ~"+scafset.getBytesPerScaffold()+" bytes/scaffold (N = "+scafset.getCount()+")");
     }
 
     long n_db_scaf=0L;
     if (bdb)
     {
+      if (bdb_bulk) BulkCheckpoint(scafstore, molWriter, n_mol, true);
       if (verbose>0)
         System.err.println("scafstore.info:\n"+scafstore.info(verbose));
-      n_db_scaf=scafstore.count();
+      n_db_scaf=scafstore.getLastID();
       if (bdb_keep)
       {
         if (verbose>0)
@@ -783,6 +796,7 @@ public class hier_scaffolds
     }
     molWriter_scaf.close();
     molWriter.close();
+    if (molWriter_trunc!=null) molWriter_trunc.close();
     System.err.println("Total elapsed time: "+time_utils.TimeDeltaStr(t_0, new java.util.Date()));
     if (verbose>0)
       System.err.println(DateFormat.getDateTimeInstance().format(new java.util.Date()));
@@ -793,6 +807,7 @@ public class hier_scaffolds
       System.err.println("Processed mols: "+(n_mol-nskip));
     }
     System.err.println("Scaffolds found: "+n_total_scaf);
+    System.err.println("Junction cut parts: "+hscaf_utils.getCutPartCount()+" (not built, same part via other cut order: "+hscaf_utils.getCutPartSkippedCount()+")");
     if (bdb || rdb)
       if (n_db_scaf>n_db_scaf_init)
         System.err.println("Unique scaffolds found this run: "+(n_db_scaf-n_db_scaf_init));
@@ -800,10 +815,463 @@ public class hier_scaffolds
     System.err.println("Oversized mols rejected: "+n_mol_toobig);
     System.err.println("Too-many-rings mols rejected: "+n_mol_toomanyrings);
     System.err.println("Multi-fragment mols (largest part analyzed only): "+n_mol_frag);
+    System.err.println("Truncated mols (compute time > "+maxtime+"s): "+n_mol_truncated+(ofile_trunc!=null?(" (written to: "+ofile_trunc+")"):""));
+    if (heavy_min>0)
+    {
+      for (int lane=0;lane<2;++lane)
+        System.err.println(LaneStats(lane));
+    }
     System.err.println("Errors: "+n_err);
     System.exit(0);
   }
   /////////////////////////////////////////////////////////////////////////////
+  /**	One input molecule and its results, as passed between the stages
+	of the per-molecule pipeline.  Messages are buffered in log, so
+	that in -threads mode they are printed in input order.
+  */
+  private static class MolJob
+  {
+    int n_mol;
+    Molecule inmol; //as read
+    Molecule mol;
+    Molecule outmol;
+    String molname;
+    boolean ok=true;
+    boolean toobig=false;
+    boolean toomanyrings=false;
+    boolean frag=false;
+    boolean ringsys=false;
+    int ring_count=0;
+    RingContext ringctx=null; //ring perception, shared by filters and perception
+    int score=0; //cost score, if routing
+    int lane=0; //0=fast, 1=heavy
+    ScaffoldTree scaftree=null;
+    Exception ex=null;
+    String readerr=null;
+    boolean eof=false;
+    Future<MolJob> perception=null; //lane task, submitted by router stage
+    java.util.Date t_this_0=null;
+    java.util.Date t_this_1=null;
+    StringBuilder log = new StringBuilder();
+    MolJob(int n_mol, Molecule mol) { this.n_mol=n_mol; this.inmol=mol; this.mol=mol; }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Pre-filter stage: output molecule, size and ring count checks,
+	largest fragment.  Sets job.ok false if molecule rejected.
+  */
+  private static void PrepareMol(MolJob job)
+  {
+    Molecule mol=job.mol;
+    job.outmol = new Molecule();
+    if (inc_mol)
+    {
+      job.outmol.setName(mol.getName());
+      job.outmol.fuse(mol.cloneMolecule(), false);
+    }
+    String molname=mol.getName();
+    job.molname=molname;
+    if (verbose>1)
+    {
+      job.log.append(""+job.n_mol+". "+molname+"\n");
+      try { job.log.append("\t"+MolExporter.exportToFormat(mol, SMIFMT_HSCAF)+"\n"); }
+      catch (MolExportException e) { job.log.append(e.getMessage()+"\n"); }
+      catch (IOException e) { job.log.append(e.getMessage()+"\n"); }
+    }
+    if (mol.getAtomCount()>maxatoms)
+    {
+      if (verbose>1)
+        job.log.append("Warning: skipping mol; natoms="+mol.getAtomCount() +">"+ +maxatoms+" ["+job.n_mol+"] "+molname+"\n");
+      job.toobig=true;
+      job.ok=false;
+    }
+    if (mol.getFragCount(MoleculeGraph.FRAG_BASIC)>1)
+    {
+      if (verbose>1)
+        job.log.append("Warning: multi-frag mol; analyzing largest frag only: ["+job.n_mol+"] "+molname+"\n");
+      job.frag=true;
+      mol=hier_scaffolds_utils.LargestPart(mol);
+      job.mol=mol;
+    }
+    job.ringctx = new RingContext(mol);
+    int ring_count=hier_scaffolds_utils.RawRingsystemCount(job.ringctx);
+    job.ring_count=ring_count;
+    if (verbose>1)
+    {
+      job.log.append("\traw_ringsys_count: "+ring_count+"\n");
+    }
+    if (ringsys_min>0 && ring_count>=ringsys_min)
+    {
+      if (verbose>1)
+        job.log.append("\tring-system engine: nrings="+ring_count +">="+ringsys_min+"\n");
+      job.ringsys=true;
+    }
+    else if (maxrings>0 && ring_count>maxrings)
+    {
+      if (verbose>1)
+        job.log.append("Warning: skipping mol; nrings="+ring_count +">"+ +maxrings+" ["+job.n_mol+"] "+molname+"\n");
+      job.toomanyrings=true;
+      job.ok=false;
+    }
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Output stage: report and write one molecule, in input order.
+	Tallies counts.  Returns false if molecule rejected or failed.
+	Truncated molecules (-maxtime) are written as rejected, and to
+	the truncated file, if any.
+  */
+  private static boolean FinishMol(MolJob job, MolExporter molWriter, MolExporter molWriter_trunc)
+	throws IOException
+  {
+    System.err.print(job.log);
+    if (job.toobig) ++n_mol_toobig;
+    if (job.frag) ++n_mol_frag;
+    if (job.toomanyrings) ++n_mol_toomanyrings;
+    Molecule outmol=job.outmol;
+    if (!job.ok)
+    {
+      if (ofile!=null) { if (!WriteMol(molWriter, outmol)) ++n_err; }
+      return false;
+    }
+    if (job.ex!=null)
+    {
+      ++n_err;
+      //System.err.println(job.ex.getMessage());
+      System.err.println("DEBUG: ScaffoldTree() Exception: "+job.ex.toString());
+      if (ofile!=null) { if (!WriteMol(molWriter, outmol)) ++n_err; }
+      return false;
+    }
+    ScaffoldTree scaftree=job.scaftree;
+    if (scaftree.isTruncated())
+    {
+      ++n_mol_truncated;
+      System.err.println("Warning: truncated; compute time > "+((job.lane==1)?heavy_maxtime:maxtime)+"s ["+job.n_mol+"] "+job.molname);
+      if (molWriter_trunc!=null) { if (!WriteMol(molWriter_trunc, job.inmol)) ++n_err; }
+      if (ofile!=null) { if (!WriteMol(molWriter, outmol)) ++n_err; }
+      return false;
+    }
+    if (verbose>1)
+    {
+      System.err.print("\tn_scaf="+scaftree.getScaffoldCount());
+      System.err.print("\tn_link="+scaftree.getLinkerCount());
+      System.err.println("\tn_chain="+scaftree.getSidechainCount());
+    }
+    n_total_scaf+=scaftree.getScaffoldCount();
+
+    ArrayList<Long> scaflist = new ArrayList<Long>(); //scafIDs for this mol
+    int n_scaf=0;
+    for (Scaffold scaf: scaftree.getScaffolds())
+    {
+      ++n_scaf;
+      scaflist.add(scaf.getID());
+      if (verbose>2)
+      {
+        System.err.println("\tscaf: "+n_scaf+". "+(show_js?scaf.getJsmi():scaf.getCansmi()));
+        //System.err.println("\tDEBUG: "+hscaf_utils.ScaffoldSmarts(scaf));
+        System.err.print("\t\tID="+(scaf.getID()));
+        System.err.print(" cIDs="+scaf.getChildIDs());
+        System.err.print(scaf.isRoot()?" (root)":"");
+        System.err.print(scaf.isLeaf()?" (leaf)":"");
+        System.err.println("");
+      }
+      if (inc_scaf)
+      {
+        scaf.decompress(); //stored scaffolds are lazy, structure only if needed
+        outmol.fuse(scaf.cloneMolecule(), false);
+      }
+    }
+    if (verbose>1)
+    {
+      System.err.println("\t"+scaftree.toString());
+    }
+
+    Collections.sort(scaflist);
+    String scaflist_str="S:";
+    for (long id: scaflist) { scaflist_str+=""+id+","; }
+    scaflist_str=scaflist_str.replaceFirst(",$", "");
+
+    if (scaflist_title) outmol.setName(scaflist_str);
+    else if (scaflist_append2title)
+      outmol.setName(job.mol.getName()+" "+scaflist_str);
+    outmol.setProperty(scaflist_sdtag, scaflist_str);
+    outmol.setProperty(scaftree_sdtag, scaftree.toString());
+
+    int n_link=0;
+    for (Linker link: scaftree.getLinkers())
+    {
+      ++n_link;
+      if (verbose>2)
+      {
+        System.err.println("\tlinker: "+n_link+". "+(show_js?link.getJsmi():link.getSmi()));
+      }
+      if (inc_link)
+        outmol.fuse(link.cloneMolecule(), false);
+    }
+    int n_chain=0;
+    for (Sidechain chain: scaftree.getSidechains())
+    {
+      ++n_chain;
+      if (verbose>2)
+        System.err.println("\tsidechain: "+n_chain+". "+(show_js?chain.getJsmi():chain.getSmi()));
+      if (inc_chain)
+        outmol.fuse(chain.cloneMolecule(), false);
+    }
+    if (verbose>1)
+      System.err.println("\tt_this: "+time_utils.TimeDeltaStr(job.t_this_0, (job.t_this_1!=null?job.t_this_1:new java.util.Date())));
+    if (ofile!=null) { if (!WriteMol(molWriter, outmol)) ++n_err; }
+    return true;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Router stage (-heavy_min): cost score is ring system count plus
+	junction bond count (tagJunctions() on a copy), both cheap relative
+	to findChildScaffolds(), whose cost grows with them.  Molecules
+	scoring heavy_min or more go to the heavy lane.
+  */
+  private static void RouteMol(MolJob job)
+  {
+    int n_junc=0;
+    try { n_junc=hscaf_utils.tagJunctions(job.mol, keep_nitro_attachments, job.ringctx).size(); } //re-tagged by ScaffoldTree
+    catch (Exception e) { n_junc=0; } //Perception will report.
+    job.score=job.ring_count+n_junc;
+    job.lane=((job.score>=heavy_min)?1:0);
+    if (verbose>1)
+      job.log.append("	cost score: "+job.score+" ("+LANE_NAMES[job.lane]+" lane)\n");
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	BerkeleyDB tuning profile from -bdb_props file, overridden by
+	-bdb_cache_mb etc.; null if none.
+  */
+  private static ScaffoldStoreTuning BdbTuning()
+	throws IOException
+  {
+    ScaffoldStoreTuning tuning=null;
+    try {
+      tuning=((bdb_props!=null)?ScaffoldStoreTuning.load(new File(bdb_props)):new ScaffoldStoreTuning());
+    }
+    catch (IllegalArgumentException e) { Help("ERROR: -bdb_props: "+e.getMessage()); }
+    if (bdb_cache_mb>0) tuning.setCacheSize(bdb_cache_mb*1048576L);
+    if (bdb_cache_pct>0) tuning.setCachePercent(bdb_cache_pct);
+    if (bdb_logfile_mb>0) tuning.setLogFileMax(bdb_logfile_mb*1048576L);
+    if (bdb_cleaner_threads>0) tuning.setCleanerThreads(bdb_cleaner_threads);
+    if (bdb_lock_timeout_ms>0) tuning.setLockTimeout(bdb_lock_timeout_ms);
+    return (tuning.isEmpty()?null:tuning);
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Bulk load (-bdb_bulk): checkpoints ScaffoldStore, recording input
+	position, once per bdb_bulk_n mols (or if force), in the merge stage,
+	after output written.  Output (-o) is flushed and synced first, and
+	its length recorded, so that on resume (-append2ofile) it is
+	truncated to the checkpoint, and rows written after it, and before
+	a crash, are not duplicated.
+  */
+  private static void BulkCheckpoint(ScaffoldStore scafstore, MolExporter molWriter, int n_mol, boolean force)
+	throws DatabaseException,IOException
+  {
+    if (n_mol_ckpt==0L) n_mol_ckpt=nskip;
+    if (!force && n_mol-n_mol_ckpt<bdb_bulk_n) return;
+    long ofile_len=-1L;
+    if (ofile_fos!=null)
+    {
+      molWriter.flush();
+      ofile_fos.getFD().sync();
+      ofile_len=ofile_fos.getChannel().position();
+    }
+    scafstore.checkpoint(n_mol, ofile_len);
+    n_mol_ckpt=n_mol;
+    if (verbose>1)
+      System.err.println("Checkpoint: mols: "+n_mol+"; scafs: "+scafstore.getLastID());
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Tallies per-lane perception time, in the merge stage.
+  */
+  private static void TallyLane(MolJob job)
+  {
+    if (job.t_this_0==null || job.t_this_1==null) return;
+    long t=job.t_this_1.getTime()-job.t_this_0.getTime();
+    ++n_mol_lane[job.lane];
+    t_lane_total[job.lane]+=t;
+    t_lane_max[job.lane]=Math.max(t_lane_max[job.lane], t);
+    if (job.scaftree!=null && job.scaftree.isTruncated()) ++n_trunc_lane[job.lane];
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static String LaneStats(int lane)
+  {
+    int nthr=((lane==0)?nthreads:heavy_threads);
+    int maxt=((lane==0)?maxtime:heavy_maxtime);
+    long n=n_mol_lane[lane];
+    double t_sec=t_lane_total[lane]/1000.0;
+    double t_wall_sec=t_wall/1000.0;
+    return String.format("Lane %s (threads=%d, maxtime=%ds): mols: %d; perception: %.1fs total, %.1fms mean, %.1fs max; truncated: %d; throughput: %.2f mols/s (wall clock %.1fs); utilization: %.0f%%",
+	LANE_NAMES[lane], nthr, maxt, n, t_sec, (n>0?t_lane_total[lane]/(double)n:0.0),
+	t_lane_max[lane]/1000.0, n_trunc_lane[lane], (t_wall_sec>0.0?n/t_wall_sec:0.0), t_wall_sec,
+	(t_wall_sec>0.0?100.0*t_sec/(nthr*t_wall_sec):0.0));
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  /**	Multi-threaded pipeline (-threads N).  Stages:
+	<ol>
+	<li> reader (one thread): reads molecules and submits jobs, in order,
+	to a bounded queue.
+	<li> workers (N threads): pre-filter and perceive ScaffoldTree with
+	no lookup.
+	<li> merge (this thread): in input order, merges each tree with the
+	ScaffoldSet, ScaffoldStore or ScaffoldDB, assigning scaffold IDs.
+	<li> writer (this thread): writes output in input order.
+	</ol>
+	Since IDs are assigned in input order, exactly as with one thread,
+	output files are identical to the single-threaded run.
+	<br>
+	With routing (-heavy_min), each molecule is first pre-filtered and
+	scored (PrepareMol(), with ring perception, and RouteMol()) by a
+	small router pool (-route_threads), not the reader, so that ring
+	perception for the whole input is not on one thread; the router
+	task submits it to the fast or heavy lane pool, each with its own
+	threads and -maxtime budget, and the merge stage awaits both.
+	Output is still in input order, but up to ROUTE_WINDOW cheap
+	molecules may complete behind a heavy one, so fast lane workers are
+	not blocked by it.
+	@return number of input molecules read
+  */
+  private static int RunThreaded(final MolImporter molReader, MolExporter molWriter, MolExporter molWriter_trunc,
+	ScaffoldSet scafset, ScaffoldStore scafstore, ScaffoldDB scafdb, java.util.Date t_0)
+	throws IOException
+  {
+    final boolean find_linkers=true; //Consistent with ScaffoldSet perception (native, all modes).
+    final boolean route=(heavy_min>0);
+    final ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+    final ExecutorService heavy_pool = (route ? Executors.newFixedThreadPool(heavy_threads) : null);
+    final ExecutorService route_pool = (route ? Executors.newFixedThreadPool(route_threads) : null);
+    final BlockingQueue<Future<MolJob>> queue = new ArrayBlockingQueue<Future<MolJob>>(route ? Math.max(4*nthreads, ROUTE_WINDOW) : 4*nthreads);
+    if (verbose>0)
+      System.err.println("Threads: "+nthreads+(route?("; heavy lane threads: "+heavy_threads+" (score>="+heavy_min+"); router threads: "+route_threads):""));
+
+    Thread reader = new Thread(new Runnable() {
+      public void run()
+      {
+        int n_read=0;
+        try {
+          while (true)
+          {
+            Molecule mol=null;
+            String readerr=null;
+            boolean fatal=false;
+            try { mol=molReader.read(); }
+            catch (MolFormatException e) { readerr=e.getMessage(); }
+            catch (IOException e) { readerr=e.getMessage(); fatal=true; } //stream broken; as sequential loop, stop.
+            if (readerr!=null)
+            {
+              MolJob job = new MolJob(n_read, null);
+              job.readerr=readerr;
+              queue.put(CompletedJob(job));
+              if (fatal) break; //EOF job follows
+              continue;
+            }
+            if (mol==null) break; //EOF
+            ++n_read;
+            if (nskip>0 && n_read<=nskip) continue;
+            final MolJob job = new MolJob(n_read, mol);
+            final Callable<MolJob> perceive = new Callable<MolJob>() {
+              public MolJob call()
+              {
+                if (!route) PrepareMol(job);
+                if (!job.ok) return job;
+                job.t_this_0 = new java.util.Date();
+                try { job.scaftree = new ScaffoldTree(job.mol, stereo, keep_nitro_attachments, null, null, null, find_linkers, job.ringsys, ((job.lane==1)?heavy_maxtime:maxtime), job.ringctx); } //No lookup.
+                catch (Exception e) { job.ex=e; }
+                job.t_this_1 = new java.util.Date();
+                return job;
+              }
+            };
+            if (!route)
+            {
+              queue.put(pool.submit(perceive));
+              continue;
+            }
+            queue.put(route_pool.submit(new Callable<MolJob>() {
+              public MolJob call()
+              {
+                PrepareMol(job);
+                if (!job.ok) return job;
+                RouteMol(job);
+                job.perception=((job.lane==1)?heavy_pool:pool).submit(perceive);
+                return job;
+              }
+            }));
+          }
+          MolJob job = new MolJob(n_read, null);
+          job.eof=true;
+          queue.put(CompletedJob(job));
+        }
+        catch (InterruptedException e) { } //Merge stage quit early (-nmax).
+      }
+    }, "hscaf-reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    int n_mol=0;
+    java.util.Date t_i = t_0;
+    int n_chunk=100;
+    while (true)
+    {
+      MolJob job=null;
+      try {
+        job=queue.take().get();
+        if (job.perception!=null) job=job.perception.get(); //routed
+      }
+      catch (InterruptedException e) { break; }
+      catch (ExecutionException e) { //Should not happen; workers catch exceptions.
+        System.err.println("ERROR: "+e.toString());
+        ++n_err;
+        continue;
+      }
+      if (job.readerr!=null)
+      {
+        System.err.println(job.readerr);
+        ++n_err;
+        continue;
+      }
+      n_mol=job.n_mol;
+      if (job.eof) break;
+      if (route) TallyLane(job);
+      if (job.ok && job.ex==null)
+      {
+        try { job.scaftree.mergeScaffolds(scafset, scafstore, scafdb); } //scafIDs assigned.
+        catch (Exception e) { job.ex=e; }
+      }
+      boolean finished=FinishMol(job, molWriter, molWriter_trunc);
+      if (bdb_bulk) BulkCheckpoint(scafstore, molWriter, n_mol, false);
+      if (!finished) continue;
+      if (verbose>0 && n_mol%n_chunk==0)
+      {
+        System.err.print(" mols: "+n_mol+"; errors: "+n_err+": tod: "+time_utils.CurrentTime());
+        java.util.Date t_j = new java.util.Date();
+        System.err.print("; elapsed: "+time_utils.TimeDeltaStr(t_0, t_j)+"; dt: "+time_utils.TimeDeltaStr(t_i, t_j));
+        System.err.println("; @: \""+job.molname+"\"");
+        if (bdb) System.err.println(" "+scafstore.getMetrics());
+        t_i=t_j;
+      }
+      if (nmax>0 && n_mol==(nmax+nskip)) break;
+      if (rdb && ((n_mol-nskip)%rdb_reindex_per)==0)
+      {
+        if (verbose>0)
+          System.err.println("REINDEX-ing database: "+rdb_host+":"+rdb_port+":"+rdb_name+":"+rdb_schema);
+        try { scafdb.reindex(); }
+        catch (SQLException e) { System.err.println("SQLException: "+e.getMessage()); }
+      }
+    }
+    reader.interrupt();
+    if (route_pool!=null) route_pool.shutdownNow();
+    pool.shutdownNow();
+    if (heavy_pool!=null) heavy_pool.shutdownNow();
+    t_wall=(new java.util.Date()).getTime()-t_0.getTime();
+    return n_mol;
+  }
+  /////////////////////////////////////////////////////////////////////////////
+  private static Future<MolJob> CompletedJob(MolJob job)
+  {
+    FutureTask<MolJob> task = new FutureTask<MolJob>(new Runnable() { public void run() { } }, job);
+    task.run();
+    return task;
+  }
+  /////////////////////////////////////////////////////////////////////////////
   private static boolean WriteMol(MolExporter molWriter, Molecule mol)
   {
     try { molWriter.write(mol); }
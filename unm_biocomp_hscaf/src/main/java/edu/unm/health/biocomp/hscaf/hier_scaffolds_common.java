@@ -3,6 +3,7 @@ package edu.unm.health.biocomp.hscaf;
 import java.io.*;
 import java.util.*;
 import java.util.regex.*;
+import java.util.concurrent.ForkJoinPool;
 
 import chemaxon.formats.*;
 import chemaxon.sss.search.*;
@@ -43,6 +44,7 @@ public class hier_scaffolds_common
       +"    -show_js .................. show junction points (as pseudoatoms) -- for debugging, visualizing\n"
       +"    -keep_nitro_attachments ... atoms single bonded to ring N remain in scaffold\n"
       +"    -stereo ................... stereo scaffolds (default is non-stereo)\n"
+      +"    -fj_threads N ............. parallel perception within each molecule (fork-join) [1]\n"
       +"    -v ........................ verbose\n"
       +"    -vv ....................... very verbose\n"
       +"    -h ........................ this help\n");
@@ -56,6 +58,7 @@ public class hier_scaffolds_common
   private static Boolean show_js=false;
   private static Boolean keep_nitro_attachments=false;
   private static Boolean stereo=false;
+  private static int fj_threads=1;
   private static String smifmt="cxsmiles:u-L-l-e-d-D-p-R-f-w";
 
   /////////////////////////////////////////////////////////////////////////////
@@ -70,6 +73,7 @@ public class hier_scaffolds_common
       else if (args[i].equals("-keep_nitro_attachments")) keep_nitro_attachments=true;
       else if (args[i].equals("-stereo")) stereo=true;
       else if (args[i].equals("-maxmol")) maxmol=Integer.parseInt(args[++i]);
+      else if (args[i].equals("-fj_threads")) fj_threads=Integer.parseInt(args[++i]);
       else if (args[i].equals("-v")) verbose=1;
       else if (args[i].equals("-vv")) verbose=2;
       else if (args[i].equals("-d")) verbose=2;
@@ -120,9 +124,11 @@ public class hier_scaffolds_common
       System.err.println("Warning: multi-frag query mol; analyzing largest frag only: "+molnameQ);
       molQ=hier_scaffolds_utils.LargestPart(molQ);
     }
+    HScafConfig config=HScafConfig.of(stereo,keep_nitro_attachments);
+    ForkJoinPool fjpool=((fj_threads>1)?new ForkJoinPool(fj_threads):null);
     ScaffoldTree scaftreeQ=null;
     try {
-      scaftreeQ = new ScaffoldTree(molQ,stereo,keep_nitro_attachments);
+      scaftreeQ = new ScaffoldTree(molQ,config,null,null,null,true,false,0,null,fjpool);
     }
     catch (Exception e) {
       System.err.println(e.getMessage());
@@ -183,7 +189,7 @@ public class hier_scaffolds_common
 
       ScaffoldTree scaftree=null;
       try {
-        scaftree = new ScaffoldTree(mol,stereo,keep_nitro_attachments,scafset);
+        scaftree = new ScaffoldTree(mol,config,scafset,null,null,true,false,0,null,fjpool);
       }
       catch (Exception e) {
         ++n_err;
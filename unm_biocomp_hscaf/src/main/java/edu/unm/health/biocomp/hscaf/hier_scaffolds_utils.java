@@ -156,32 +156,20 @@ public class hier_scaffolds_utils
 	all disconnected fragments after removing linkers.  Used to 
 	estimate computational demands and identify high-cost
 	"pathological" molecules for special handling.
+	Molecule is not cloned or modified; ring systems are counted
+	by RingContext, which callers may keep for further use.
   	@return simple count of all ringsystems
   */
   public static int RawRingsystemCount(Molecule mol)
   {
-    Molecule xmol = mol.cloneMolecule();
-    int [][] sssratoms=xmol.getSSSR();
-    HashMap<Integer,Boolean> ringatoms = new HashMap<Integer,Boolean>();
-    for (int [] sssratom: sssratoms) { for (int ratomidx: sssratom) { ringatoms.put(ratomidx,true); } }
-    ArrayList<MolAtom> nonringatoms = new ArrayList<MolAtom>();
-    for (MolAtom atom: xmol.getAtomArray())
-    {
-      if (!(ringatoms.containsKey(xmol.indexOf(atom)))) nonringatoms.add(atom);
-    }
-    for (MolAtom atom: nonringatoms) { xmol.removeAtom(atom); }
-    //Still need to remove non-ring single bonds linking rings.
-    int [][] sssrbonds=xmol.getSSSRBonds();
-    HashMap<Integer,Boolean> ringbonds = new HashMap<Integer,Boolean>();
-    for (int [] sssrbond: sssrbonds) { for (int rbondidx: sssrbond) { ringbonds.put(rbondidx,true); } }
-    ArrayList<MolBond> nonringbonds = new ArrayList<MolBond>();
-    for (MolBond bond: xmol.getBondArray())
-    {
-      if (!(ringbonds.containsKey(xmol.indexOf(bond)))) nonringbonds.add(bond);
-    }
-    for (MolBond bond: nonringbonds) { xmol.removeBond(bond); }
-    int count=xmol.getFragCount(MoleculeGraph.FRAG_BASIC);
-    return count;
+    return RawRingsystemCount(new RingContext(mol));
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	As above, from ring perception already done.
+  */
+  public static int RawRingsystemCount(RingContext ringctx)
+  {
+    return ringctx.getRingsystemCount();
   }
   ///////////////////////////////////////////////////////////////////////////
   /**	For convenience depicting molecules with highlighted atoms
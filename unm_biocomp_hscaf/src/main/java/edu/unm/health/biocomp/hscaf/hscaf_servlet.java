@@ -6,6 +6,7 @@ import java.net.*; //URLEncoder,InetAddress
 import java.text.*;
 import java.util.*;
 import java.util.regex.*;
+import java.util.concurrent.ForkJoinPool;
 import javax.servlet.*;
 import javax.servlet.http.*;
 import javax.servlet.annotation.*;
@@ -46,6 +47,8 @@ public class hscaf_servlet extends HttpServlet
   private static String DEMOSMIFILE=null;      // WebInitParam
   private static String PROXY_PREFIX=null; // WebInitParam
   private static int N_MAX=100; // WebInitParam
+  private static int FJ_THREADS=0; // WebInitParam; intra-molecule parallel perception if >1
+  private static ForkJoinPool FJPOOL=null;
   private static String SERVLETNAME=null;
   private static String CONTEXTPATH=null;
   private static String SCRATCHDIR_PATH=null;
@@ -460,9 +463,9 @@ ArrayList<String>(Arrays.asList(PROXY_PREFIX+CONTEXTPATH+"/css/biocomp.css"));
       ScaffoldTree scaftree=null;
       try {
         scaftree = new ScaffoldTree(mol,
-		params.isChecked("stereo"),
-		params.isChecked("keep_nitro_attachments"),
-		scafset);
+		HScafConfig.of(params.isChecked("stereo"),params.isChecked("keep_nitro_attachments")),
+		scafset,null,null,true,false,0,null,
+		FJPOOL);
       }
       catch (Exception e) {
         ++n_err;
@@ -876,6 +879,9 @@ ArrayList<String>(Arrays.asList(PROXY_PREFIX+CONTEXTPATH+"/css/biocomp.css"));
     DEMOSMIFILE=conf.getInitParameter("DEMOSMIFILE");
     try { N_MAX=Integer.parseInt(conf.getInitParameter("N_MAX")); }
     catch (Exception e) { N_MAX=100; }
+    try { FJ_THREADS=Integer.parseInt(conf.getInitParameter("FJ_THREADS")); }
+    catch (Exception e) { FJ_THREADS=0; }
+    if (FJ_THREADS>1 && FJPOOL==null) FJPOOL = new ForkJoinPool(FJ_THREADS); //shared by requests
     PROXY_PREFIX=((conf.getInitParameter("PROXY_PREFIX")!=null)?conf.getInitParameter("PROXY_PREFIX"):"");
   }
   /////////////////////////////////////////////////////////////////////////////
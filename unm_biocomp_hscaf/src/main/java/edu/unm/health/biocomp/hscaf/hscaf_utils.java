@@ -3,6 +3,9 @@ package edu.unm.health.biocomp.hscaf;
 import java.io.*;
 import java.util.*;
 import java.util.regex.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicReference;
 import java.sql.*;
 
 import chemaxon.formats.*;
@@ -31,7 +34,11 @@ public class hscaf_utils
 {
   private static final String smifmt="cxsmiles:u-L-l-e-d-D-p-R-f-w";
   private hscaf_utils() {} //disallow default constructor
-  private static final int HSCAF_MAX_COMPUTE_TIME=600;	//Max compute time in sec.
+  public static final int HSCAF_MAX_COMPUTE_TIME=600;	//Max compute time in sec.
+  /** junction cut parts, and parts not built since known by part key,
+	process-wide since resetCutPartCounts() */
+  private static final LongAdder N_PARTS = new LongAdder();
+  private static final LongAdder N_PARTS_SKIPPED = new LongAdder();
   ///////////////////////////////////////////////////////////////////////////
   public static int findChildScaffolds(Scaffold scaf,ScaffoldSet scafset)
     throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
@@ -66,89 +73,328 @@ public class hscaf_utils
 	re-analysis.  With ScaffoldSet, if scaffold already known, use
 	existing scaffold object, not new child candidate object.  With
 	ScaffoldStore, new object must be used.
+	<br>
+	Scaffolds already found anywhere in this tree are recognized via a
+	per-tree hash index (key to Scaffold), shared by the whole recursion,
+	and not re-fragmented.
   */
   public static int findChildScaffolds(Scaffold scaf,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb)
     throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
   {
-    int n_cscafs=0;
-    //System.err.println("DEBUG: (findChildScaffolds) ...");
-    for (MolBond bond: scaf.getBondArray())
+    return findChildScaffolds(scaf,scafset,scafstore,scafdb,0L);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	As above, with deadline (System.currentTimeMillis() value, 0 for
+	none).  Checked before each junction cut; when past, recursion stops
+	cleanly, leaving a partial tree (at minimum the root), which the
+	caller should check with pastDeadline(), and not merge into a
+	ScaffoldSet, ScaffoldStore or ScaffoldDB.
+  */
+  public static int findChildScaffolds(Scaffold scaf,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,long t_deadline)
+    throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
+  {
+    HashMap<String,Scaffold> scafidx = new HashMap<String,Scaffold>();
+    scafidx.put(scaf.getKey(),scaf);
+    scaf.setRootIndexes(JunctionGraph.rootIndexes(scaf));
+    return findChildScaffolds(scaf,scafidx,new IdentityHashMap<Scaffold,Integer>(),new HashMap<BitSet,Scaffold>(),null,scafset,scafstore,scafdb,t_deadline);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	As findChildScaffolds(), but child scaffolds are enumerated as
+	connected ring-system subsets of a reduced graph, each unique subset
+	built only once.  For molecules with many ring systems.
+	@see edu.unm.health.biocomp.hscaf.RingSystemGraph
+  */
+  public static int findChildScaffoldsRingsys(Scaffold scaf,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb)
+    throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
+  {
+    return findChildScaffoldsRingsys(scaf,scafset,scafstore,scafdb,0L);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	As above, with deadline, as for findChildScaffolds().
+  */
+  public static int findChildScaffoldsRingsys(Scaffold scaf,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,long t_deadline)
+    throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
+  {
+    HashMap<String,Scaffold> scafidx = new HashMap<String,Scaffold>();
+    scafidx.put(scaf.getKey(),scaf);
+    RingSystemGraph rsgraph = new RingSystemGraph(scaf);
+    return findChildScaffolds(scaf,scafidx,new IdentityHashMap<Scaffold,Integer>(),null,rsgraph,scafset,scafstore,scafdb,t_deadline);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	As findChildScaffolds(), with no lookup, in parallel within the
+	molecule, for single large molecules (e.g. macrocycles, natural
+	products).  Each new child scaffold is expanded by a fork-join
+	task; tasks share concurrent per-tree indexes (scaffold key, and
+	part key), and the task which first adds a key expands it, so no
+	child is expanded twice.  Each scaffold's children are added by
+	its own task, in cut order, so the tree is as found serially, with
+	equivalent instances for repeated scaffolds.  Scaffolds are shared
+	once published in an index, with key computed before; they are
+	attached as children by key only (legality and uniqueness), never
+	read otherwise, since their own task may be expanding them.  For
+	lookup, follow with mergeChildScaffolds(), as after perception by
+	worker threads.
+	Deadline as for findChildScaffolds().
+	@param pool fork-join pool, e.g. ForkJoinPool.commonPool()
+	@return count of child scaffolds, as getAllChildCount()
+  */
+  public static int findChildScaffoldsParallel(Scaffold scaf,long t_deadline,ForkJoinPool pool)
+    throws SearchException,MolFormatException
+  {
+    ConcurrentHashMap<String,Scaffold> scafidx = new ConcurrentHashMap<String,Scaffold>();
+    scafidx.put(scaf.getKey(),scaf);
+    scaf.setRootIndexes(JunctionGraph.rootIndexes(scaf));
+    AtomicReference<Exception> error = new AtomicReference<Exception>();
+    pool.invoke(new ChildScaffoldTask(scaf,scafidx,new ConcurrentHashMap<BitSet,Scaffold>(),t_deadline,error));
+    Exception e=error.get();
+    if (e instanceof MolFormatException) throw (MolFormatException)e;
+    else if (e instanceof SearchException) throw (SearchException)e;
+    else if (e!=null) throw new RuntimeException(e);
+    return scaf.getAllChildCount();
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	Fork-join task expanding one new scaffold, for
+	findChildScaffoldsParallel().  The first exception is kept in
+	error, and stops further cuts.
+  */
+  private static class ChildScaffoldTask extends RecursiveAction
+  {
+    private Scaffold scaf;
+    private ConcurrentHashMap<String,Scaffold> scafidx;
+    private ConcurrentHashMap<BitSet,Scaffold> partidx;
+    private long t_deadline;
+    private AtomicReference<Exception> error;
+
+    ChildScaffoldTask(Scaffold scaf,ConcurrentHashMap<String,Scaffold> scafidx,ConcurrentHashMap<BitSet,Scaffold> partidx,long t_deadline,AtomicReference<Exception> error)
     {
-      if (bond.getSetSeq()>0)
-      {
-        int bidx=scaf.indexOf(bond); //Note: bond idxs must be same in mol clone.
-        Molecule scafmol = scaf.cloneMolecule();
-        MolBond jbond=scafmol.getBond(bidx);
-        MolAtom a1=jbond.getAtom1();
-        MolAtom a2=jbond.getAtom2();
-        if (a1.getAtno()==1 || a2.getAtno()==1) continue; //junction-atoms
-        MolAtom h_new1 = new MolAtom(1);
-        MolAtom h_new2 = new MolAtom(1);
-        scafmol.add(h_new1);
-        scafmol.add(h_new2);
-        MolBond b_new1 = new MolBond(h_new1,a1,jbond.getType());
-        MolBond b_new2 = new MolBond(h_new2,a2,jbond.getType());
-        scafmol.add(b_new1);
-        scafmol.add(b_new2);
-        b_new1.setSetSeq(jbond.getSetSeq());
-        b_new2.setSetSeq(jbond.getSetSeq());
-        scafmol.removeBond(jbond);
-        for (Molecule partmol: scafmol.convertToFrags()) //should be 2
+      this.scaf=scaf;
+      this.scafidx=scafidx;
+      this.partidx=partidx;
+      this.t_deadline=t_deadline;
+      this.error=error;
+    }
+    protected void compute()
+    {
+      ArrayList<ChildScaffoldTask> tasks = new ArrayList<ChildScaffoldTask>();
+      HashSet<String> ckeys = new HashSet<String>(); //children of scaf, added only by this task
+      try {
+        JunctionGraph jgraph = new JunctionGraph(scaf,scaf.getRootIndexes()); //Note: bond idxs same as scaf.
+        for (int bidx: jgraph.getCuttableJunctionBonds())
         {
-          Scaffold cscaf = new Scaffold(partmol,scaf.isStereo(),scaf.isKeep_nitro_attachments());
-          // Check: has scaf been seen already in this tree?  If yes save time, use foundscaf.
-          Scaffold foundscaf=scaf.getRootScaffold().findChildScaffold(cscaf);
-          if (foundscaf!=null)
-          {
-            boolean ok=scaf.addChild(foundscaf);
-            ++n_cscafs;
-            n_cscafs+=foundscaf.getAllChildCount();
-          }
-          // Check: is scaf already in scafset?  If yes save time, use foundscaf.
-          else if (scafset!=null && scafset.containsScaffold(cscaf))
-          {
-            foundscaf=scafset.findScaffold(cscaf);
-            //System.err.println("DEBUG: (findChildScaffolds) found in scafset: "+cscaf.getCansmi());
-            boolean ok=scaf.addChild(foundscaf);
-            //System.err.println("DEBUG: (findChildScaffolds) found in scafset: ID="+foundscaf.getID()+" "+foundscaf.getCansmi()+" addChild="+ok);
-            ++n_cscafs;
-            n_cscafs+=foundscaf.getAllChildCount();
-          }
-          // Check: is scaf already in scafstore?  If yes save time.
-          // Surprisingly this does not save time!?
-          else if (scafstore!=null && scafstore.scaffoldByCanSmi.contains(cscaf.getCansmi()))
-          {
-            ScaffoldStoreEntity scent = scafstore.scaffoldByCanSmi.get(cscaf.getCansmi());
-            cscaf.setID(scent.getId());
-            boolean ok=scaf.addChild(cscaf);
-            ++n_cscafs;
-            cscaf.setParentScaffold(scaf);
-            scafstore.populateScaffoldTree(cscaf);
-            n_cscafs+=cscaf.getAllChildCount();
-          }
-          else if (scafdb!=null && scafdb.containsScaffoldByCansmi(cscaf.getCansmi()))
+          if (pastDeadline(t_deadline) || error.get()!=null) break; //truncated
+          for (JunctionGraph.Part part: jgraph.cutParts(bidx)) //parts with rings; 2 or fewer
           {
-            ScaffoldDBRecord scafrec=scafdb.getScaffoldByCansmi(cscaf.getCansmi());
-            cscaf.setID(scafrec.getID());
-            boolean ok=scaf.addChild(cscaf);
-            ++n_cscafs;
+            BitSet pkey=part.getKey();
+            Scaffold cscaf=((pkey!=null)?partidx.get(pkey):null); //same part via another cut order
+            countCutPart(cscaf!=null);
+            if (cscaf==null)
+            {
+              cscaf=Scaffold.fromPart(part,scaf); //aromaticity carried
+              cscaf.getKey(); //computed before shared
+              Scaffold prevscaf=((pkey!=null)?partidx.putIfAbsent(pkey,cscaf):null);
+              if (prevscaf!=null) cscaf=prevscaf;
+            }
+            // First task to add key expands it; others use its scaffold.
+            // Attached by key, as addChild(), without reading shared scaffold.
+            String key=cscaf.getKey();
+            boolean attach=(Scaffold.isLegalKey(key) && ckeys.add(key));
+            Scaffold foundscaf=scafidx.putIfAbsent(key,cscaf);
+            if (foundscaf!=null)
+            {
+              if (attach) scaf.addStoredChild(foundscaf);
+              continue;
+            }
+            if (attach) scaf.addStoredChild(cscaf);
             cscaf.setParentScaffold(scaf);
-            scafdb.populateScaffoldTree(cscaf);
-            n_cscafs+=cscaf.getAllChildCount();
-          }
-          else
-          {
-            boolean ok=scaf.addChild(cscaf);
-            ++n_cscafs;
-            cscaf.setParentScaffold(scaf);
-            n_cscafs+=findChildScaffolds(cscaf,scafset,scafstore,scafdb); //recurse; size=0 if leaf
+            ChildScaffoldTask task = new ChildScaffoldTask(cscaf,scafidx,partidx,t_deadline,error);
+            task.fork();
+            tasks.add(task);
           }
         }
       }
+      catch (Exception e) { error.compareAndSet(null,e); }
+      for (ChildScaffoldTask task: tasks) task.join();
+    }
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	True if deadline (System.currentTimeMillis() value, 0 for none)
+	has passed.
+  */
+  public static boolean pastDeadline(long t_deadline)
+  {
+    return (t_deadline>0L && System.currentTimeMillis()>t_deadline);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	Count of junction cut parts with rings, all threads, since
+	resetCutPartCounts().  Process-wide, so meaningful only to a caller
+	which owns the run (e.g. hier_scaffolds), not concurrent requests.
+  */
+  public static long getCutPartCount() { return N_PARTS.sum(); }
+  /**	Count of junction cut parts not built, since the same part (by
+	part key) was already built via another cut order, since
+	resetCutPartCounts().
+  */
+  public static long getCutPartSkippedCount() { return N_PARTS_SKIPPED.sum(); }
+  /**	Resets cut part counts, at start of a run.
+  */
+  public static void resetCutPartCounts()
+  {
+    N_PARTS.reset();
+    N_PARTS_SKIPPED.reset();
+  }
+  static void countCutPart(boolean skipped)
+  {
+    N_PARTS.increment();
+    if (skipped) N_PARTS_SKIPPED.increment();
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	Finds child scaffolds, by RingSystemGraph if non-null, else by
+	junction cuts.  Parts already built in this tree are found by part
+	key in partidx (if non-null), so not built again; their scaffold
+	keys are in scafidx.
+  */
+  private static int findChildScaffolds(Scaffold scaf,HashMap<String,Scaffold> scafidx,IdentityHashMap<Scaffold,Integer> counts,HashMap<BitSet,Scaffold> partidx,RingSystemGraph rsgraph,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,long t_deadline)
+    throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
+  {
+    int n_cscafs=0;
+    //System.err.println("DEBUG: (findChildScaffolds) ...");
+    if (rsgraph!=null)
+    {
+      for (Scaffold cscaf: rsgraph.cut(scaf))
+      {
+        if (pastDeadline(t_deadline)) return n_cscafs; //truncated
+        n_cscafs+=addChildScaffold(scaf,cscaf,null,scafidx,counts,null,rsgraph,scafset,scafstore,scafdb,t_deadline);
+      }
+      return n_cscafs;
+    }
+    JunctionGraph jgraph = new JunctionGraph(scaf,((partidx!=null)?scaf.getRootIndexes():null)); //Note: bond idxs same as scaf.
+    for (int bidx: jgraph.getCuttableJunctionBonds())
+    {
+      if (pastDeadline(t_deadline)) return n_cscafs; //truncated
+      for (JunctionGraph.Part part: jgraph.cutParts(bidx)) //parts with rings; 2 or fewer
+      {
+        BitSet pkey=part.getKey();
+        Scaffold cscaf=((pkey!=null)?partidx.get(pkey):null); //same part via another cut order; key in scafidx
+        countCutPart(cscaf!=null);
+        if (cscaf==null)
+        {
+          cscaf=Scaffold.fromPart(part,scaf); //aromaticity carried
+          if (pkey!=null) partidx.put(pkey,cscaf);
+        }
+        n_cscafs+=addChildScaffold(scaf,cscaf,null,scafidx,counts,partidx,null,scafset,scafstore,scafdb,t_deadline);
+      }
     }
     //System.err.println("DEBUG: (findChildScaffolds) leaving; n_cscafs: "+n_cscafs);
     return n_cscafs;
   }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	Merges child scaffolds previously found by findChildScaffolds() with
+	no lookup (all of scafset, scafstore and scafdb null), applying the
+	same lookups, in the same order, as if the lookup had been used
+	during perception.  The resulting tree is identical.  Thus perception
+	may be done in parallel by worker threads, and merging done
+	serially in input order, as in hier_scaffolds -threads mode.
+	<br>
+	Children perceived but found in tree or lookup are replaced by
+	the found scaffolds, as in findChildScaffolds().
+  */
+  public static int mergeChildScaffolds(Scaffold scaf,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb)
+    throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
+  {
+    HashMap<String,Scaffold> scafidx = new HashMap<String,Scaffold>();
+    scafidx.put(scaf.getKey(),scaf);
+    return mergeChildScaffolds(scaf,scafidx,new IdentityHashMap<Scaffold,Integer>(),scafset,scafstore,scafdb);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  private static int mergeChildScaffolds(Scaffold scaf,HashMap<String,Scaffold> scafidx,IdentityHashMap<Scaffold,Integer> counts,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb)
+    throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
+  {
+    int n_cscafs=0;
+    ArrayList<Scaffold> cscafs = new ArrayList<Scaffold>(scaf.getChildScaffolds());
+    scaf.getChildScaffolds().clear();
+    for (Scaffold cscaf: cscafs)
+    {
+      ArrayList<Scaffold> ccscafs = new ArrayList<Scaffold>(cscaf.getChildScaffolds());
+      n_cscafs+=addChildScaffold(scaf,cscaf,ccscafs,scafidx,counts,null,null,scafset,scafstore,scafdb,0L);
+    }
+    return n_cscafs;
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	Adds one candidate child scaffold, unless already in this tree,
+	ScaffoldSet, ScaffoldStore or ScaffoldDB, in which case the known
+	scaffold is used.  If new, child scaffolds are found by recursion,
+	or if ccscafs non-null (previously perceived children), merged.
+	Known scaffolds are complete sub-hierarchies, so their descendant
+	counts are memoized in counts, for the whole perception.
+  */
+  private static int addChildScaffold(Scaffold scaf,Scaffold cscaf,ArrayList<Scaffold> ccscafs,HashMap<String,Scaffold> scafidx,IdentityHashMap<Scaffold,Integer> counts,HashMap<BitSet,Scaffold> partidx,RingSystemGraph rsgraph,ScaffoldSet scafset,ScaffoldStore scafstore,ScaffoldDB scafdb,long t_deadline)
+    throws SearchException,MolFormatException,DatabaseException,SQLException,IOException
+  {
+    int n_cscafs=0;
+    // Check: has scaf been seen already in this tree?  If yes save time, use foundscaf.
+    Scaffold foundscaf=scafidx.get(cscaf.getKey());
+    if (foundscaf!=null)
+    {
+      boolean ok=scaf.addChild(foundscaf);
+      ++n_cscafs;
+      n_cscafs+=foundscaf.getAllChildCount(counts);
+    }
+    // Check: is scaf already in scafset?  If yes save time, use foundscaf.
+    else if (scafset!=null && scafset.containsScaffold(cscaf))
+    {
+      foundscaf=scafset.findScaffold(cscaf);
+      scafidx.put(foundscaf.getKey(),foundscaf);
+      //System.err.println("DEBUG: (findChildScaffolds) found in scafset: "+cscaf.getCansmi());
+      boolean ok=scaf.addChild(foundscaf);
+      //System.err.println("DEBUG: (findChildScaffolds) found in scafset: ID="+foundscaf.getID()+" "+foundscaf.getCansmi()+" addChild="+ok);
+      ++n_cscafs;
+      n_cscafs+=foundscaf.getAllChildCount(counts);
+    }
+    // Check: is scaf already in scafstore?  If yes save time.
+    // Surprisingly this does not save time!?
+    else if (scafstore!=null && scafstore.scaffoldByCanKey.contains(cscaf.getKey()))
+    {
+      ScaffoldStoreEntity scent = scafstore.scaffoldByCanKey.get(cscaf.getKey());
+      cscaf.getChildScaffolds().clear();
+      cscaf.setID(scent.getId());
+      scafidx.put(cscaf.getKey(),cscaf);
+      boolean ok=scaf.addChild(cscaf);
+      ++n_cscafs;
+      cscaf.setParentScaffold(scaf);
+      scafstore.populateScaffoldTree(cscaf);
+      n_cscafs+=cscaf.getAllChildCount(counts);
+    }
+    else if (scafdb!=null && scafdb.containsScaffoldByCansmi(cscaf.getCansmi()))
+    {
+      ScaffoldDBRecord scafrec=scafdb.getScaffoldByCansmi(cscaf.getCansmi());
+      cscaf.getChildScaffolds().clear();
+      cscaf.setID(scafrec.getID());
+      scafidx.put(cscaf.getKey(),cscaf);
+      boolean ok=scaf.addChild(cscaf);
+      ++n_cscafs;
+      cscaf.setParentScaffold(scaf);
+      scafdb.populateScaffoldTree(cscaf);
+      n_cscafs+=cscaf.getAllChildCount(counts);
+    }
+    else
+    {
+      scafidx.put(cscaf.getKey(),cscaf);
+      boolean ok=scaf.addChild(cscaf);
+      ++n_cscafs;
+      cscaf.setParentScaffold(scaf);
+      if (ccscafs==null)
+      {
+        n_cscafs+=findChildScaffolds(cscaf,scafidx,counts,partidx,rsgraph,scafset,scafstore,scafdb,t_deadline); //recurse; size=0 if leaf
+      }
+      else
+      {
+        cscaf.getChildScaffolds().clear();
+        cscaf.getChildScaffolds().addAll(ccscafs);
+        n_cscafs+=mergeChildScaffolds(cscaf,scafidx,counts,scafset,scafstore,scafdb); //recurse
+      }
+    }
+    return n_cscafs;
+  }
   /////////////////////////////////////////////////////////////////////////////
   /**   Re-create Scaffold and all offspring as stored for use as sub-tree,
         etc.
@@ -156,7 +402,7 @@ public class hscaf_utils
   public static Scaffold entity2Scaffold(ScaffoldStore scafstore,ScaffoldStoreEntity scent)
         throws MolFormatException,DatabaseException
   {
-    Scaffold scaf = new Scaffold(scent.getCanSmi(),scafstore.isStereo(),scafstore.isKeep_nitro_attachments());
+    Scaffold scaf = new Scaffold(scent.getCanSmi(),scafstore.getConfig());
     scaf.setID(scent.getId());
     for (long id: scent.getChildIds())
     {
@@ -178,34 +424,25 @@ public class hscaf_utils
   public static ArrayList<Integer> tagJunctions(Molecule mol,
 	boolean keep_nitro_attachments)
     throws MolExportException,SearchException,MolFormatException
+  {
+    return tagJunctions(mol,keep_nitro_attachments,null);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	As above, with ring perception for mol already done, or null.
+	If there are no junction candidates, the searches are skipped.
+  */
+  public static ArrayList<Integer> tagJunctions(Molecule mol,
+	boolean keep_nitro_attachments,RingContext ringctx)
+    throws MolExportException,SearchException,MolFormatException
   {
     for (MolBond bond: mol.getBondArray()) bond.setSetSeq(0); //clear all
+    if (ringctx!=null && ringctx.isFor(mol) && ringctx.getJunctionCandidateCount()==0)
+      return new ArrayList<Integer>();
 
-    // (first two atoms in smarts are junction)
-    ArrayList<String>  junc_smarts = new ArrayList<String>();
-    ArrayList<MolSearch>  junc_pats = new ArrayList<MolSearch>();
-    junc_smarts.add("[!R](-!@[!R]=,#[R])=,#[R]");       //scaf-scaf
-    junc_smarts.add("[!R](-!@[*])=,#[R]");      //scaf-nonscaf
-    if (keep_nitro_attachments)
-    {
-      junc_smarts.add("[R&!#7]~!@[R&!#7]");     //scaf-scaf
-      junc_smarts.add("[R&!#7]~!@[!R]=,#[R]");  //scaf-scaf
-      junc_smarts.add("[R&!#7]-!@[!R;!$([R&#7])]");     //scaf-nonscaf
-      junc_smarts.add("[!R]~!@[!R]-!@[R&#7]");  //scaf-nonscaf
-    }
-    else
-    {
-      junc_smarts.add("[R]-!@[R]");     //scaf-scaf
-      junc_smarts.add("[R]-!@[!R]=,#[R]");      //scaf-scaf
-      junc_smarts.add("[!R]-!@[R]");    //scaf-nonscaf
-    }
-    for (String smarts: junc_smarts)
-    {
-      MolSearch junc_pat = new MolSearch();
-      junc_pat.setQuery(MolImporter.importMol(smarts,"smarts:"));
+    // (first two atoms in smarts are junction; see ScaffoldQueries)
+    MolSearch[] junc_pats=ScaffoldQueries.getJunctionSearches(keep_nitro_attachments);
+    for (MolSearch junc_pat: junc_pats)
       junc_pat.setTarget(mol);
-      junc_pats.add(junc_pat);
-    }
 
     int con_id=0;       // junction idx
     ArrayList<Integer> jbonds = new ArrayList<Integer>();
@@ -239,47 +476,43 @@ public class hscaf_utils
 	if part of a "dangling" linker, but not if the linker is involved
 	in the scaffold.  Maybe the tagJunctions() method should also
 	annotate all atoms as scaffold, linker or sidechain.
+	<br>
+	Terminal atoms are peeled natively, with a work queue
+	(SideChainPruner), by the same rules as the side chain SMARTS.
 	@param mol input molecule or scaffold
 	@param keep_nitro_attachments true for N-attachments scaf definition
 	@return number of atoms removed
   */
   public static int rmSideChains(Molecule mol,boolean keep_nitro_attachments)
     throws MolFormatException
+  {
+    return rmSideChains(mol,keep_nitro_attachments,null);
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	As above, with ring perception for mol (or a copy with same
+	atom order) already done, or null.
+  */
+  public static int rmSideChains(Molecule mol,boolean keep_nitro_attachments,RingContext ringctx)
+    throws MolFormatException
+  {
+    int n_del=SideChainPruner.prune(mol,keep_nitro_attachments,ringctx);
+    rmPart(mol,"[H+]"); //clean up explicit-Hs
+    rmPart(mol,"[H]"); //clean up explicit-Hs
+    return n_del;
+  }
+  ///////////////////////////////////////////////////////////////////////////
+  /**	Remove side chains leaving only scaffold, by the side chain SMARTS
+	(ScaffoldQueries), one terminal atom per pattern per pass, until
+	none match.  Quadratic; reference implementation for rmSideChains().
+	@param mol input molecule or scaffold
+	@param keep_nitro_attachments true for N-attachments scaf definition
+	@return number of atoms removed
+  */
+  public static int rmSideChainsSmarts(Molecule mol,boolean keep_nitro_attachments)
+    throws MolFormatException
   {
     int n_del=0;
-    ArrayList<MolSearch> pats = new ArrayList<MolSearch>();
-    if (keep_nitro_attachments)
-    {
-      MolSearch pat;
-      pat = new MolSearch();
-      pat.setQuery(MolImporter.importMol("[D1&!#1]-[!#1;!$([#7&R])]","smarts:"));
-      pats.add(pat);
-      pat = new MolSearch();
-      pat.setQuery(MolImporter.importMol("[D1&!#1]~[D2;!R;$(*-[!$([#7&R])])]","smarts:"));
-      pats.add(pat);
-      pat = new MolSearch();
-      pat.setQuery(MolImporter.importMol("[D1&!#1]~[D2;!R]~[D2;!R;$(*-[!$([#7&R])])]","smarts:"));
-      pats.add(pat);
-      pat = new MolSearch();
-      pat.setQuery(MolImporter.importMol("[D1&!#1]~[D3;!R](~[D1])-[!$([R&#7])]","smarts:"));
-      pats.add(pat);
-    }
-    else
-    {
-      MolSearch pat;
-      pat = new MolSearch();
-      pat.setQuery(MolImporter.importMol("[D1&!#1]-[!#1]","smarts:"));
-      pats.add(pat);
-      pat = new MolSearch();
-      pat.setQuery(MolImporter.importMol("[D1&!#1]~[D2;!R;$(*-*)]","smarts:"));
-      pats.add(pat);
-      pat = new MolSearch();
-      pat.setQuery(MolImporter.importMol("[D1&!#1]~[D2;!R]~[D2;!R;$(*-*)]","smarts:"));
-      pats.add(pat);
-      pat = new MolSearch();
-      pat.setQuery(MolImporter.importMol("[D1&!#1]~[D3;!R](~[D1])-[*]","smarts:"));
-      pats.add(pat);
-    }
+    MolSearch[] pats=ScaffoldQueries.getSidechainSearches(keep_nitro_attachments);
     while (true)
     {
       int n_del_this=0;
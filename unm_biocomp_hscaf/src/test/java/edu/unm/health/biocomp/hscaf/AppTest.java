@@ -9,7 +9,7 @@ import junit.framework.*; //Test, TestCase, TestSuite
 import chemaxon.formats.*; //MolFormatException
 import chemaxon.marvin.io.MolExportException;
 import chemaxon.sss.search.SearchException;
-import chemaxon.struc.Molecule;
+import chemaxon.struc.*; //Molecule, MolAtom, MolBond, MoleculeGraph
 
 import edu.unm.health.biocomp.hscaf.*; //ScaffoldSet, ScaffoldTree, ScaffoldException
 
@@ -61,4 +61,786 @@ public class AppTest
       ScaffoldTree scaftree = new ScaffoldTree(mol, stereo, keep_nitro_attachments, scafset);
       assertTrue( scaftree.getScaffoldCount() > 0 );
     }
+
+    /**
+     * Canonical key partitions scaffolds of testset exactly as cansmi,
+     * including children with aromaticity carried from parent, and no
+     * key falls back to cansmi (tied atom limit).
+     */
+    public void testKeyPartition()
+	throws Exception
+    {
+      HashMap<String,String> key2smi = new HashMap<String,String>();
+      HashMap<String,String> smi2key = new HashMap<String,String>();
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      int n_scaf=0;
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree = new ScaffoldTree(mol, false, false, false);
+        if (scaftree.getRootScaffold()==null) continue;
+        ArrayList<Scaffold> scafs = new ArrayList<Scaffold>(scaftree.getAllScaffolds());
+        scafs.add(scaftree.getRootScaffold());
+        for (Scaffold scaf: scafs)
+        {
+          String key = scaf.getKey();
+          assertFalse( key.startsWith("S:") );
+          String cansmi = scaf.getCansmi();
+          if (key2smi.containsKey(key)) assertEquals( key2smi.get(key), cansmi );
+          if (smi2key.containsKey(cansmi)) assertEquals( smi2key.get(cansmi), key );
+          key2smi.put(key, cansmi);
+          smi2key.put(cansmi, key);
+          ++n_scaf;
+        }
+      }
+      molReader.close();
+      assertTrue( n_scaf > 0 );
+      assertEquals( key2smi.size(), smi2key.size() );
+    }
+
+    /**
+     * Symmetric ring systems are keyed, by automorphism pruning, and
+     * keys do not depend on atom order.  Above the tied atom limit (a
+     * 70-membered ring), there is no key, in either atom order.
+     */
+    public void testSymmetricKeys()
+	throws Exception
+    {
+      String[] smis = {
+	"c1ccc2ccccc2c1",
+	"C12C3C4C1C5C2C3C45", //cubane
+	"C1C2CC3CC1CC(C2)C3", //adamantane
+	"C(c1ccccc1)(c1ccccc1)(c1ccccc1)c1ccccc1",
+	"c1cc2ccc3ccc4ccc5ccc6ccc1c7c2c3c4c5c67", //coronene
+	"C1CCC(CC1)C1CCC(CC1)C1CCCCC1",
+	"C1CCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCC1"
+      };
+      for (String smi: smis)
+      {
+        Molecule mol = MolImporter.importMol(smi, "smiles:");
+        String key1 = CanonicalKey.of(mol);
+        assertEquals( key1==null, mol.getAtomCount()==70 );
+        Molecule mol2 = new Molecule(); //atoms in reverse order
+        MolAtom[] atoms = new MolAtom[mol.getAtomCount()];
+        for (int i=mol.getAtomCount()-1; i>=0; --i)
+        {
+          atoms[i] = mol.getAtom(i).cloneAtom();
+          mol2.add(atoms[i]);
+        }
+        for (int j=mol.getBondCount()-1; j>=0; --j)
+        {
+          MolBond bond = mol.getBond(j);
+          mol2.add(bond.cloneBond(atoms[mol.indexOf(bond.getAtom2())], atoms[mol.indexOf(bond.getAtom1())]));
+        }
+        assertEquals( key1, CanonicalKey.of(mol2) );
+      }
+    }
+
+    /**
+     * ScaffoldStore created before canonical keys (null canKey) is
+     * detected at open, and refuses merge.
+     */
+    public void testStoreUnkeyed()
+	throws Exception
+    {
+      java.io.File bdbDir = tempStoreDir();
+      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, false, false);
+      assertTrue( scafstore.isKeyed() );
+      scafstore.scaffoldById.put(new ScaffoldStoreEntity(1L, "c1ccccc1")); //as version 0
+      scafstore.closeAll();
+      scafstore = new ScaffoldStore(bdbDir, false, false);
+      assertFalse( scafstore.isKeyed() );
+      try
+      {
+        scafstore.mergeScaffoldTree(new Scaffold("c1ccccc1", false, false));
+        fail( "merge into unkeyed store" );
+      }
+      catch (IllegalStateException e) { }
+      scafstore.destroyDB();
+    }
+
+    /**
+     * Native side chain pruning gives same result as SMARTS loop, on bundled
+     * datasets, with and without junctions tagged, for both N-attachment
+     * definitions.  Also on every JunctionGraph cut part of the testset
+     * scaffolds, which carry explicit junction hydrogens, counted in D,
+     * from which nothing is pruned.
+     */
+    public void testSideChainPruning()
+	throws Exception
+    {
+      int n_mol=0;
+      for (String ifile: new String[]{"../data/hscaf_testset.smi", "../data/quinine.smi"})
+      {
+        MolImporter molReader = new MolImporter(ifile);
+        for (Molecule mol; (mol=molReader.read())!=null; )
+        {
+          for (boolean keep_nitro_attachments: new boolean[]{false, true})
+          {
+            for (boolean tagged: new boolean[]{false, true})
+            {
+              Molecule mol1 = mol.cloneMolecule();
+              if (tagged) hscaf_utils.tagJunctions(mol1, keep_nitro_attachments);
+              mol1.dearomatize();
+              Molecule mol2 = mol1.cloneMolecule();
+              int n_del1 = hscaf_utils.rmSideChainsSmarts(mol1, keep_nitro_attachments);
+              int n_del2 = hscaf_utils.rmSideChains(mol2, keep_nitro_attachments);
+              assertEquals( n_del1, n_del2 );
+              assertEquals( MolExporter.exportToFormat(mol1, Scaffold.CANSMIFMT), MolExporter.exportToFormat(mol2, Scaffold.CANSMIFMT) );
+            }
+          }
+          ++n_mol;
+        }
+        molReader.close();
+      }
+      assertTrue( n_mol > 0 );
+
+      int n_parts=0;
+      for (boolean keep_nitro_attachments: new boolean[]{false, true})
+      {
+        MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+        for (Molecule mol; (mol=molReader.read())!=null; )
+        {
+          ScaffoldTree scaftree = new ScaffoldTree(mol, false, keep_nitro_attachments, false);
+          if (scaftree.getRootScaffold()==null) continue;
+          ArrayList<Scaffold> scafs = new ArrayList<Scaffold>(scaftree.getAllScaffolds());
+          scafs.add(scaftree.getRootScaffold());
+          for (Scaffold scaf: scafs)
+          {
+            JunctionGraph jgraph = new JunctionGraph(scaf);
+            for (int bidx: jgraph.getCuttableJunctionBonds())
+            {
+              for (JunctionGraph.Part part: jgraph.cutParts(bidx))
+              {
+                Molecule mol1 = part.getMolecule().cloneMolecule();
+                mol1.dearomatize();
+                Molecule mol2 = mol1.cloneMolecule();
+                int n_del1 = hscaf_utils.rmSideChainsSmarts(mol1, keep_nitro_attachments);
+                int n_del2 = hscaf_utils.rmSideChains(mol2, keep_nitro_attachments);
+                assertEquals( n_del1, n_del2 );
+                assertEquals( 0, n_del2 ); //no side chains, as Scaffold.fromPart() assumes
+                assertEquals( MolExporter.exportToFormat(mol1, Scaffold.CANSMIFMT), MolExporter.exportToFormat(mol2, Scaffold.CANSMIFMT) );
+                ++n_parts;
+              }
+            }
+          }
+        }
+        molReader.close();
+      }
+      assertTrue( n_parts > 0 );
+    }
+
+    /**
+     * Shared ring perception gives same ring system counts (as fragments
+     * of ring bonds) and same scaffolds as perception per step.
+     */
+    public void testRingContext()
+	throws Exception
+    {
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        RingContext ringctx = new RingContext(mol);
+        Molecule xmol = mol.cloneMolecule();
+        ArrayList<MolBond> nonringbonds = new ArrayList<MolBond>();
+        for (int j=0; j<xmol.getBondCount(); ++j)
+          if (!ringctx.isRingBond(j)) nonringbonds.add(xmol.getBond(j));
+        for (MolBond bond: nonringbonds) xmol.removeBond(bond);
+        ArrayList<MolAtom> nonringatoms = new ArrayList<MolAtom>();
+        for (int i=0; i<xmol.getAtomCount(); ++i)
+          if (!ringctx.isRingAtom(i)) nonringatoms.add(xmol.getAtom(i));
+        for (MolAtom atom: nonringatoms) xmol.removeAtom(atom);
+        assertEquals( xmol.getFragCount(MoleculeGraph.FRAG_BASIC), hier_scaffolds_utils.RawRingsystemCount(mol) );
+
+        ScaffoldTree scaftree1 = new ScaffoldTree(mol, false, false, null, null, null, false, false, 0);
+        ScaffoldTree scaftree2 = new ScaffoldTree(mol, false, false, null, null, null, false, false, 0, ringctx);
+        assertEquals( scaftree1.getScaffoldCount(), scaftree2.getScaffoldCount() );
+        if (scaftree1.getRootScaffold()!=null)
+          assertEquals( scaftree1.getRootScaffold().subTreeAsString(), scaftree2.getRootScaffold().subTreeAsString() );
+      }
+      molReader.close();
+    }
+
+    /**
+     * Child scaffolds with aromaticity carried from parent are the same
+     * as with aromaticity perceived per child, with the same keys,
+     * computed on the carried form without re-aromatizing.
+     */
+    public void testCarriedAromaticity()
+	throws Exception
+    {
+      int n_parts=0;
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree = new ScaffoldTree(mol, false, false, false);
+        if (scaftree.getRootScaffold()==null) continue;
+        ArrayList<Scaffold> scafs = new ArrayList<Scaffold>(scaftree.getAllScaffolds());
+        scafs.add(scaftree.getRootScaffold());
+        for (Scaffold scaf: scafs)
+        {
+          JunctionGraph jgraph = new JunctionGraph(scaf);
+          for (int bidx: jgraph.getCuttableJunctionBonds())
+          {
+            for (Molecule partmol: jgraph.cut(bidx))
+            {
+              Scaffold cscaf1 = new Scaffold(partmol.cloneMolecule(), scaf.isStereo(), scaf.isKeep_nitro_attachments());
+              Scaffold cscaf2 = Scaffold.fromPart(partmol, scaf);
+              assertEquals( cscaf1.getCansmi(), cscaf2.getCansmi() );
+              assertEquals( cscaf1.getKey(), cscaf2.getKey() );
+              ++n_parts;
+            }
+          }
+        }
+      }
+      molReader.close();
+      assertTrue( n_parts > 0 );
+    }
+
+    /**
+     * Junction cut parts with the same part key (root atoms) are the same
+     * scaffold, over all cut orders.
+     */
+    public void testCutPartKeys()
+	throws Exception
+    {
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree = new ScaffoldTree(mol, false, false, false);
+        Scaffold rootscaf = scaftree.getRootScaffold();
+        if (rootscaf==null) continue;
+        rootscaf.setRootIndexes(JunctionGraph.rootIndexes(rootscaf));
+        HashMap<BitSet,String> keys = new HashMap<BitSet,String>();
+        ArrayDeque<Scaffold> queue = new ArrayDeque<Scaffold>();
+        queue.add(rootscaf);
+        while (!queue.isEmpty() && keys.size()<1000)
+        {
+          Scaffold scaf = queue.poll();
+          JunctionGraph jgraph = new JunctionGraph(scaf, scaf.getRootIndexes());
+          for (int bidx: jgraph.getCuttableJunctionBonds())
+          {
+            for (JunctionGraph.Part part: jgraph.cutParts(bidx))
+            {
+              Scaffold cscaf = Scaffold.fromPart(part, scaf);
+              assertNotNull( cscaf.getRootIndexes() );
+              String key = keys.get(part.getKey());
+              if (key!=null) { assertEquals( key, cscaf.getKey() ); continue; }
+              keys.put(part.getKey(), cscaf.getKey());
+              queue.add(cscaf);
+            }
+          }
+        }
+      }
+      molReader.close();
+    }
+
+    /**
+     * Ring-system engine (-ringsys_min) finds the same trees and scaffold
+     * keys, in the same ScaffoldSet order, as the standard engine.
+     */
+    public void testRingSystemEngine()
+	throws Exception
+    {
+      ScaffoldSet scafset1 = new ScaffoldSet("test1");
+      ScaffoldSet scafset2 = new ScaffoldSet("test2");
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree1 = new ScaffoldTree(mol.cloneMolecule(), false, false, scafset1, null, null, true, false);
+        ScaffoldTree scaftree2 = new ScaffoldTree(mol.cloneMolecule(), false, false, scafset2, null, null, true, true);
+        assertEquals( scaftree1.toString(), scaftree2.toString() );
+        HashSet<String> keys1 = new HashSet<String>();
+        for (Scaffold scaf: scaftree1.getScaffolds()) keys1.add(scaf.getKey());
+        HashSet<String> keys2 = new HashSet<String>();
+        for (Scaffold scaf: scaftree2.getScaffolds()) keys2.add(scaf.getKey());
+        assertEquals( keys1, keys2 );
+      }
+      molReader.close();
+      assertEquals( scafset1.getCount(), scafset2.getCount() );
+    }
+
+    /**
+     * Linkers and side-chains are found natively, the same with a
+     * ScaffoldSet as with no lookup.
+     */
+    public void testFragments()
+	throws Exception
+    {
+      int n_link=0;
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree1 = new ScaffoldTree(mol, false, false, true);
+        ScaffoldTree scaftree2 = new ScaffoldTree(mol, false, false, new ScaffoldSet("test")); //root new
+        if (scaftree1.getRootScaffold()==null) continue;
+        assertEquals( scaftree1.getLinkerCount(), scaftree2.getLinkerCount() );
+        assertEquals( scaftree1.getSidechainCount(), scaftree2.getSidechainCount() );
+        for (int i=0; i<scaftree1.getLinkerCount(); ++i)
+        {
+          assertEquals( scaftree1.getLinkers().get(i).getCansmi(), scaftree2.getLinkers().get(i).getCansmi() );
+          assertTrue( scaftree1.getLinkers().get(i).getDegree() >= 2 );
+        }
+        n_link+=scaftree1.getLinkerCount();
+      }
+      molReader.close();
+      assertTrue( n_link > 0 );
+    }
+
+    /**
+     * Memoized counts and deduplicated scaffolds agree with plain traversal.
+     */
+    public void testDagCounts()
+	throws Exception
+    {
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      IdentityHashMap<Scaffold,Integer> counts = new IdentityHashMap<Scaffold,Integer>();
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree = new ScaffoldTree(mol, false, false, false);
+        HashSet<String> ukeys = new HashSet<String>();
+        for (Scaffold scaf: scaftree.getAllScaffolds())
+        {
+          ukeys.add(scaf.getKey());
+          assertEquals( scaf.getAllChildCount(), scaf.getAllChildCount(counts) );
+        }
+        assertEquals( ukeys.size(), scaftree.getScaffoldCount() );
+        assertEquals( scaftree.getScaffolds().size(), scaftree.getScaffoldCount() );
+      }
+      molReader.close();
+    }
+
+    /**
+     * ScaffoldSet stores same scaffolds as compressed Scaffolds (former
+     * representation), in fewer bytes than the String, boxed ID and child
+     * list fields alone of a compressed Scaffold (not counting its
+     * Molecule), per node, and per scaffold with hash index (the ID
+     * array, allocated in chunks, is excluded).  Sizes are computed, not
+     * measured, so independent of JVM and GC.
+     */
+    public void testScaffoldSetMemory()
+	throws Exception
+    {
+      ArrayList<ScaffoldTree> scaftrees = new ArrayList<ScaffoldTree>();
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree = new ScaffoldTree(mol, false, false, false);
+        if (scaftree.getRootScaffold()!=null) scaftrees.add(scaftree);
+      }
+      molReader.close();
+
+      HashMap<String,Scaffold> scafhash = new HashMap<String,Scaffold>();
+      for (ScaffoldTree scaftree: scaftrees)
+      {
+        for (Scaffold scaf: scaftree.getAllScaffolds())
+        {
+          if (scafhash.containsKey(scaf.getKey())) continue;
+          Scaffold scaf2 = new Scaffold(scaf);
+          scaf2.compress();
+          scafhash.put(scaf2.getKey(), scaf2);
+        }
+      }
+      ScaffoldSet scafset = new ScaffoldSet("test");
+      for (ScaffoldTree scaftree: scaftrees)
+        scafset.mergeScaffoldTree(scaftree.getRootScaffold());
+
+      assertEquals( scafhash.size(), scafset.getCount() );
+      assertTrue( scafset.getCount() > 0 );
+      long nbytes_bound=0L;
+      for (String key: scafset.keySet())
+      {
+        Scaffold scaf = scafhash.get(key);
+        assertEquals( scaf.getCansmi(), scafset.findScaffold(scaf).getCansmi() );
+        ScaffoldNode node = scafset.getNodeByID(scafset.getScaffoldID(scaf));
+        long nbytes_fields = stringBytes(scaf.getCansmi()) + stringBytes(key)
+		+ 16 //Long ID
+		+ 24+16+4*Math.max(10, node.getChildCount()); //ArrayList, Object[]
+        assertTrue( node.sizeOf() < nbytes_fields );
+        nbytes_bound += nbytes_fields + 32+stringBytes(key); //hash node, key String
+      }
+      long nbytes_chunks = (scafset.getCount()/ScaffoldSet.CHUNK_SIZE+1)*(16+4L*ScaffoldSet.CHUNK_SIZE);
+      assertTrue( scafset.getBytesPerScaffold()*scafset.getCount() - nbytes_chunks < nbytes_bound );
+    }
+
+    /**
+     * Stereo and non-stereo scaffolds coexist, with export formats
+     * unchanged by construction, and flags as given.
+     */
+    public void testConfig()
+	throws Exception
+    {
+      HScafConfig config0 = HScafConfig.of(false, false);
+      HScafConfig config1 = HScafConfig.of(true, true);
+      String smifmt0 = config0.getSmiFormat();
+      String smifmt1 = config1.getSmiFormat();
+      assertSame( HScafConfig.DEFAULT, config0 );
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree0 = new ScaffoldTree(mol, false, false, false);
+        ScaffoldTree scaftree1 = new ScaffoldTree(mol, true, true, false);
+        if (scaftree0.getRootScaffold()==null) continue;
+        assertSame( config0, scaftree0.getRootScaffold().getConfig() );
+        assertSame( config1, scaftree1.getRootScaffold().getConfig() );
+        for (Scaffold scaf: scaftree1.getAllScaffolds())
+          assertSame( config1, scaf.getConfig() );
+        scaftree0.getRootScaffold().getSmi();
+        scaftree1.getRootScaffold().getJsmi();
+      }
+      molReader.close();
+      assertEquals( smifmt0, config0.getSmiFormat() );
+      assertEquals( smifmt1, config1.getSmiFormat() );
+      assertEquals( "cxsmiles:+L+l+e+d+D+p+R+f+w+0", config0.getCxsmiFormat() );
+      assertEquals( "cxsmiles:+L+l+e+d+D+p+R+f+w", config1.getCxsmiFormat() );
+    }
+
+    /**
+     * Fork-join perception within each molecule finds the same tree
+     * (children of each scaffold, in order) as serial perception.
+     */
+    public void testForkJoin()
+	throws Exception
+    {
+      java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; )
+      {
+        ScaffoldTree scaftree1 = new ScaffoldTree(mol, HScafConfig.DEFAULT, null, null, null, true, false, 0, null, null);
+        ScaffoldTree scaftree2 = new ScaffoldTree(mol, HScafConfig.DEFAULT, null, null, null, true, false, 0, null, pool);
+        if (scaftree1.getRootScaffold()==null) { assertNull( scaftree2.getRootScaffold() ); continue; }
+        assertEquals( childKeys(scaftree1.getRootScaffold()), childKeys(scaftree2.getRootScaffold()) );
+        assertEquals( scaftree1.getScaffoldCount(), scaftree2.getScaffoldCount() );
+      }
+      molReader.close();
+      pool.shutdown();
+    }
+
+    /**
+     * Fork-join perception of a large macrocycle, repeated, always gives
+     * the same tree as serial perception.
+     */
+    public void testForkJoinStable()
+	throws Exception
+    {
+      String smi = "C1(Cc2ccccc2)C(=O)NC(Cc2ccc(O)cc2)C(=O)NC(Cc2c[nH]c3ccccc23)C(=O)NC(Cc2ccncc2)C(=O)NC(Cc2ccsc2)C(=O)NC(Cc2cocc2)C(=O)NC(CC2CCCCC2)C(=O)NC1";
+      Molecule mol = MolImporter.importMol(smi, "smiles:");
+      ScaffoldTree scaftree1 = new ScaffoldTree(mol, HScafConfig.DEFAULT, new ScaffoldSet("test"), null, null, true, false, 0, null, null);
+      assertTrue( scaftree1.getScaffoldCount() > 50 );
+      java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+      for (int i=0; i<20; ++i)
+      {
+        ScaffoldTree scaftree2 = new ScaffoldTree(mol, HScafConfig.DEFAULT, new ScaffoldSet("test"), null, null, true, false, 0, null, pool);
+        assertEquals( scaftree1.toString(), scaftree2.toString() );
+        assertEquals( childKeys(scaftree1.getRootScaffold()), childKeys(scaftree2.getRootScaffold()) );
+      }
+      pool.shutdown();
+    }
+
+    /**
+     * Batch analysis with threads, input molecules not kept, gives the
+     * same scaffold IDs and trees as the single-threaded batch.
+     */
+    public void testAnalyzer()
+	throws Exception
+    {
+      ArrayList<Molecule> mols = new ArrayList<Molecule>();
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; ) mols.add(mol);
+      molReader.close();
+
+      ScaffoldAnalyzer analyzer1 = new ScaffoldAnalyzer(HScafConfig.DEFAULT, new ScaffoldSet("test1"), null, null);
+      ArrayList<String> results1 = new ArrayList<String>();
+      for (ScaffoldAnalyzer.Result result: analyzer1.analyze(mols).collect(java.util.stream.Collectors.toList()))
+      {
+        assertNotNull( result.getScaffoldTree().inmol );
+        results1.add(result.getIndex()+" "+result.getScaffoldIDsString()+" "+result.getTreeString());
+      }
+
+      ArrayList<Molecule> mols2 = new ArrayList<Molecule>();
+      for (Molecule mol: mols) mols2.add(mol.cloneMolecule());
+      ScaffoldAnalyzer analyzer2 = new ScaffoldAnalyzer(HScafConfig.DEFAULT, new ScaffoldSet("test2"), null, null);
+      analyzer2.setThreads(4);
+      analyzer2.setKeepInputMolecule(false);
+      ArrayList<String> results2 = new ArrayList<String>();
+      try (java.util.stream.Stream<ScaffoldAnalyzer.Result> results = analyzer2.analyze(mols2))
+      {
+        for (ScaffoldAnalyzer.Result result: results.collect(java.util.stream.Collectors.toList()))
+        {
+          assertNull( result.getScaffoldTree().inmol );
+          results2.add(result.getIndex()+" "+result.getScaffoldIDsString()+" "+result.getTreeString());
+        }
+      }
+      assertEquals( mols.size(), results1.size() );
+      assertEquals( results1, results2 );
+    }
+
+    /**
+     * hier_scaffolds output files (-o, -out_scaf) with -threads 4 are
+     * byte-identical to those with one thread.  Each run is in a child
+     * JVM, since main() calls System.exit() and keeps options in static
+     * fields.
+     */
+    public void testThreadedOutput()
+	throws Exception
+    {
+      java.io.File tmpDir = java.nio.file.Files.createTempDirectory("hscaf_out").toFile();
+      byte[][] outs = new byte[2][];
+      byte[][] outs_scaf = new byte[2][];
+      String[] nthreads = {"1", "4"};
+      for (int i=0; i<2; ++i)
+      {
+        java.io.File fout = new java.io.File(tmpDir, "out_"+nthreads[i]+".smi");
+        java.io.File fout_scaf = new java.io.File(tmpDir, "scaf_"+nthreads[i]+".smi");
+        ProcessBuilder pb = new ProcessBuilder(
+		System.getProperty("java.home")+java.io.File.separator+"bin"+java.io.File.separator+"java",
+		"-cp", System.getProperty("java.class.path"), hier_scaffolds.class.getName(),
+		"-i", "../data/hscaf_testset.smi", "-o", fout.getPath(), "-out_scaf", fout_scaf.getPath(),
+		"-inc_mol", "-inc_scaf", "-threads", nthreads[i]);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(new java.io.File(tmpDir, "log_"+nthreads[i]+".txt"));
+        assertEquals( 0, pb.start().waitFor() );
+        outs[i] = java.nio.file.Files.readAllBytes(fout.toPath());
+        outs_scaf[i] = java.nio.file.Files.readAllBytes(fout_scaf.toPath());
+      }
+      assertTrue( outs[0].length > 0 );
+      assertTrue( Arrays.equals(outs[0], outs[1]) );
+      assertTrue( Arrays.equals(outs_scaf[0], outs_scaf[1]) );
+    }
+
+    /**
+     * ScaffoldStore IDs are dense (1..N), also after re-opening (resume).
+     */
+    public void testStoreIDs()
+	throws Exception
+    {
+      java.io.File bdbDir = tempStoreDir();
+      ArrayList<Molecule> mols = readTestset();
+      int n_half = mols.size()/2;
+
+      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, false, false);
+      storeScaffoldTrees(mols.subList(0, n_half), scafstore);
+      long n_scaf = scafstore.getLastID();
+      assertEquals( scafstore.count(), n_scaf );
+      scafstore.closeAll();
+
+      scafstore = new ScaffoldStore(bdbDir, false, false); //resume
+      assertEquals( n_scaf, scafstore.getLastID() );
+      storeScaffoldTrees(mols.subList(n_half, mols.size()), scafstore);
+      assertEquals( scafstore.count(), scafstore.getLastID() );
+      for (long id=1L; id<=scafstore.getLastID(); ++id)
+        assertNotNull( scafstore.scaffoldById.get(id) );
+      scafstore.destroyDB();
+      assertEquals( 0L, scafstore.getLastID() );
+    }
+
+    /**
+     * ScaffoldSet and ScaffoldStore number scaffolds alike (depth-first
+     * pre-order), so in-memory and -bdb runs give the same IDs and tree
+     * strings.
+     */
+    public void testSetStoreIDs()
+	throws Exception
+    {
+      java.io.File bdbDir = tempStoreDir();
+      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, false, false);
+      ScaffoldSet scafset = new ScaffoldSet("test");
+      for (Molecule mol: readTestset())
+      {
+        ScaffoldTree scaftree = new ScaffoldTree(mol, false, false, scafset);
+        ScaffoldTree scaftree_bdb = new ScaffoldTree(mol, false, false, scafstore);
+        assertEquals( scaftree_bdb.toString(), scaftree.toString() );
+      }
+      assertTrue( scafset.getCount() > 0 );
+      assertEquals( scafstore.getLastID(), scafset.getCount() );
+      for (long id=1L; id<=scafstore.getLastID(); ++id)
+      {
+        ScaffoldStoreEntity scent = scafstore.scaffoldById.get(id);
+        ScaffoldNode node = scafset.getNodeByID(id);
+        assertEquals( scent.getCanSmi(), node.getCansmi() );
+        int[] cids = node.getChildIDs();
+        assertEquals( scent.getChildIds().size(), cids.length );
+        for (int cid: cids)
+          assertTrue( scent.getChildIds().contains((long)cid) );
+      }
+      scafstore.destroyDB();
+    }
+
+    /**
+     * Bulk (non-transactional) ScaffoldStore builds the same trees as
+     * transactional, and a checkpoint (input position, -o length) and
+     * parent/child links survive re-opening (resume).  A child shared by
+     * several parents keeps its first parent.
+     */
+    public void testBulkStore()
+	throws Exception
+    {
+      java.io.File bdbDir = tempStoreDir();
+      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, false, false, true);
+      assertTrue( scafstore.isBulk() );
+      java.io.File bdbDir_txn = tempStoreDir();
+      ScaffoldStore scafstore_txn = new ScaffoldStore(bdbDir_txn, false, false);
+      int n_mol=0;
+      for (Molecule mol: readTestset())
+      {
+        ScaffoldTree scaftree = new ScaffoldTree(mol, false, false, scafstore);
+        ScaffoldTree scaftree_txn = new ScaffoldTree(mol, false, false, scafstore_txn);
+        assertEquals( scaftree_txn.toString(), scaftree.toString() );
+        if (++n_mol==5) scafstore.checkpoint(n_mol);
+      }
+      scafstore_txn.destroyDB();
+      assertEquals( 5L, scafstore.getCheckpointPosition() );
+      assertEquals( -1L, scafstore.getCheckpointOutputLength() );
+      scafstore.checkpoint(n_mol, 1000L);
+      long n_scaf = scafstore.getLastID();
+      scafstore.closeAll();
+
+      scafstore = new ScaffoldStore(bdbDir, false, false, true); //resume
+      assertEquals( (long)n_mol, scafstore.getCheckpointPosition() );
+      assertEquals( 1000L, scafstore.getCheckpointOutputLength() ); //-o truncated to this on resume
+      assertEquals( n_scaf, scafstore.getLastID() );
+      for (long id=1L; id<=n_scaf; ++id)
+      {
+        for (long chid: scafstore.scaffoldById.get(id).getChildIds())
+        {
+          long pid = scafstore.scaffoldById.get(chid).getParentId(); //first parent
+          assertTrue( pid > 0L );
+          assertTrue( scafstore.scaffoldById.get(pid).getChildIds().contains(chid) );
+        }
+      }
+      scafstore.destroyDB();
+    }
+
+    /**
+     * ScaffoldStoreTuning settings reach the environment (as reported
+     * by ScaffoldStoreMetrics), and unknown parameters are rejected.
+     */
+    public void testStoreTuning()
+	throws Exception
+    {
+      java.io.File bdbDir = tempStoreDir();
+      ScaffoldStoreTuning tuning = new ScaffoldStoreTuning();
+      tuning.setCacheSize(8*1048576L);
+      tuning.setLogFileMax(1048576L);
+      tuning.setCleanerThreads(2);
+      tuning.setLockTimeout(1000L);
+      try { tuning.setParam("maxMemory", "1"); fail(); }
+      catch (IllegalArgumentException e) { }
+      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, false, false, false, tuning);
+      storeScaffoldTrees(readTestset(), scafstore);
+      ScaffoldStoreMetrics metrics = scafstore.getMetrics();
+      assertEquals( 8*1048576L, metrics.getCacheSize() );
+      assertTrue( metrics.getCacheHitRatio()>=0.0 && metrics.getCacheHitRatio()<=1.0 );
+      assertTrue( metrics.getTotalLogSize()>0L );
+      assertTrue( metrics.toString().startsWith("bdb: ") );
+      scafstore.destroyDB();
+    }
+
+    /**
+     * ScaffoldStore dump writes one line per scaffold, in ID order, as
+     * cansmi, ID and scaffold string.
+     */
+    public void testStoreDump()
+	throws Exception
+    {
+      java.io.File bdbDir = tempStoreDir();
+      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, false, false);
+      storeScaffoldTrees(readTestset(), scafstore);
+      java.io.File fout = java.io.File.createTempFile("hscaf_dump", ".smi");
+      assertEquals( scafstore.getLastID(), scafstore.dumpToFile(fout, 0) );
+      List<String> lines = java.nio.file.Files.readAllLines(fout.toPath());
+      assertEquals( scafstore.getLastID(), (long)lines.size() );
+      for (long id=1L; id<=scafstore.getLastID(); ++id)
+      {
+        ScaffoldStoreEntity scent = scafstore.scaffoldById.get(id);
+        assertEquals( scent.getCanSmi()+" "+id+" "+scafstore.getScaffoldString(scent), lines.get((int)id-1) );
+      }
+      fout.delete();
+      scafstore.destroyDB();
+    }
+
+    /**
+     * Trees whose root is already stored are populated from the store
+     * as lazy child scaffolds, same as perceived, keyed as stored, and
+     * decompressed on demand.
+     */
+    public void testStoreProxies()
+	throws Exception
+    {
+      java.io.File bdbDir = tempStoreDir();
+      ScaffoldStore scafstore = new ScaffoldStore(bdbDir, false, false);
+      ArrayList<Molecule> mols = readTestset();
+      ArrayList<String> treestrs = storeScaffoldTrees(mols, scafstore);
+      for (int i=0; i<mols.size(); ++i) //roots now known; trees populated from store
+      {
+        ScaffoldTree scaftree = new ScaffoldTree(mols.get(i), false, false, scafstore);
+        assertEquals( treestrs.get(i), scaftree.toString() );
+        if (scaftree.getRootScaffold()==null) continue;
+        for (Scaffold cscaf: scaftree.getRootScaffold().getAllChildScaffolds())
+        {
+          assertTrue( cscaf.isEmpty() ); //lazy
+          assertEquals( scafstore.scaffoldById.get(cscaf.getID()).getCanKey(), cscaf.getKey() );
+          cscaf.decompress();
+          assertTrue( cscaf.getAtomCount()>0 );
+        }
+      }
+      scafstore.destroyDB();
+    }
+
+    /**
+     * New empty directory for a test ScaffoldStore, whose databases are
+     * removed by destroyDB().
+     */
+    private static java.io.File tempStoreDir()
+	throws java.io.IOException
+    {
+      return java.nio.file.Files.createTempDirectory("hscaf_bdb").toFile();
+    }
+
+    /**
+     * Molecules of the bundled testset, in file order.
+     */
+    private static ArrayList<Molecule> readTestset()
+	throws Exception
+    {
+      ArrayList<Molecule> mols = new ArrayList<Molecule>();
+      MolImporter molReader = new MolImporter("../data/hscaf_testset.smi");
+      for (Molecule mol; (mol=molReader.read())!=null; ) mols.add(mol);
+      molReader.close();
+      return mols;
+    }
+
+    /**
+     * Perceives trees for molecules into the store.
+     * @return tree strings, in molecule order
+     */
+    private static ArrayList<String> storeScaffoldTrees(List<Molecule> mols, ScaffoldStore scafstore)
+	throws Exception
+    {
+      ArrayList<String> treestrs = new ArrayList<String>();
+      for (Molecule mol: mols)
+        treestrs.add(new ScaffoldTree(mol, false, false, scafstore).toString());
+      return treestrs;
+    }
+
+    private static HashMap<String,List<String>> childKeys(Scaffold rootscaf)
+    {
+      HashMap<String,List<String>> ckeys = new HashMap<String,List<String>>();
+      ArrayList<Scaffold> scafs = new ArrayList<Scaffold>(rootscaf.getAllChildScaffolds());
+      scafs.add(rootscaf);
+      for (Scaffold scaf: scafs)
+      {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (Scaffold cscaf: scaf.getChildScaffolds()) keys.add(cscaf.getKey());
+        ckeys.put(scaf.getKey(), keys);
+      }
+      return ckeys;
+    }
+
+    /**
+     * Heap bytes of a String (64-bit JVM, compressed oops, Java 8 char[]).
+     */
+    private static long stringBytes(String str)
+    {
+      return 24 + ((16+2*str.length()+7)&~7);
+    }
 }